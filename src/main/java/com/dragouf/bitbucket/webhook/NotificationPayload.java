@@ -0,0 +1,196 @@
+package com.dragouf.bitbucket.webhook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+/**
+ * The JSON body sent to Jenkins when a hook delivers notifications as
+ * payloads rather than as notifyCommit requests. It tells Jenkins what
+ * changed, so it doesn't have to poll the repository to find out, and it
+ * covers every ref changed by a push in a single request.
+ */
+public class NotificationPayload {
+
+  private static final Gson GSON = new Gson();
+
+  private final RepositoryData repository;
+  private final List<RefChangeData> refChanges =
+      new ArrayList<RefChangeData>();
+  private final String pullRequestId;
+  private final String user;
+
+  /**
+   * Create a new payload without ref changes.
+   * @param repository The repository that changed
+   * @param user The name of the user who made the change, may be null
+   * @param pullRequestId The pull request id, may be null
+   */
+  public NotificationPayload(Repository repository, String user,
+      String pullRequestId) {
+    this.repository = new RepositoryData(repository);
+    this.user = user;
+    this.pullRequestId = pullRequestId;
+  }
+
+  /**
+   * Parses a payload serialized with {@link #toJson()}.
+   * @param json The serialized payload
+   * @return The payload, or null if it can't be parsed
+   */
+  public static NotificationPayload fromJson(String json) {
+    try {
+      return GSON.fromJson(json, NotificationPayload.class);
+    } catch (JsonParseException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Adds a ref change to the payload.
+   * @param ref The changed ref, e.g. {@code refs/heads/master}
+   * @param fromHash The hash the ref pointed to before, may be null
+   * @param toHash The hash the ref points to now, may be null
+   * @param type The kind of change, e.g. {@code UPDATE}
+   * @return This payload
+   */
+  public NotificationPayload addRefChange(String ref, String fromHash,
+      String toHash, String type) {
+    refChanges.add(new RefChangeData(ref, fromHash, toHash, type));
+    return this;
+  }
+
+  /**
+   * Gets the ids of the changed refs, joined with commas.
+   * @return The changed refs
+   */
+  public String getRefs() {
+    StringBuilder refs = new StringBuilder();
+    for (RefChangeData refChange : refChanges) {
+      if (refs.length() > 0) {
+        refs.append(',');
+      }
+      refs.append(refChange.ref);
+    }
+    return refs.toString();
+  }
+
+  /**
+   * Gets the {@code refChanges} property.
+   * @return The ref changes, in the order they were added
+   */
+  public List<RefChangeData> getRefChanges() {
+    return Collections.unmodifiableList(refChanges);
+  }
+
+  /**
+   * Gets the {@code pullRequestId} property.
+   * @return The pull request id, may be null
+   */
+  public String getPullRequestId() {
+    return pullRequestId;
+  }
+
+  /**
+   * Gets the {@code user} property.
+   * @return The name of the user who made the change, may be null
+   */
+  public String getUser() {
+    return user;
+  }
+
+  /**
+   * Serializes the payload.
+   * @return The payload as JSON
+   */
+  public String toJson() {
+    return GSON.toJson(this);
+  }
+
+  /**
+   * Serializes the payload with the clone url of the repository, which is
+   * only known when the notification is sent.
+   * @param cloneUrl The repository url
+   * @return The payload as JSON
+   */
+  public String toJson(String cloneUrl) {
+    JsonObject json = GSON.toJsonTree(this).getAsJsonObject();
+    json.getAsJsonObject("repository").addProperty("cloneUrl", cloneUrl);
+    return GSON.toJson(json);
+  }
+
+  /**
+   * The repository of a payload.
+   */
+  private static final class RepositoryData {
+
+    private final int id;
+    private final String project;
+    private final String slug;
+    private final String name;
+
+    private RepositoryData(Repository repository) {
+      this.id = repository.getId();
+      this.project = repository.getProject() == null ? null
+          : repository.getProject().getKey();
+      this.slug = repository.getSlug();
+      this.name = repository.getName();
+    }
+  }
+
+  /**
+   * A ref change of a payload.
+   */
+  public static final class RefChangeData {
+
+    private final String ref;
+    private final String fromHash;
+    private final String toHash;
+    private final String type;
+
+    private RefChangeData(String ref, String fromHash, String toHash,
+        String type) {
+      this.ref = ref;
+      this.fromHash = fromHash;
+      this.toHash = toHash;
+      this.type = type;
+    }
+
+    /**
+     * Gets the {@code ref} property.
+     * @return The changed ref
+     */
+    public String getRef() {
+      return ref;
+    }
+
+    /**
+     * Gets the {@code fromHash} property.
+     * @return The hash the ref pointed to before
+     */
+    public String getFromHash() {
+      return fromHash;
+    }
+
+    /**
+     * Gets the {@code toHash} property.
+     * @return The hash the ref points to now
+     */
+    public String getToHash() {
+      return toHash;
+    }
+
+    /**
+     * Gets the {@code type} property.
+     * @return The kind of change
+     */
+    public String getType() {
+      return type;
+    }
+  }
+}
@@ -1,5 +1,8 @@
 package com.dragouf.bitbucket.webhook;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A model object that wraps the result from a notification attempt.
@@ -8,9 +11,31 @@ package com.dragouf.bitbucket.webhook;
  */
 public class NotificationResult {
 
+  /**
+   * The outcomes of a notification attempt
+   */
+  public enum Outcome {
+    /**
+     * Jenkins accepted the notification
+     */
+    SUCCESS,
+    /**
+     * The notification failed
+     */
+    FAILURE,
+    /**
+     * Jenkins didn't answer in time
+     */
+    TIMEOUT
+  }
+
+  private final Outcome outcome;
   private final boolean successful;
   private final String url;
   private final String message;
+  private final boolean retryable;
+  private final List<NotificationResult> results;
+  private final List<String> retryTargets;
 
   /**
    * Create a new result
@@ -20,9 +45,104 @@ public class NotificationResult {
    * Jenkins
    */
   public NotificationResult(boolean successful, String url, String message) {
-    this.successful = successful;
+    this(successful, url, message, false);
+  }
+
+  /**
+   * Create a new result
+   * @param successful Was the notification successful?
+   * @param url The URL that was used for notification
+   * @param message Either an error message or the body of the response from
+   * Jenkins
+   * @param retryable Could a failed notification succeed on a later attempt?
+   */
+  public NotificationResult(boolean successful, String url, String message,
+      boolean retryable) {
+    this(successful ? Outcome.SUCCESS : Outcome.FAILURE, url, message,
+        retryable);
+  }
+
+  /**
+   * Create a new result
+   * @param outcome The outcome of the notification
+   * @param url The URL that was used for notification
+   * @param message Either an error message or the body of the response from
+   * Jenkins
+   * @param retryable Could a failed notification succeed on a later attempt?
+   */
+  public NotificationResult(Outcome outcome, String url, String message,
+      boolean retryable) {
+    this.outcome = outcome;
+    this.successful = outcome == Outcome.SUCCESS;
+    this.url = url;
+    this.message = message;
+    this.retryable = retryable;
+    this.results = Collections.emptyList();
+    this.retryTargets = Collections.emptyList();
+  }
+
+  private NotificationResult(Outcome outcome, String url, String message,
+      boolean retryable, List<NotificationResult> results,
+      List<String> retryTargets) {
+    this.outcome = outcome;
+    this.successful = outcome == Outcome.SUCCESS;
     this.url = url;
     this.message = message;
+    this.retryable = retryable;
+    this.results = Collections.unmodifiableList(results);
+    this.retryTargets = Collections.unmodifiableList(retryTargets);
+  }
+
+  /**
+   * Combines the results of a notification sent to several Jenkins
+   * instances. The combined notification is successful if all of them are;
+   * otherwise it failed, or timed out if no instance failed outright, and is
+   * retryable if any failed instance is.
+   * @param results The result of each instance, in the order of the targets
+   * @return The combined result, or the only result if there is just one
+   */
+  public static NotificationResult aggregate(List<NotificationResult> results) {
+    return aggregate(null, results);
+  }
+
+  /**
+   * Combines the results of a notification sent to several Jenkins
+   * instances, recording which of the instances a retry should notify.
+   * @param targets The base URL of each instance, may be null
+   * @param results The result of each instance, in the order of the targets
+   * @return The combined result, or the only result if there is just one
+   */
+  public static NotificationResult aggregate(List<String> targets,
+      List<NotificationResult> results) {
+    if (results.size() == 1) {
+      return results.get(0);
+    }
+    Outcome outcome = Outcome.SUCCESS;
+    boolean retryable = false;
+    List<String> retryTargets = new ArrayList<String>();
+    StringBuilder urls = new StringBuilder();
+    StringBuilder messages = new StringBuilder();
+    for (int i = 0; i < results.size(); i++) {
+      NotificationResult result = results.get(i);
+      if (result.outcome == Outcome.FAILURE || outcome == Outcome.SUCCESS) {
+        outcome = result.outcome;
+      }
+      if (!result.successful && result.retryable) {
+        retryable = true;
+        if (targets != null) {
+          retryTargets.add(targets.get(i));
+        }
+      }
+      if (urls.length() > 0) {
+        urls.append(", ");
+        messages.append("; ");
+      }
+      urls.append(result.url);
+      messages.append(result.url).append(": ").append(result.message);
+    }
+    return new NotificationResult(outcome, urls.toString(),
+        messages.toString(), retryable,
+        new ArrayList<NotificationResult>(results), retryTargets);
   }
 
   /**
@@ -33,6 +153,14 @@ public class NotificationResult {
     return successful;
   }
 
+  /**
+   * Gets the {@code outcome} property.
+   * @return The outcome of the notification
+   */
+  public Outcome getOutcome() {
+    return outcome;
+  }
+
   /**
    * Gets the {@code message} property.
    * @return Either an error message or the response from the server.
@@ -49,12 +177,39 @@ public class NotificationResult {
     return url;
   }
 
+  /**
+   * Gets the {@code retryable} property.
+   * @return Could a failed notification succeed on a later attempt?
+   */
+  public boolean isRetryable() {
+    return retryable;
+  }
+
+  /**
+   * Gets the {@code results} property.
+   * @return The result of each Jenkins instance of a combined result, empty
+   * for the result of a single instance
+   */
+  public List<NotificationResult> getResults() {
+    return results;
+  }
+
+  /**
+   * Gets the {@code retryTargets} property.
+   * @return The base URLs of the Jenkins instances of a combined result whose
+   * notification failed and may pass on a later attempt, empty if they are
+   * unknown or for the result of a single instance
+   */
+  public List<String> getRetryTargets() {
+    return retryTargets;
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public String toString() {
-    return "Result: successful? " + successful + "; url: " + url
+    return "Result: " + outcome + "; url: " + url
         + "; message: " + message;
   }
 
@@ -0,0 +1,193 @@
+package com.dragouf.bitbucket.webhook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import com.atlassian.bitbucket.setting.Settings;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+/**
+ * A Jenkins instance notified by a hook. Besides the Jenkins configured by
+ * the main hook settings, a hook may list additional targets, one per line:
+ *
+ * <pre>
+ * https://security.jenkins ssh omitHashCode
+ * https://release.jenkins custom=ssh://git@host/foo/bar.git ignoreCerts
+ * </pre>
+ *
+ * The url comes first, followed by any of a clone type ({@code http},
+ * {@code ssh} or {@code custom=<clone url>}, http if absent) and the
+ * {@code ignoreCerts}, {@code omitHashCode} and {@code omitBranchName} flags.
+ * Blank lines and lines starting with {@code #} are ignored.
+ */
+public class NotificationTarget {
+
+  private static final Splitter LINE_SPLITTER =
+      Splitter.on('\n').trimResults().omitEmptyStrings();
+  private static final Splitter OPTION_SPLITTER =
+      Splitter.on(' ').trimResults().omitEmptyStrings();
+  private static final String CUSTOM_PREFIX = "custom=";
+
+  private final String jenkinsBase;
+  private final String cloneType;
+  private final String cloneUrl;
+  private final boolean ignoreCerts;
+  private final boolean omitHashCode;
+  private final boolean omitBranchName;
+
+  /**
+   * Create a new target.
+   * @param jenkinsBase Base URL for Jenkins instance
+   * @param cloneType The repository type
+   * @param cloneUrl The repository url, used by the custom type
+   * @param ignoreCerts True if all certs should be allowed
+   * @param omitHashCode True if the commit's SHA1 hash code is omitted
+   * @param omitBranchName True if the commit's branch name is omitted
+   */
+  public NotificationTarget(String jenkinsBase, String cloneType,
+      String cloneUrl, boolean ignoreCerts, boolean omitHashCode,
+      boolean omitBranchName) {
+    this.jenkinsBase = jenkinsBase;
+    this.cloneType = cloneType;
+    this.cloneUrl = cloneUrl;
+    this.ignoreCerts = ignoreCerts;
+    this.omitHashCode = omitHashCode;
+    this.omitBranchName = omitBranchName;
+  }
+
+  /**
+   * Gets the targets of a hook: the Jenkins of the main settings followed by
+   * the additional targets. Additional targets that can't be parsed are
+   * ignored; they are rejected when the settings are saved.
+   * @param settings The hook settings
+   * @return The targets, never empty
+   */
+  public static List<NotificationTarget> fromSettings(Settings settings) {
+    NotificationTarget primary = new NotificationTarget(
+        settings.getString(Notifier.JENKINS_BASE),
+        settings.getString(Notifier.CLONE_TYPE),
+        settings.getString(Notifier.CLONE_URL),
+        settings.getBoolean(Notifier.IGNORE_CERTS, false),
+        settings.getBoolean(Notifier.OMIT_HASH_CODE, false),
+        settings.getBoolean(Notifier.OMIT_BRANCH_NAME, false));
+    String additional = settings.getString(Notifier.ADDITIONAL_TARGETS);
+    if (Strings.isNullOrEmpty(additional)) {
+      return Collections.singletonList(primary);
+    }
+
+    List<NotificationTarget> targets = new ArrayList<NotificationTarget>();
+    targets.add(primary);
+    try {
+      targets.addAll(parse(additional));
+    } catch (IllegalArgumentException e) {
+      return Collections.singletonList(primary);
+    }
+    return targets;
+  }
+
+  /**
+   * Parses a list of targets, one per line.
+   * @param value The targets
+   * @return The parsed targets, empty if the value is null
+   * @throws IllegalArgumentException if a line is invalid
+   */
+  public static List<NotificationTarget> parse(String value) {
+    List<NotificationTarget> targets = new ArrayList<NotificationTarget>();
+    if (value == null) {
+      return targets;
+    }
+    for (String line : LINE_SPLITTER.split(value.replace('\t', ' '))) {
+      if (!line.startsWith("#")) {
+        targets.add(parseLine(line));
+      }
+    }
+    return targets;
+  }
+
+  private static NotificationTarget parseLine(String line) {
+    String jenkinsBase = null;
+    String cloneType = "http";
+    String cloneUrl = null;
+    boolean ignoreCerts = false;
+    boolean omitHashCode = false;
+    boolean omitBranchName = false;
+    for (String option : OPTION_SPLITTER.split(line)) {
+      if (jenkinsBase == null) {
+        String lower = option.toLowerCase(Locale.ROOT);
+        if (!lower.startsWith("http://") && !lower.startsWith("https://")) {
+          throw new IllegalArgumentException("'" + line
+              + "' doesn't start with the url of a Jenkins instance");
+        }
+        jenkinsBase = option;
+      } else if (option.equals("http") || option.equals("ssh")) {
+        cloneType = option;
+      } else if (option.startsWith(CUSTOM_PREFIX)
+          && option.length() > CUSTOM_PREFIX.length()) {
+        cloneType = "custom";
+        cloneUrl = option.substring(CUSTOM_PREFIX.length());
+      } else if (option.equals("ignoreCerts")) {
+        ignoreCerts = true;
+      } else if (option.equals("omitHashCode")) {
+        omitHashCode = true;
+      } else if (option.equals("omitBranchName")) {
+        omitBranchName = true;
+      } else {
+        throw new IllegalArgumentException("Unknown option '" + option
+            + "' for " + jenkinsBase);
+      }
+    }
+    return new NotificationTarget(jenkinsBase, cloneType, cloneUrl,
+        ignoreCerts, omitHashCode, omitBranchName);
+  }
+
+  /**
+   * Gets the {@code jenkinsBase} property.
+   * @return Base URL for Jenkins instance
+   */
+  public String getJenkinsBase() {
+    return jenkinsBase;
+  }
+
+  /**
+   * Gets the {@code cloneType} property.
+   * @return The repository type
+   */
+  public String getCloneType() {
+    return cloneType;
+  }
+
+  /**
+   * Gets the {@code cloneUrl} property.
+   * @return The repository url, used by the custom type
+   */
+  public String getCloneUrl() {
+    return cloneUrl;
+  }
+
+  /**
+   * Gets the {@code ignoreCerts} property.
+   * @return True if all certs should be allowed
+   */
+  public boolean isIgnoreCerts() {
+    return ignoreCerts;
+  }
+
+  /**
+   * Gets the {@code omitHashCode} property.
+   * @return True if the commit's SHA1 hash code is omitted
+   */
+  public boolean isOmitHashCode() {
+    return omitHashCode;
+  }
+
+  /**
+   * Gets the {@code omitBranchName} property.
+   * @return True if the commit's branch name is omitted
+   */
+  public boolean isOmitBranchName() {
+    return omitBranchName;
+  }
+}
@@ -3,32 +3,77 @@ package com.dragouf.bitbucket.webhook;
 import com.atlassian.bitbucket.hook.repository.RepositoryHook;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
 import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.user.SecurityService;
-import com.atlassian.util.concurrent.ThreadFactories;
+import com.dragouf.bitbucket.webhook.service.CloneUrlService;
+import com.dragouf.bitbucket.webhook.service.ConcreteCloneUrlService;
+import com.dragouf.bitbucket.webhook.service.ConcreteNotificationMetrics;
 import com.dragouf.bitbucket.webhook.service.HttpClientFactory;
-import com.google.common.base.Charsets;
-import com.google.common.io.CharStreams;
+import com.dragouf.bitbucket.webhook.service.NotificationDebouncer;
+import com.dragouf.bitbucket.webhook.service.EndpointCircuitBreaker;
+import com.dragouf.bitbucket.webhook.service.EndpointLimiter;
+import com.dragouf.bitbucket.webhook.service.NotificationExecutor;
+import com.dragouf.bitbucket.webhook.service.NotificationExecutor.SaturationPolicy;
+import com.dragouf.bitbucket.webhook.service.NotificationMetrics;
+import com.dragouf.bitbucket.webhook.service.NotificationOutbox;
+import com.dragouf.bitbucket.webhook.service.ResponseEvaluator;
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.dragouf.bitbucket.webhook.service.SettingsService;
+import com.dragouf.bitbucket.webhook.service.UrlTemplate;
+import com.dragouf.bitbucket.webhook.service.VirtualThreads;
+import com.dragouf.bitbucket.webhook.service.eligibility.EventContext;
+import com.dragouf.bitbucket.webhook.NotificationResult.Outcome;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 /**
  * Service object that does the actual notification.
@@ -36,7 +81,7 @@ import java.util.concurrent.Future;
  * @author Michael Irwin (mikesir87)
  * @author Peter Leibiger (kuhnroyal)
  */
-public class Notifier implements DisposableBean {
+public class Notifier implements DisposableBean, InitializingBean {
 
   /**
    * Key for the repository hook
@@ -78,6 +123,11 @@ public class Notifier implements DisposableBean {
    */
   public static final String HIPCHAT_USER_CONF = "HipchatUser";
 
+  /**
+   * Field name for the custom URL parameters property
+   */
+  public static final String CUSTOM_PARAMETERS = "customParameters";
+
   /**
    * Field name for the ignore committers property
    */
@@ -93,20 +143,211 @@ public class Notifier implements DisposableBean {
    */
   public static final String BRANCH_OPTIONS_BRANCHES = "branchOptionsBranches";
 
+  /**
+   * Field name for the batch ref changes property
+   */
+  public static final String BATCH_REF_CHANGES = "batchRefChanges";
+
+  /**
+   * Field name for the delivery mode property, either
+   * {@link #DELIVERY_NOTIFY_COMMIT} or {@link #DELIVERY_PAYLOAD}
+   */
+  public static final String DELIVERY_MODE = "deliveryMode";
+
+  /**
+   * Delivery mode that sends a notifyCommit GET request, after which Jenkins
+   * polls the repository
+   */
+  public static final String DELIVERY_NOTIFY_COMMIT = "notifyCommit";
+
+  /**
+   * Delivery mode that POSTs a JSON {@link NotificationPayload} describing
+   * the changes
+   */
+  public static final String DELIVERY_PAYLOAD = "payload";
+
+  /**
+   * Field name for the Jenkins instances notified besides the main one, see
+   * {@link NotificationTarget}
+   */
+  public static final String ADDITIONAL_TARGETS = "additionalTargets";
+
+  /**
+   * Field name for the debounce quiet period property, in seconds
+   */
+  public static final String DEBOUNCE_QUIET_PERIOD = "debounceQuietPeriod";
+
+  /**
+   * Field name for the debounce maximum delay property, in seconds
+   */
+  public static final String DEBOUNCE_MAX_DELAY = "debounceMaxDelay";
+
+  /**
+   * Field name for the connect timeout property, in seconds
+   */
+  public static final String CONNECT_TIMEOUT = "connectTimeout";
+
+  /**
+   * Field name for the socket read timeout property, in seconds
+   */
+  public static final String SOCKET_TIMEOUT = "socketTimeout";
+
+  /**
+   * Field name for the total request deadline property, in seconds
+   */
+  public static final String REQUEST_TIMEOUT = "requestTimeout";
+
+  /**
+   * Field name for the connection lease timeout property, in seconds
+   */
+  public static final String LEASE_TIMEOUT = "leaseTimeout";
+
+  /**
+   * Plugin property that switches between pooled, long-lived HttpClients
+   * (the default) and a new HttpClient per notification
+   */
+  public static final String HTTP_POOLED = "plugin.jenkins.webhook.http.pooled";
+
+  /**
+   * Plugin property for the total time a notification request may take,
+   * including connecting and reading the response, in milliseconds
+   */
+  public static final String HTTP_REQUEST_TIMEOUT =
+      "plugin.jenkins.webhook.http.requestTimeout";
+
+  /**
+   * Plugin property for the maximum number of bytes read from a Jenkins
+   * response
+   */
+  public static final String HTTP_MAX_RESPONSE_BYTES =
+      "plugin.jenkins.webhook.http.maxResponseBytes";
+
+  /**
+   * Plugin property that sends notifications with the non-blocking HttpClient
+   * instead of a blocking one
+   */
+  public static final String HTTP_ASYNC = "plugin.jenkins.webhook.http.async";
+
+  /**
+   * Plugin property for the maximum number of notification threads, unless
+   * running on virtual threads
+   */
+  public static final String EXECUTOR_POOL_SIZE =
+      "plugin.jenkins.webhook.executor.poolSize";
+
+  /**
+   * Plugin property for the maximum number of queued notifications
+   */
+  public static final String EXECUTOR_QUEUE_SIZE =
+      "plugin.jenkins.webhook.executor.queueSize";
+
+  /**
+   * Plugin property for the policy applied when the notification queue is
+   * full: drop-oldest, caller-runs or coalesce
+   */
+  public static final String EXECUTOR_SATURATION_POLICY =
+      "plugin.jenkins.webhook.executor.saturationPolicy";
+
+  /**
+   * Plugin property that runs notifications on virtual threads, where the
+   * runtime supports them
+   */
+  public static final String EXECUTOR_VIRTUAL_THREADS =
+      "plugin.jenkins.webhook.executor.virtualThreads";
+
+  /**
+   * Plugin property for the maximum number of notifications running at the
+   * same time when running on virtual threads, each on a thread of its own
+   */
+  public static final String EXECUTOR_MAX_IN_FLIGHT =
+      "plugin.jenkins.webhook.executor.maxInFlight";
+
+  /**
+   * Plugin property for the maximum number of notifications sent at the same
+   * time to one Jenkins when running on virtual threads or sending with the
+   * non-blocking client
+   */
+  public static final String EXECUTOR_MAX_PER_ENDPOINT =
+      "plugin.jenkins.webhook.executor.maxPerEndpoint";
+
+  /**
+   * Plugin property that turns the durable notification outbox on, off by
+   * default since it writes to the journal on the thread that submits the
+   * notification. Without it failed notifications are still retried, but
+   * pending ones are lost on restart.
+   */
+  public static final String OUTBOX_ENABLED =
+      "plugin.jenkins.webhook.outbox.enabled";
+
+  /**
+   * Plugin property for how many times a notification is sent before giving
+   * up
+   */
+  public static final String OUTBOX_MAX_ATTEMPTS =
+      "plugin.jenkins.webhook.outbox.maxAttempts";
+
+  /**
+   * Plugin property for the delay before the first retry, in seconds
+   */
+  public static final String OUTBOX_INITIAL_BACKOFF =
+      "plugin.jenkins.webhook.outbox.initialBackoff";
+
+  /**
+   * Plugin property for the longest delay between retries, in seconds
+   */
+  public static final String OUTBOX_MAX_BACKOFF =
+      "plugin.jenkins.webhook.outbox.maxBackoff";
+
+  /**
+   * Plugin property for the number of consecutive failures after which
+   * notifications to a Jenkins are stopped for a while
+   */
+  public static final String CIRCUIT_FAILURE_THRESHOLD =
+      "plugin.jenkins.webhook.circuitBreaker.failureThreshold";
+
+  /**
+   * Plugin property for how long notifications to a failing Jenkins are
+   * stopped before it is probed again, in seconds
+   */
+  public static final String CIRCUIT_OPEN_DURATION =
+      "plugin.jenkins.webhook.circuitBreaker.openDuration";
+
   private static final Logger LOGGER =
       LoggerFactory.getLogger(Notifier.class);
-  private static final String BASE_URL = "%s?GIT_URL=%s";
-  private static final String HASH_URL_PARAMETER = "&sha1=%s";
-  private static final String BRANCH_URL_PARAMETER = "&GIT_BRANCH=%s";
-  private static final String PULLREQUEST_ID = "&PULLREQUEST_ID=%s";
-  private static final String HIPCHAT_USER = "&HIPCHAT_USER=%s";
+  private static final long MAX_URL_TEMPLATES = 1000L;
+  private static final int DEFAULT_POOL_SIZE = 5;
+  private static final int DEFAULT_QUEUE_SIZE = 500;
+  private static final int DEFAULT_MAX_IN_FLIGHT = 256;
+  private static final int DEFAULT_MAX_PER_ENDPOINT = 10;
+  private static final long DEFAULT_DEBOUNCE_MAX_DELAY = 60L;
+  private static final int DEFAULT_OUTBOX_MAX_ATTEMPTS = 8;
+  private static final long DEFAULT_OUTBOX_INITIAL_BACKOFF = 5L;
+  private static final long DEFAULT_OUTBOX_MAX_BACKOFF = 600L;
+  private static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+  private static final long DEFAULT_CIRCUIT_OPEN_DURATION = 30L;
+  private static final long DEFAULT_REQUEST_TIMEOUT = 60000L;
+  private static final int DEFAULT_MAX_RESPONSE_BYTES = 4096;
+  private static final String OUTBOX_JOURNAL = "jenkins-webhook/outbox.journal";
 
   private final HttpClientFactory httpClientFactory;
   private final SettingsService settingsService;
-  private final ExecutorService executorService;
+  private final NotificationExecutor executorService;
+  private final NotificationDebouncer debouncer;
   private final SecurityService securityService;
-  private final SshScmProtocol scmProtocol;
-  private final HttpScmProtocol httpScmProtocol;
+  private final CloneUrlService cloneUrlService;
+  private final boolean usePooledClients;
+  private final boolean useAsyncClient;
+  private final RepositoryService repositoryService;
+  private final NotificationOutbox outbox;
+  private final ScheduledExecutorService scheduler;
+  private volatile boolean destroyed;
+  private final long requestTimeout;
+  private final ResponseEvaluator responseEvaluator;
+  private final EndpointCircuitBreaker circuitBreaker;
+  private final EndpointLimiter endpointLimiter;
+  private final NotificationMetrics metrics;
+  private final Cache<List<Object>, UrlTemplate> urlTemplates =
+      CacheBuilder.newBuilder().maximumSize(MAX_URL_TEMPLATES).build();
 
   /**
    * Create a new instance
@@ -121,13 +362,236 @@ public class Notifier implements DisposableBean {
                   SecurityService securityService,
                   SshScmProtocol sshScmProtocol,
                   HttpScmProtocol httpScmProtocol) {
+    this(settingsService, httpClientFactory, securityService, sshScmProtocol,
+        httpScmProtocol, null);
+  }
+
+  /**
+   * Create a new instance
+   * @param settingsService Service used to get webhook settings
+   * @param httpClientFactory Factory to generate HttpClients
+   * @param securityService securityService
+   * @param sshScmProtocol generates ssh clone URLs
+   * @param httpScmProtocol generates http clone URLs
+   * @param propertiesService Service used to read the plugin properties
+   */
+  public Notifier(SettingsService settingsService,
+                  HttpClientFactory httpClientFactory,
+                  SecurityService securityService,
+                  SshScmProtocol sshScmProtocol,
+                  HttpScmProtocol httpScmProtocol,
+                  ApplicationPropertiesService propertiesService) {
+    this(settingsService, httpClientFactory, securityService, sshScmProtocol,
+        httpScmProtocol, propertiesService, null);
+  }
+
+  /**
+   * Create a new instance with a durable outbox, which journals notifications
+   * so that pending ones survive a restart. The outbox is only journaled when
+   * {@link #OUTBOX_ENABLED} is set; failed notifications are retried either
+   * way.
+   * @param settingsService Service used to get webhook settings
+   * @param httpClientFactory Factory to generate HttpClients
+   * @param securityService securityService
+   * @param sshScmProtocol generates ssh clone URLs
+   * @param httpScmProtocol generates http clone URLs
+   * @param propertiesService Service used to read the plugin properties
+   * @param repositoryService Service used to find the repositories of
+   * replayed notifications
+   */
+  public Notifier(SettingsService settingsService,
+                  HttpClientFactory httpClientFactory,
+                  SecurityService securityService,
+                  SshScmProtocol sshScmProtocol,
+                  HttpScmProtocol httpScmProtocol,
+                  ApplicationPropertiesService propertiesService,
+                  RepositoryService repositoryService) {
+    this(settingsService, httpClientFactory, securityService, sshScmProtocol,
+        httpScmProtocol, propertiesService, repositoryService, null);
+  }
+
+  /**
+   * Create a new instance with a durable outbox that resolves clone URLs
+   * through a shared, cached service.
+   * @param settingsService Service used to get webhook settings
+   * @param httpClientFactory Factory to generate HttpClients
+   * @param securityService securityService
+   * @param sshScmProtocol generates ssh clone URLs
+   * @param httpScmProtocol generates http clone URLs
+   * @param propertiesService Service used to read the plugin properties
+   * @param repositoryService Service used to find the repositories of
+   * replayed notifications
+   * @param cloneUrlService Service used to get clone URLs, if null one is
+   * created from the SCM protocols
+   */
+  public Notifier(SettingsService settingsService,
+                  HttpClientFactory httpClientFactory,
+                  SecurityService securityService,
+                  SshScmProtocol sshScmProtocol,
+                  HttpScmProtocol httpScmProtocol,
+                  ApplicationPropertiesService propertiesService,
+                  RepositoryService repositoryService,
+                  CloneUrlService cloneUrlService) {
+    this(settingsService, httpClientFactory, securityService, sshScmProtocol,
+        httpScmProtocol, propertiesService, repositoryService, cloneUrlService,
+        null);
+  }
+
+  /**
+   * Create a new instance that records its requests in shared metrics.
+   * @param settingsService Service used to get webhook settings
+   * @param httpClientFactory Factory to generate HttpClients
+   * @param securityService securityService
+   * @param sshScmProtocol generates ssh clone URLs
+   * @param httpScmProtocol generates http clone URLs
+   * @param propertiesService Service used to read the plugin properties
+   * @param repositoryService Service used to find the repositories of
+   * replayed notifications
+   * @param cloneUrlService Service used to get clone URLs, if null one is
+   * created from the SCM protocols
+   * @param metrics Metrics of the notifications, if null they are only kept
+   * by this instance
+   */
+  public Notifier(SettingsService settingsService,
+                  HttpClientFactory httpClientFactory,
+                  SecurityService securityService,
+                  SshScmProtocol sshScmProtocol,
+                  HttpScmProtocol httpScmProtocol,
+                  ApplicationPropertiesService propertiesService,
+                  RepositoryService repositoryService,
+                  CloneUrlService cloneUrlService,
+                  NotificationMetrics metrics) {
 
     this.httpClientFactory = httpClientFactory;
     this.settingsService = settingsService;
-    this.executorService = Executors.newCachedThreadPool(ThreadFactories.namedThreadFactory("JenkinsWebhook", ThreadFactories.Type.DAEMON));
+    ThreadFactory virtualThreads = null;
+    if (propertiesService != null
+        && propertiesService.getPluginProperty(EXECUTOR_VIRTUAL_THREADS, false)) {
+      virtualThreads = VirtualThreads.newThreadFactory("JenkinsWebhook");
+      if (virtualThreads == null) {
+        LOGGER.warn("Virtual threads are not supported by this runtime, "
+            + "sending notifications on platform threads");
+      }
+    }
+    if (propertiesService == null) {
+      this.executorService = new NotificationExecutor("JenkinsWebhook",
+          DEFAULT_POOL_SIZE, DEFAULT_QUEUE_SIZE, SaturationPolicy.CALLER_RUNS);
+    } else if (virtualThreads == null) {
+      this.executorService = new NotificationExecutor("JenkinsWebhook",
+          propertiesService.getPluginProperty(EXECUTOR_POOL_SIZE,
+              DEFAULT_POOL_SIZE),
+          propertiesService.getPluginProperty(EXECUTOR_QUEUE_SIZE,
+              DEFAULT_QUEUE_SIZE),
+          SaturationPolicy.fromString(propertiesService.getPluginProperty(
+              EXECUTOR_SATURATION_POLICY), SaturationPolicy.CALLER_RUNS));
+    } else {
+      // Virtual threads are cheap to block, so many more notifications may
+      // be in flight
+      this.executorService = new NotificationExecutor(
+          propertiesService.getPluginProperty(EXECUTOR_MAX_IN_FLIGHT,
+              DEFAULT_MAX_IN_FLIGHT),
+          propertiesService.getPluginProperty(EXECUTOR_QUEUE_SIZE,
+              DEFAULT_QUEUE_SIZE),
+          SaturationPolicy.fromString(propertiesService.getPluginProperty(
+              EXECUTOR_SATURATION_POLICY), SaturationPolicy.CALLER_RUNS),
+          virtualThreads);
+    }
+    this.debouncer = new NotificationDebouncer(executorService);
+    this.metrics = metrics != null ? metrics : new ConcreteNotificationMetrics();
+    if (this.metrics instanceof ConcreteNotificationMetrics) {
+      ((ConcreteNotificationMetrics) this.metrics).setExecutor(executorService);
+    }
     this.securityService = securityService;
-    this.scmProtocol = sshScmProtocol;
-    this.httpScmProtocol = httpScmProtocol;
+    this.cloneUrlService = cloneUrlService != null ? cloneUrlService
+        : new ConcreteCloneUrlService(sshScmProtocol, httpScmProtocol,
+            securityService);
+    this.usePooledClients = propertiesService == null
+        || propertiesService.getPluginProperty(HTTP_POOLED, true);
+    this.useAsyncClient = propertiesService != null
+        && propertiesService.getPluginProperty(HTTP_ASYNC, false);
+    // Neither virtual threads nor the non-blocking client are bounded by a
+    // small pool, so each Jenkins is protected by its own limit
+    this.endpointLimiter = virtualThreads != null || useAsyncClient
+        ? new EndpointLimiter(propertiesService.getPluginProperty(
+            EXECUTOR_MAX_PER_ENDPOINT, DEFAULT_MAX_PER_ENDPOINT))
+        : null;
+    this.requestTimeout = propertiesService == null ? DEFAULT_REQUEST_TIMEOUT
+        : propertiesService.getPluginProperty(HTTP_REQUEST_TIMEOUT,
+            DEFAULT_REQUEST_TIMEOUT);
+    this.responseEvaluator = new ResponseEvaluator(propertiesService == null
+        ? DEFAULT_MAX_RESPONSE_BYTES
+        : propertiesService.getPluginProperty(HTTP_MAX_RESPONSE_BYTES,
+            DEFAULT_MAX_RESPONSE_BYTES));
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        ThreadFactories.namedThreadFactory("JenkinsWebhookScheduler",
+            ThreadFactories.Type.DAEMON));
+    this.circuitBreaker = propertiesService == null
+        ? new EndpointCircuitBreaker(DEFAULT_CIRCUIT_FAILURE_THRESHOLD,
+            DEFAULT_CIRCUIT_OPEN_DURATION, TimeUnit.SECONDS)
+        : new EndpointCircuitBreaker(
+            propertiesService.getPluginProperty(CIRCUIT_FAILURE_THRESHOLD,
+                DEFAULT_CIRCUIT_FAILURE_THRESHOLD),
+            propertiesService.getPluginProperty(CIRCUIT_OPEN_DURATION,
+                DEFAULT_CIRCUIT_OPEN_DURATION), TimeUnit.SECONDS);
+    this.repositoryService = repositoryService;
+    if (propertiesService == null) {
+      this.outbox = new NotificationOutbox(null, DEFAULT_OUTBOX_MAX_ATTEMPTS,
+          TimeUnit.SECONDS.toMillis(DEFAULT_OUTBOX_INITIAL_BACKOFF),
+          TimeUnit.SECONDS.toMillis(DEFAULT_OUTBOX_MAX_BACKOFF));
+    } else {
+      // Without the journal, failed notifications are retried from memory
+      boolean durable = repositoryService != null
+          && propertiesService.getPluginProperty(OUTBOX_ENABLED, false);
+      this.outbox = new NotificationOutbox(durable
+          ? new File(propertiesService.getHomeDir(), OUTBOX_JOURNAL) : null,
+          propertiesService.getPluginProperty(OUTBOX_MAX_ATTEMPTS,
+              DEFAULT_OUTBOX_MAX_ATTEMPTS),
+          TimeUnit.SECONDS.toMillis(propertiesService.getPluginProperty(
+              OUTBOX_INITIAL_BACKOFF, DEFAULT_OUTBOX_INITIAL_BACKOFF)),
+          TimeUnit.SECONDS.toMillis(propertiesService.getPluginProperty(
+              OUTBOX_MAX_BACKOFF, DEFAULT_OUTBOX_MAX_BACKOFF)));
+    }
+  }
+
+  /**
+   * Replays the notifications that were still pending in the outbox when the
+   * plugin was last stopped.
+   */
+  @Override
+  public void afterPropertiesSet() {
+    List<NotificationOutbox.Entry> entries;
+    try {
+      entries = outbox.replay();
+    } catch (IOException e) {
+      LOGGER.error("Could not replay the notification outbox", e);
+      return;
+    }
+    for (final NotificationOutbox.Entry entry : entries) {
+      final Repository repo = securityService
+          .withPermission(Permission.REPO_READ, "Replaying notifications")
+          .call(() -> repositoryService.getById(entry.getRepositoryId()));
+      if (repo == null) {
+        outbox.acknowledge(entry);
+        continue;
+      }
+      LOGGER.info("Replaying pending notification for repository {} and {}",
+          entry.getRepositoryId(), entry.getRef());
+      submitDurable(repo, entry, retry(repo, entry));
+    }
+  }
+
+  /**
+   * Send notification to Jenkins for the provided repository on a background
+   * thread, without a pull request id.
+   * @param repo The repository to base the notification on.
+   * @param strRef The branch ref related to the commit
+   * @param strSha1 The commit's SHA1 hash code.
+   * @return A future of the text result from Jenkins
+   */
+  @Nonnull
+  public CompletableFuture<NotificationResult> notifyBackground(@Nonnull Repository repo, //CHECKSTYLE:annot
+      String strRef, String strSha1) {
+    return notifyBackground(repo, strRef, strSha1, null);
   }
 
   /**
@@ -136,17 +600,258 @@ public class Notifier implements DisposableBean {
    * @param repo The repository to base the notification on.
    * @param strRef The branch ref related to the commit
    * @param strSha1 The commit's SHA1 hash code.
+   * @return A future of the text result from Jenkins. The future is cancelled
+   * if the notification was dropped because the queue was full.
+   */
+  @Nonnull
+  public CompletableFuture<NotificationResult> notifyBackground(@Nonnull final Repository repo, //CHECKSTYLE:annot
+      final String strRef, final String strSha1, final String prId) {
+    return submit(repo, settingsService.getSettings(repo), strRef, strSha1,
+        prId, new TargetedTask() {
+          @Override
+          public CompletableFuture<NotificationResult> call(
+              Collection<String> targets) {
+            return notifyAsync(repo, settingsService.getRepositoryHook(repo),
+                settingsService.getSettings(repo), strRef, strSha1, prId, null,
+                targets);
+          }
+        });
+  }
+
+  /**
+   * Send notification to Jenkins on a background thread for an event that went
+   * through the eligibility filter chain, without a pull request id.
+   * @param context The event context holding the resolved settings
+   * @param strRef The branch ref related to the commit
+   * @param strSha1 The commit's SHA1 hash code.
    * @return A future of the text result from Jenkins
    */
   @Nonnull
-  public Future<NotificationResult> notifyBackground(@Nonnull final Repository repo, //CHECKSTYLE:annot
+  public CompletableFuture<NotificationResult> notifyBackground(@Nonnull EventContext context, //CHECKSTYLE:annot
+      String strRef, String strSha1) {
+    return notifyBackground(context, strRef, strSha1, null);
+  }
+
+  /**
+   * Send notification to Jenkins on a background thread for an event that went
+   * through the eligibility filter chain. The hook and settings already
+   * resolved in the context are reused instead of being looked up again.
+   * @param context The event context holding the resolved settings
+   * @param strRef The branch ref related to the commit
+   * @param strSha1 The commit's SHA1 hash code.
+   * @param prId The pull request id, may be null
+   * @return A future of the text result from Jenkins. The future is cancelled
+   * if the notification was dropped because the queue was full.
+   */
+  @Nonnull
+  public CompletableFuture<NotificationResult> notifyBackground(@Nonnull EventContext context, //CHECKSTYLE:annot
       final String strRef, final String strSha1, final String prId) {
-    return executorService.submit(new Callable<NotificationResult>() {
+    final Repository repo = context.getRepository();
+    final RepositoryHook hook = context.getRepositoryHook(settingsService);
+    final Settings settings = context.getSettings(settingsService);
+    final String user = context.getUsername();
+    return submit(repo, settings, strRef, strSha1, prId, user, null,
+        new TargetedTask() {
+          @Override
+          public CompletableFuture<NotificationResult> call(
+              Collection<String> targets) {
+            return notifyAsync(repo, hook, settings, strRef, strSha1, prId,
+                user, targets);
+          }
+        });
+  }
+
+  /**
+   * Send a payload to Jenkins on a background thread for an event that went
+   * through the eligibility filter chain. All the ref changes of the payload
+   * are delivered in a single request.
+   * @param context The event context holding the resolved settings
+   * @param payload The payload describing the changes
+   * @return A future of the result from Jenkins. The future is cancelled if
+   * the notification was dropped because the queue was full.
+   */
+  @Nonnull
+  public CompletableFuture<NotificationResult> notifyBackground(@Nonnull EventContext context, //CHECKSTYLE:annot
+      final NotificationPayload payload) {
+    final Repository repo = context.getRepository();
+    final RepositoryHook hook = context.getRepositoryHook(settingsService);
+    final Settings settings = context.getSettings(settingsService);
+    List<NotificationPayload.RefChangeData> refChanges =
+        payload.getRefChanges();
+    String strSha1 = refChanges.size() == 1
+        ? refChanges.get(0).getToHash() : null;
+    return submit(repo, settings, payload.getRefs(), strSha1,
+        payload.getPullRequestId(), null, payload,
+        new TargetedTask() {
+          @Override
+          public CompletableFuture<NotificationResult> call(
+              Collection<String> targets) {
+            return notifyAsync(repo, hook, settings, payload, targets);
+          }
+        });
+  }
+
+  /**
+   * Checks whether a hook delivers notifications as payloads.
+   * @param settings The hook settings, may be null
+   * @return True if the delivery mode is {@link #DELIVERY_PAYLOAD}
+   */
+  public static boolean isPayloadDelivery(Settings settings) {
+    return settings != null
+        && DELIVERY_PAYLOAD.equals(settings.getString(DELIVERY_MODE));
+  }
+
+  private CompletableFuture<NotificationResult> submit(Repository repo,
+      Settings settings, String strRef, String strSha1, String prId,
+      TargetedTask task) {
+    return submit(repo, settings, strRef, strSha1, prId, null, null, task);
+  }
+
+  private CompletableFuture<NotificationResult> submit(Repository repo,
+      Settings settings, String strRef, String strSha1, String prId,
+      String user, NotificationPayload payload, TargetedTask task) {
+    NotificationOutbox.Entry entry = outbox.enqueue(repo.getId(), strRef,
+        strSha1, prId, user, payload == null ? null : payload.toJson());
+    return acknowledgeIfDropped(entry, submit(repo, settings, strRef, prId,
+        payload != null, durable(repo, entry, task)));
+  }
+
+  private CompletableFuture<NotificationResult> submit(Repository repo,
+      Settings settings, String strRef, String prId, boolean payload,
+      Callable<CompletableFuture<NotificationResult>> task) {
+    // Each payload describes its own ref changes, which a later payload
+    // doesn't repeat, so payloads are neither debounced nor coalesced
+    if (payload) {
+      return executorService.submitAsync(null, task);
+    }
+
+    // Hold the notification back when the hook asks for debouncing; only the
+    // latest notification for the repository, ref, pull request and Jenkins
+    // is then sent
+    long quietPeriod = getSeconds(settings, DEBOUNCE_QUIET_PERIOD, 0L);
+    if (quietPeriod > 0) {
+      long maxDelay = Math.max(quietPeriod, getSeconds(settings,
+          DEBOUNCE_MAX_DELAY, DEFAULT_DEBOUNCE_MAX_DELAY));
+      String key = getKey(repo, strRef, prId);
+      return debouncer.submitAsync(key + "@"
+          + settings.getString(JENKINS_BASE), key,
+          task, TimeUnit.SECONDS.toMillis(quietPeriod),
+          TimeUnit.SECONDS.toMillis(maxDelay));
+    }
+    return executorService.submitAsync(getKey(repo, strRef, prId), task);
+  }
+
+  /**
+   * Gets the key of notifications that supersede each other. A pull request
+   * notification never supersedes a push to its branch, or the other way
+   * round.
+   */
+  private static String getKey(Repository repo, String strRef, String prId) {
+    return repo.getId() + ":" + strRef + "#" + prId;
+  }
+
+  /**
+   * Wraps a notification so that its outbox entry is acknowledged once it has
+   * been delivered, or retried with backoff if it failed in a way that may
+   * pass on a later attempt. A retry only notifies the Jenkins instances
+   * whose notification failed.
+   */
+  private Callable<CompletableFuture<NotificationResult>> durable(
+      final Repository repo, final NotificationOutbox.Entry entry,
+      final TargetedTask task) {
+    return new Callable<CompletableFuture<NotificationResult>>() {
+      @Override
+      public CompletableFuture<NotificationResult> call() {
+        final Callable<CompletableFuture<NotificationResult>> retry = this;
+        return task.call(entry.getTargets()).thenApply(result -> {
+          int attempts = entry.recordAttempt();
+          if (result == null || result.isSuccessful()
+              || !result.isRetryable()) {
+            outbox.acknowledge(entry);
+            return result;
+          }
+          long delay = outbox.getRetryDelay(attempts);
+          if (delay < 0) {
+            LOGGER.warn("Giving up on notification for repository {} and {} "
+                + "after {} attempts", repo.getId(), entry.getRef(), attempts);
+            outbox.acknowledge(entry);
+          } else if (!outbox.isDone(entry)) {
+            if (!result.getRetryTargets().isEmpty()) {
+              outbox.retryTargets(entry, result.getRetryTargets());
+            }
+            LOGGER.debug("Retrying notification for repository {} and {} in "
+                + "{} ms", repo.getId(), entry.getRef(), delay);
+            scheduler.schedule(new Runnable() {
+              @Override
+              public void run() {
+                acknowledgeIfDropped(entry, executorService.submitAsync(
+                    getExecutorKey(repo, entry), retry));
+              }
+            }, delay, TimeUnit.MILLISECONDS);
+          }
+          return result;
+        });
+      }
+    };
+  }
+
+  private TargetedTask retry(final Repository repo,
+      final NotificationOutbox.Entry entry) {
+    return new TargetedTask() {
       @Override
-      public NotificationResult call() throws Exception {
-        return Notifier.this.notify(repo, strRef, strSha1, prId);
+      public CompletableFuture<NotificationResult> call(
+          Collection<String> targets) {
+        if (entry.getPayload() != null) {
+          return notifyAsync(repo, settingsService.getRepositoryHook(repo),
+              settingsService.getSettings(repo),
+              NotificationPayload.fromJson(entry.getPayload()), targets);
+        }
+        return notifyAsync(repo, settingsService.getRepositoryHook(repo),
+            settingsService.getSettings(repo), entry.getRef(), entry.getSha1(),
+            entry.getPrId(), entry.getUser(), targets);
+      }
+    };
+  }
+
+  private void submitDurable(Repository repo, NotificationOutbox.Entry entry,
+      TargetedTask task) {
+    acknowledgeIfDropped(entry, executorService.submitAsync(
+        getExecutorKey(repo, entry), durable(repo, entry, task)));
+  }
+
+  private static String getExecutorKey(Repository repo,
+      NotificationOutbox.Entry entry) {
+    return entry.getPayload() == null
+        ? getKey(repo, entry.getRef(), entry.getPrId()) : null;
+  }
+
+  /**
+   * Acknowledges the outbox entry of a notification that had to be dropped,
+   * so that it isn't replayed on every restart. Notifications cancelled
+   * because the plugin is stopping stay in the outbox for the next start.
+   */
+  private CompletableFuture<NotificationResult> acknowledgeIfDropped(
+      final NotificationOutbox.Entry entry,
+      CompletableFuture<NotificationResult> future) {
+    future.whenComplete((result, failure) -> {
+      if (failure instanceof CancellationException && !destroyed) {
+        outbox.acknowledge(entry);
       }
     });
+    return future;
+  }
+
+  /**
+   * Send notification to Jenkins for the provided repository, without a pull
+   * request id.
+   * @param repo The repository to base the notification on.
+   * @param strRef The branch ref related to the commit
+   * @param strSha1 The commit's SHA1 hash code.
+   * @return Text result from Jenkins
+   */
+  public @Nullable NotificationResult notify(@Nonnull Repository repo, //CHECKSTYLE:annot
+      String strRef, String strSha1) {
+    return notify(repo, strRef, strSha1, null);
   }
 
   /**
@@ -158,21 +863,172 @@ public class Notifier implements DisposableBean {
    */
   public @Nullable NotificationResult notify(@Nonnull Repository repo, //CHECKSTYLE:annot
       String strRef, String strSha1, String prId) {
-    final RepositoryHook hook = settingsService.getRepositoryHook(repo);
-    final Settings settings = settingsService.getSettings(repo);
+    return notifyAsync(repo, settingsService.getRepositoryHook(repo),
+        settingsService.getSettings(repo), strRef, strSha1, prId, null, null)
+        .join();
+  }
+
+  private CompletableFuture<NotificationResult> notifyAsync(
+      final Repository repo, RepositoryHook hook, final Settings settings,
+      final String strRef, final String strSha1, final String prId,
+      final String user, Collection<String> targets) {
     if (hook == null || !hook.isEnabled() || settings == null) {
       LOGGER.debug("Hook not configured correctly or not enabled, returning.");
-      return null;
+      return CompletableFuture.completedFuture(null);
+    }
+
+    final String hipchatUser = settings.getString(HIPCHAT_USER_CONF);
+    return notifyTargets(getTargets(settings, targets),
+        target -> send(repo, target.getJenkinsBase(), target.isIgnoreCerts(),
+            target.getCloneType(), target.getCloneUrl(), strRef, strSha1,
+            prId, user, hipchatUser, target.isOmitHashCode(),
+            target.isOmitBranchName(), settings));
+  }
+
+  private CompletableFuture<NotificationResult> notifyAsync(
+      final Repository repo, RepositoryHook hook, final Settings settings,
+      final NotificationPayload payload, Collection<String> targets) {
+    if (hook == null || !hook.isEnabled() || settings == null
+        || payload == null) {
+      LOGGER.debug("Hook not configured correctly or not enabled, returning.");
+      return CompletableFuture.completedFuture(null);
+    }
+
+    return notifyTargets(getTargets(settings, targets),
+        target -> {
+          String body;
+          try {
+            body = payload.toJson(getCloneUrl(repo, target.getCloneType(),
+                target.getCloneUrl()));
+          } catch (Exception e) {
+            LOGGER.error("Error building Jenkins payload", e);
+            return CompletableFuture.completedFuture(new NotificationResult(
+                false, target.getJenkinsBase(), e.getMessage()));
+          }
+          return dispatch(target.getJenkinsBase(), body,
+              target.isIgnoreCerts(), settings);
+        });
+  }
+
+  /**
+   * Notifies every target of a hook in parallel. The first target is
+   * notified on the calling thread, the others on the notification executor,
+   * and their results are combined once all of them have answered.
+   * @param targets The targets to notify
+   * @param notification Notifies a single target
+   * @return A future of the combined result
+   */
+  private CompletableFuture<NotificationResult> notifyTargets(
+      List<NotificationTarget> targets, final Function<NotificationTarget,
+          CompletableFuture<NotificationResult>> notification) {
+    if (targets.isEmpty()) {
+      // The remaining targets were removed from the hook meanwhile
+      return CompletableFuture.completedFuture(null);
+    }
+    if (targets.size() == 1) {
+      return notification.apply(targets.get(0));
+    }
+
+    List<CompletableFuture<NotificationResult>> others =
+        new ArrayList<CompletableFuture<NotificationResult>>();
+    for (final NotificationTarget target : targets.subList(1, targets.size())) {
+      others.add(executorService.submitAsync(null,
+          () -> notification.apply(target)).handle((result, error) ->
+              error == null ? result
+                  : targetFailed(target.getJenkinsBase(), error)));
     }
+    final List<CompletableFuture<NotificationResult>> futures =
+        new ArrayList<CompletableFuture<NotificationResult>>(targets.size());
+    futures.add(notification.apply(targets.get(0)));
+    futures.addAll(others);
+    final List<String> jenkinsBases = new ArrayList<String>(targets.size());
+    for (NotificationTarget target : targets) {
+      jenkinsBases.add(target.getJenkinsBase());
+    }
+
+    return CompletableFuture.allOf(
+        futures.toArray(new CompletableFuture<?>[futures.size()]))
+        .thenApply(ignored -> {
+          List<NotificationResult> results =
+              new ArrayList<NotificationResult>(futures.size());
+          for (CompletableFuture<NotificationResult> future : futures) {
+            results.add(future.join());
+          }
+          return NotificationResult.aggregate(jenkinsBases, results);
+        });
+  }
+
+  /**
+   * Describes why the notification of an additional target completed
+   * exceptionally.
+   */
+  private NotificationResult targetFailed(String jenkinsBase,
+      Throwable error) {
+    Throwable cause = error instanceof CompletionException
+        && error.getCause() != null ? error.getCause() : error;
+    if (cause instanceof CancellationException && destroyed) {
+      return new NotificationResult(false, jenkinsBase,
+          "Notification cancelled, the plugin is stopping", true);
+    }
+    if (cause instanceof RejectedExecutionException
+        || cause instanceof CancellationException) {
+      return new NotificationResult(false, jenkinsBase,
+          "Notification dropped, the queue is full", true);
+    }
+    LOGGER.error("Error notifying Jenkins at '" + jenkinsBase + "'", cause);
+    return new NotificationResult(false, jenkinsBase, cause.getMessage(),
+        true);
+  }
+
+  /**
+   * Gets the targets of a hook to notify.
+   * @param settings The hook settings
+   * @param jenkinsBases The base URLs of the Jenkins instances to notify,
+   * null for all the targets
+   * @return The targets, in the order of the settings
+   */
+  private static List<NotificationTarget> getTargets(Settings settings,
+      Collection<String> jenkinsBases) {
+    List<NotificationTarget> targets = NotificationTarget.fromSettings(settings);
+    if (jenkinsBases == null) {
+      return targets;
+    }
+    List<NotificationTarget> selected = new ArrayList<NotificationTarget>();
+    for (NotificationTarget target : targets) {
+      if (jenkinsBases.contains(target.getJenkinsBase())) {
+        selected.add(target);
+      }
+    }
+    return selected;
+  }
 
-    return notify(repo, settings.getString(JENKINS_BASE),
-        settings.getBoolean(IGNORE_CERTS, false),
-        settings.getString(CLONE_TYPE),
-        settings.getString(CLONE_URL),
-        strRef, strSha1, prId,
-        settings.getString(HIPCHAT_USER_CONF),
-        settings.getBoolean(OMIT_HASH_CODE, false),
-        settings.getBoolean(OMIT_BRANCH_NAME, false));
+  /**
+   * Send notification to Jenkins using the provided settings, without a pull
+   * request id or Hipchat user.
+   * @param repo The repository to base the notification on.
+   * @param jenkinsBase Base URL for Jenkins instance
+   * @param ignoreCerts True if all certs should be allowed
+   * @param cloneType The repository type
+   * @param cloneUrl The repository url
+   * @param strRef The branch ref related to the commit
+   * @param strSha1 The commit's SHA1 hash code.
+   * @param omitHashCode Defines whether the commit's SHA1 hash code is omitted
+   *        in notification to Jenkins.
+   * @param omitBranchName Defines whether the commit's branch name is omitted
+   * @return The notification result.
+   */
+  public @Nullable NotificationResult notify(
+    @Nonnull Repository repo, //CHECKSTYLE:annot
+    String jenkinsBase,
+    boolean ignoreCerts,
+    String cloneType,
+    String cloneUrl,
+    String strRef,
+    String strSha1,
+    boolean omitHashCode,
+    boolean omitBranchName) {
+    return notify(repo, jenkinsBase, ignoreCerts, cloneType, cloneUrl, strRef,
+        strSha1, null, null, omitHashCode, omitBranchName);
   }
 
   /**
@@ -201,54 +1057,310 @@ public class Notifier implements DisposableBean {
     String hipchatUser,
     boolean omitHashCode,
     boolean omitBranchName) {
+    return send(repo, jenkinsBase, ignoreCerts, cloneType, cloneUrl, strRef,
+        strSha1, prId, null, hipchatUser, omitHashCode, omitBranchName, null)
+        .join();
+  }
 
-    HttpClient client = null;
+  private CompletableFuture<NotificationResult> send(Repository repo,
+      String jenkinsBase, boolean ignoreCerts, String cloneType,
+      String cloneUrl, String strRef, String strSha1, String prId,
+      String user, String hipchatUser, boolean omitHashCode,
+      boolean omitBranchName, Settings settings) {
     String url;
-
     try {
         url = getUrl(repo,
-          maybeReplaceSlash(jenkinsBase),
+          jenkinsBase,
           cloneType,
           cloneUrl,
           strRef,
           strSha1,
           prId,
+          user,
           hipchatUser,
           omitHashCode,
-          omitBranchName);
+          omitBranchName,
+          settings == null ? null : settings.getString(CUSTOM_PARAMETERS));
     } catch (Exception e) {
         LOGGER.error("Error getting Jenkins URL", e);
-        return new NotificationResult(false, null, e.getMessage());
+        return CompletableFuture.completedFuture(
+            new NotificationResult(false, null, e.getMessage()));
+    }
+    return dispatch(url, null, ignoreCerts, settings);
+  }
+
+  /**
+   * Sends a request to Jenkins, a GET without body or a POST of the body as
+   * JSON.
+   */
+  private CompletableFuture<NotificationResult> dispatch(String url,
+      String body, boolean ignoreCerts, Settings settings) {
+    if (url == null) {
+      return CompletableFuture.completedFuture(new NotificationResult(false,
+          null, "No Jenkins url is configured"));
+    }
+
+    // Fail fast while the Jenkins is known to be down, the outbox retries
+    // the notification once it is probed back up
+    String endpoint = EndpointCircuitBreaker.getEndpoint(url);
+    if (!circuitBreaker.tryAcquire(endpoint)) {
+      LOGGER.debug("Not notifying {}, too many recent failures", endpoint);
+      metrics.recordOutcome(Outcome.FAILURE);
+      return CompletableFuture.completedFuture(new NotificationResult(false,
+          url, "Jenkins at " + endpoint
+          + " is unavailable after repeated failures", true));
     }
 
+    final long start = System.nanoTime();
+    CompletableFuture<NotificationResult> result = useAsyncClient
+        ? sendLimited(url, body, endpoint, ignoreCerts, settings)
+        : CompletableFuture.completedFuture(
+            sendBlocking(url, body, endpoint, ignoreCerts, settings));
+    return result.whenComplete((sent, error) -> {
+      metrics.recordLatency(endpoint, System.nanoTime() - start);
+      metrics.recordOutcome(sent == null ? Outcome.FAILURE : sent.getOutcome());
+    });
+  }
+
+  private NotificationResult sendBlocking(String url, String body,
+      String endpoint, boolean ignoreCerts, Settings settings) {
+    HttpClient client = null;
+    HttpResponse response = null;
+    ScheduledFuture<?> deadline = null;
+    final AtomicBoolean aborted = new AtomicBoolean();
+    EndpointLimiter.Permit permit = null;
+
+    // Bound the whole request, not just each connect or read
+    long timeout = getRequestTimeout(settings);
     try {
-      client = httpClientFactory.getHttpClient(url.startsWith("https"),
-          ignoreCerts);
+      if (endpointLimiter != null) {
+        long waitStart = System.nanoTime();
+        permit = endpointLimiter.acquire(endpoint, timeout,
+            TimeUnit.MILLISECONDS);
+        if (permit != null && timeout > 0) {
+          // Waiting for the permit counts towards the deadline
+          timeout = getRemainingTimeout(timeout, waitStart);
+          if (timeout <= 0) {
+            permit.release();
+            permit = null;
+          }
+        }
+        if (permit == null) {
+          return tooManyInFlight(url, endpoint);
+        }
+      }
+      client = usePooledClients
+          ? httpClientFactory.getPooledHttpClient(url, ignoreCerts)
+          : httpClientFactory.getHttpClient(url.startsWith("https"),
+              ignoreCerts);
+
+      final HttpRequestBase request = newRequest(url, body);
+      setTimeouts(request, settings);
+      if (timeout > 0) {
+        deadline = scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            aborted.set(true);
+            request.abort();
+          }
+        }, timeout, TimeUnit.MILLISECONDS);
+      }
 
-      HttpResponse response = client.execute(new HttpGet(url));
+      response = client.execute(request);
       LOGGER.debug("Successfully triggered jenkins with url '{}': ", url);
-      InputStream content = response.getEntity().getContent();
-      String responseBody =  CharStreams.toString(
-          new InputStreamReader(content, Charsets.UTF_8));
-      boolean successful = responseBody.startsWith("Scheduled");
-
-      NotificationResult result = new NotificationResult(successful, url,
-              "Jenkins response: " + responseBody);
-      return result;
+      return evaluated(endpoint,
+          responseEvaluator.evaluate(url, request, response, body == null));
     } catch (Exception e) {
-      LOGGER.error("Error triggering jenkins with url '" + url + "'", e);
-      return new NotificationResult(false, url, e.getMessage());
+      return failed(url, endpoint, e, aborted.get());
     } finally {
-      if (client != null) {
+      if (permit != null) {
+        permit.release();
+      }
+      if (deadline != null) {
+        deadline.cancel(false);
+      }
+      if (usePooledClients) {
+        // Hand the connection back to the pool instead of closing it
+        if (response != null) {
+          EntityUtils.consumeQuietly(response.getEntity());
+        }
+      } else if (client != null) {
         client.getConnectionManager().shutdown();
         LOGGER.debug("Successfully shutdown connection");
       }
     }
   }
 
+  /**
+   * Sends a request with the non-blocking client once a permit for the
+   * endpoint is available, without holding a thread while waiting for it.
+   */
+  private CompletableFuture<NotificationResult> sendLimited(final String url,
+      final String body, final String endpoint, final boolean ignoreCerts,
+      Settings settings) {
+    final long timeout = getRequestTimeout(settings);
+    final RequestConfig config = getRequestConfig(settings);
+    if (endpointLimiter == null) {
+      return sendAsync(url, body, endpoint, ignoreCerts, config, timeout);
+    }
+    final long waitStart = System.nanoTime();
+    return endpointLimiter.acquireAsync(endpoint, timeout,
+        TimeUnit.MILLISECONDS, scheduler).thenCompose(permit -> {
+          if (permit == null) {
+            return CompletableFuture.completedFuture(
+                tooManyInFlight(url, endpoint));
+          }
+          // Waiting for the permit counts towards the deadline
+          long remaining = timeout > 0
+              ? getRemainingTimeout(timeout, waitStart) : timeout;
+          if (timeout > 0 && remaining <= 0) {
+            permit.release();
+            return CompletableFuture.completedFuture(
+                tooManyInFlight(url, endpoint));
+          }
+          return sendAsync(url, body, endpoint, ignoreCerts, config,
+              remaining).whenComplete((result, failure) -> permit.release());
+        });
+  }
+
+  /**
+   * Sends a notification with the non-blocking client; no thread waits for
+   * Jenkins to answer.
+   */
+  private CompletableFuture<NotificationResult> sendAsync(final String url,
+      String body, final String endpoint, boolean ignoreCerts,
+      RequestConfig config, long timeout) {
+    final CompletableFuture<NotificationResult> promise =
+        new CompletableFuture<NotificationResult>();
+    final AtomicBoolean aborted = new AtomicBoolean();
+    try {
+      HttpAsyncClient client = httpClientFactory.getAsyncHttpClient(
+          url.startsWith("https") && ignoreCerts);
+      HttpRequestBase request = newRequest(url, body);
+      request.setConfig(config);
+
+      final Future<NotificationResult> exchange = client.execute(
+          HttpAsyncMethods.create(request),
+          responseEvaluator.newAsyncConsumer(url, body == null),
+          new FutureCallback<NotificationResult>() {
+            @Override
+            public void completed(NotificationResult result) {
+              LOGGER.debug("Successfully triggered jenkins with url '{}': ",
+                  url);
+              promise.complete(evaluated(endpoint, result));
+            }
+
+            @Override
+            public void failed(Exception e) {
+              promise.complete(Notifier.this.failed(url, endpoint, e,
+                  aborted.get()));
+            }
+
+            @Override
+            public void cancelled() {
+              promise.complete(Notifier.this.failed(url, endpoint,
+                  new CancellationException("Request cancelled"),
+                  aborted.get()));
+            }
+          });
+
+      // Bound the whole request, not just each connect or read
+      if (timeout > 0) {
+        final ScheduledFuture<?> deadline = scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            aborted.set(true);
+            exchange.cancel(true);
+          }
+        }, timeout, TimeUnit.MILLISECONDS);
+        promise.whenComplete((result, failure) -> deadline.cancel(false));
+      }
+    } catch (Exception e) {
+      promise.complete(failed(url, endpoint, e, false));
+    }
+    return promise;
+  }
+
+  private static NotificationResult tooManyInFlight(String url,
+      String endpoint) {
+    LOGGER.debug("Not notifying {}, too many notifications in flight",
+        endpoint);
+    return new NotificationResult(false, url, "Too many notifications "
+        + "in flight to Jenkins at " + endpoint, true);
+  }
+
+  /**
+   * Deducts the time spent waiting since a start from a request timeout.
+   * @return The time left, in milliseconds, zero or less if there is none
+   */
+  private static long getRemainingTimeout(long timeout, long waitStart) {
+    return timeout - TimeUnit.NANOSECONDS.toMillis(
+        System.nanoTime() - waitStart);
+  }
+
+  private static HttpRequestBase newRequest(String url, String body) {
+    if (body == null) {
+      return new HttpGet(url);
+    }
+    HttpPost request = new HttpPost(url);
+    request.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+    return request;
+  }
+
+  private NotificationResult evaluated(String endpoint,
+      NotificationResult result) {
+    if (result.isRetryable()) {
+      circuitBreaker.onFailure(endpoint);
+    } else {
+      circuitBreaker.onSuccess(endpoint);
+    }
+    return result;
+  }
+
+  private NotificationResult failed(String url, String endpoint, Exception e,
+      boolean aborted) {
+    circuitBreaker.onFailure(endpoint);
+    if (aborted || e instanceof SocketTimeoutException
+        || e instanceof ConnectTimeoutException
+        || e instanceof TimeoutException) {
+      LOGGER.warn("Timed out triggering jenkins with url '{}'", url);
+      return new NotificationResult(Outcome.TIMEOUT, url,
+          aborted ? "Jenkins didn't answer in time" : e.getMessage(), true);
+    }
+    LOGGER.error("Error triggering jenkins with url '" + url + "'", e);
+    return new NotificationResult(false, url, e.getMessage(), true);
+  }
+
+  /**
+   * Gets the executor background notifications run on, for other work that
+   * belongs to a notification.
+   * @return The notification executor
+   */
+  public Executor getExecutor() {
+    return executorService;
+  }
+
+  /**
+   * A background notification that can be sent to some of the targets of a
+   * hook only.
+   */
+  private interface TargetedTask {
+    /**
+     * Starts the notification.
+     * @param targets The base URLs of the Jenkins instances to notify, null
+     * for all the targets of the hook
+     * @return A future of the result
+     */
+    CompletableFuture<NotificationResult> call(Collection<String> targets);
+  }
+
   @Override
   public void destroy() {
+    destroyed = true;
+    scheduler.shutdownNow();
+    debouncer.shutdownNow();
     executorService.shutdownNow();
+    outbox.close();
   }
 
   /**
@@ -273,49 +1385,133 @@ public class Notifier implements DisposableBean {
                           final String hipchatUser,
                           boolean omitHashCode,
                           boolean omitBranchName) {
-      String cloneUrl = customCloneUrl;
-    // Older installs won't have a cloneType value - treat as custom
-    if (cloneType != null && !cloneType.equals("custom")) {
-      switch (cloneType) {
-        case "http":
-          cloneUrl = httpScmProtocol.getCloneUrl(repository, null);
-          break;
-        case "ssh":
-          // The user just pushed to the repo, so must have had access
-          cloneUrl = securityService.withPermission(Permission.REPO_READ, "Retrieving SSH clone url")
-            .call(() -> scmProtocol.getCloneUrl(repository, null));
-          break;
-        default:
-          LOGGER.error("Unknown cloneType: {}", cloneType);
-          throw new RuntimeException("Unknown cloneType: " + cloneType);
-      }
-    }
-
-    StringBuilder url = new StringBuilder();
+    return getUrl(repository, jenkinsBase, cloneType, customCloneUrl, strRef,
+        strSha1, prId, null, hipchatUser, omitHashCode, omitBranchName, null);
+  }
 
-    url.append(String.format(BASE_URL, jenkinsBase, urlEncode(cloneUrl)));
+  /**
+   * Get the url for notifying of Jenkins, with custom parameters. The static
+   * part of the url is compiled once per hook configuration.
+   * @param repository The repository to base the request to.
+   * @param jenkinsBase The base URL of the Jenkins instance
+   * @param cloneType The type used to clone the repository
+   * @param customCloneUrl The url used for cloning the repository
+   * @param strRef The branch ref related to the commit
+   * @param strSha1 The commit's SHA1 hash code.
+   * @param user The name of the user who caused the notification, may be
+   *        null
+   * @param omitHashCode Defines whether the commit's SHA1 hash code is omitted
+   *        in notification to Jenkins.
+   * @param customParameters Parameters appended to the url, see
+   *        {@link UrlTemplate}
+   * @return The url to use for notifying Jenkins
+   */
+  protected String getUrl(final Repository repository,
+                          final String jenkinsBase,
+                          final String cloneType,
+                          final String customCloneUrl,
+                          final String strRef,
+                          final String strSha1,
+                          final String prId,
+                          final String user,
+                          final String hipchatUser,
+                          boolean omitHashCode,
+                          boolean omitBranchName,
+                          final String customParameters) {
+    String cloneUrl = getCloneUrl(repository, cloneType, customCloneUrl);
+    List<Object> key = Arrays.<Object>asList(jenkinsBase, cloneUrl,
+        hipchatUser, omitHashCode, omitBranchName, customParameters);
+    UrlTemplate template = urlTemplates.getIfPresent(key);
+    if (template == null) {
+      template = UrlTemplate.compile(jenkinsBase, cloneUrl, hipchatUser,
+          omitHashCode, omitBranchName, customParameters);
+      urlTemplates.put(key, template);
+    }
+    return template.expand(strRef, strSha1, prId, user);
+  }
 
-    if(strRef != null && !omitBranchName)
-      url.append(String.format(BRANCH_URL_PARAMETER, urlEncode(strRef)));
-    if(strSha1 != null && !omitHashCode)
-      url.append(String.format(HASH_URL_PARAMETER, strSha1));
-    if(omitBranchName)
-      url.append(String.format(PULLREQUEST_ID, prId));
+  private String getCloneUrl(Repository repository, String cloneType,
+      String customCloneUrl) {
+    // Older installs won't have a cloneType value - treat as custom
+    if (cloneType == null || cloneType.equals("custom")) {
+      return customCloneUrl;
+    }
+    switch (cloneType) {
+      case "http":
+        return cloneUrlService.getHttpCloneUrl(repository);
+      case "ssh":
+        return cloneUrlService.getSshCloneUrl(repository);
+      default:
+        LOGGER.error("Unknown cloneType: {}", cloneType);
+        throw new RuntimeException("Unknown cloneType: " + cloneType);
+    }
+  }
 
-    url.append(String.format(HIPCHAT_USER, hipchatUser));
+  private long getRequestTimeout(Settings settings) {
+    long hookTimeout = getSeconds(settings, REQUEST_TIMEOUT, 0L);
+    return hookTimeout > 0 ? TimeUnit.SECONDS.toMillis(hookTimeout)
+        : requestTimeout;
+  }
 
-    return url.toString();
+  /**
+   * Gets the configuration of a non-blocking request, i.e. the client
+   * timeouts overridden with the ones set on the hook, if any.
+   */
+  private RequestConfig getRequestConfig(Settings settings) {
+    RequestConfig defaults = httpClientFactory.getDefaultRequestConfig();
+    RequestConfig.Builder config = RequestConfig.copy(
+        defaults == null ? RequestConfig.DEFAULT : defaults);
+    long connectTimeout = getSeconds(settings, CONNECT_TIMEOUT, 0L);
+    if (connectTimeout > 0) {
+      config.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(connectTimeout));
+    }
+    long socketTimeout = getSeconds(settings, SOCKET_TIMEOUT, 0L);
+    if (socketTimeout > 0) {
+      config.setSocketTimeout((int) TimeUnit.SECONDS.toMillis(socketTimeout));
+    }
+    long leaseTimeout = getSeconds(settings, LEASE_TIMEOUT, 0L);
+    if (leaseTimeout > 0) {
+      config.setConnectionRequestTimeout(
+          (int) TimeUnit.SECONDS.toMillis(leaseTimeout));
+    }
+    return config.build();
   }
 
-  private static String urlEncode(String string) {
-    try {
-      return URLEncoder.encode(string, "UTF-8");
-    } catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e);
+  /**
+   * Overrides the client timeouts for a request with the ones set on the
+   * hook, if any.
+   */
+  private static void setTimeouts(HttpRequestBase request,
+      Settings settings) {
+    HttpParams params = request.getParams();
+    long connectTimeout = getSeconds(settings, CONNECT_TIMEOUT, 0L);
+    if (connectTimeout > 0) {
+      HttpConnectionParams.setConnectionTimeout(params,
+          (int) TimeUnit.SECONDS.toMillis(connectTimeout));
+    }
+    long socketTimeout = getSeconds(settings, SOCKET_TIMEOUT, 0L);
+    if (socketTimeout > 0) {
+      HttpConnectionParams.setSoTimeout(params,
+          (int) TimeUnit.SECONDS.toMillis(socketTimeout));
+    }
+    long leaseTimeout = getSeconds(settings, LEASE_TIMEOUT, 0L);
+    if (leaseTimeout > 0) {
+      HttpClientParams.setConnectionManagerTimeout(params,
+          TimeUnit.SECONDS.toMillis(leaseTimeout));
     }
   }
 
-  private String maybeReplaceSlash(String string) {
-    return string == null ? null : string.replaceFirst("/$", "");
+  private static long getSeconds(Settings settings, String key,
+      long defaultValue) {
+    String value = settings == null ? null : settings.getString(key);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Ignoring invalid value '{}' for {}", value, key);
+      return defaultValue;
+    }
   }
 }
@@ -10,6 +10,8 @@ import com.atlassian.bitbucket.setting.RepositorySettingsValidator;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.setting.SettingsValidationErrors;
 import com.google.common.base.Strings;
+import com.dragouf.bitbucket.webhook.service.UrlTemplate;
+import com.dragouf.bitbucket.webhook.service.eligibility.BranchMatcher;
 
 /**
  * Note that hooks can implement RepositorySettingsValidator directly.
@@ -52,6 +54,27 @@ public class PostReceiveHook implements AsyncPostReceiveRepositoryHook,
         }
     }
 
+    try {
+      NotificationTarget.parse(settings.getString(Notifier.ADDITIONAL_TARGETS));
+    } catch (IllegalArgumentException e) {
+      errors.addFieldError(Notifier.ADDITIONAL_TARGETS,
+          "Invalid additional target: " + e.getMessage());
+    }
+
+    try {
+      UrlTemplate.validate(settings.getString(Notifier.CUSTOM_PARAMETERS));
+    } catch (IllegalArgumentException e) {
+      errors.addFieldError(Notifier.CUSTOM_PARAMETERS,
+          "Invalid custom parameters: " + e.getMessage());
+    }
+
+    validateSeconds(settings, errors, Notifier.DEBOUNCE_QUIET_PERIOD);
+    validateSeconds(settings, errors, Notifier.DEBOUNCE_MAX_DELAY);
+    validateSeconds(settings, errors, Notifier.CONNECT_TIMEOUT);
+    validateSeconds(settings, errors, Notifier.SOCKET_TIMEOUT);
+    validateSeconds(settings, errors, Notifier.REQUEST_TIMEOUT);
+    validateSeconds(settings, errors, Notifier.LEASE_TIMEOUT);
+
     final String branchSelection = settings.getString(Notifier.BRANCH_OPTIONS);
 
     if (!Strings.isNullOrEmpty(branchSelection)) {
@@ -59,7 +82,29 @@ public class PostReceiveHook implements AsyncPostReceiveRepositoryHook,
       if (Strings.isNullOrEmpty(branches)) {
         errors.addFieldError(Notifier.BRANCH_OPTIONS_BRANCHES,
             "No branches were specified to " + branchSelection);
+      } else {
+        try {
+          BranchMatcher.compile(branches);
+        } catch (IllegalArgumentException e) {
+          errors.addFieldError(Notifier.BRANCH_OPTIONS_BRANCHES,
+              "Invalid branch pattern: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void validateSeconds(Settings settings,
+      SettingsValidationErrors errors, String field) {
+    final String value = settings.getString(field);
+    if (Strings.isNullOrEmpty(value)) {
+      return;
+    }
+    try {
+      if (Long.parseLong(value.trim()) < 0) {
+        errors.addFieldError(field, "The number of seconds can't be negative");
       }
+    } catch (NumberFormatException e) {
+      errors.addFieldError(field, "The number of seconds must be a number");
     }
   }
 }
@@ -1,11 +1,15 @@
 package com.dragouf.bitbucket.webhook;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.atlassian.event.api.EventListener;
 import com.atlassian.bitbucket.event.pull.PullRequestEvent;
 import com.atlassian.bitbucket.event.pull.PullRequestOpenedEvent;
 import com.atlassian.bitbucket.event.pull.PullRequestReopenedEvent;
 import com.atlassian.bitbucket.event.pull.PullRequestRescopedEvent;
-import com.atlassian.bitbucket.pull.PullRequestService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.setting.Settings;
 import com.dragouf.bitbucket.webhook.service.SettingsService;
 import com.dragouf.bitbucket.webhook.service.eligibility.EligibilityFilterChain;
 import com.dragouf.bitbucket.webhook.service.eligibility.EventContext;
@@ -18,10 +22,12 @@ import com.dragouf.bitbucket.webhook.service.eligibility.EventContext;
  */
 public class PullRequestEventListener {
 
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(PullRequestEventListener.class);
+
   private final EligibilityFilterChain filterChain;
   private final Notifier notifier;
   private final SettingsService settingsService;
-  private final PullRequestService pullRequestService;
 
   /**
    * Construct a new instance.
@@ -31,29 +37,24 @@ public class PullRequestEventListener {
    */
   public PullRequestEventListener(EligibilityFilterChain filterChain,
                            Notifier notifier,
-                           SettingsService settingsService,
-                           PullRequestService pullRequestService) {
+                           SettingsService settingsService) {
     this.filterChain = filterChain;
     this.notifier = notifier;
     this.settingsService = settingsService;
-    this.pullRequestService = pullRequestService;
   }
 
   @EventListener
   public void onPullRequestRescoped(PullRequestRescopedEvent event) {
     final String previousHash = event.getPreviousFromHash();
     final String currentHash = event.getPullRequest().getFromRef().getLatestCommit();
-    final Integer prId = event.getPullRequest().getToRef().getRepository().getId();
-
-    //Using getToRef() here is required; pull requests are "scoped" to their target repository
-    final Boolean canMerge = pullRequestService.canMerge(prId, event.getPullRequest().getId()).isConflicted();
 
     //Only trigger this if the pull request was rescoped on the from side, meaning new changes
     //were pushed. Doing this after every change on the to side will cause severe performance
     //degradation for your Stash server because it happens too often
-    if (!previousHash.equals(currentHash) && canMerge) {
+    //The merge check is left to the IsMergeableEligibilityFilter so it only runs once
+    if (!previousHash.equals(currentHash)) {
       //Notify Jenkins; the pull request refs have been updated
-      handleEvent(event);
+      handleEvent(event, previousHash);
     }
   }
 
@@ -81,26 +82,69 @@ public class PullRequestEventListener {
    * @param event The event to be handled
    */
   protected void handleEvent(PullRequestEvent event) {
-    if (settingsService.getSettings(event.getPullRequest().getToRef()
-        .getRepository()) == null) {
+    handleEvent(event, null);
+  }
+
+  /**
+   * Actually handles the event that was triggered.
+   * @param event The event to be handled
+   * @param previousHash The commit the pull request pointed to before a
+   * rescope, null for new pull requests
+   */
+  private void handleEvent(PullRequestEvent event, String previousHash) {
+    final EventContext context = createContext(event);
+    if (context == null) {
       return;
     }
 
-    String strRef = event.getPullRequest()
+    final String strRef = event.getPullRequest()
       .getFromRef()
       .toString()
       .replaceFirst(".*refs/heads/", "");
 
-    String strSha1 = event.getPullRequest().getFromRef().getLatestCommit();
+    final String strSha1 = event.getPullRequest().getFromRef().getLatestCommit();
+
+    final String prId = Long.toString(event.getPullRequest().getId());
 
-    EventContext context = new EventContext(event,
-        event.getPullRequest().getToRef().getRepository(),
-        event.getUser().getName());
+    final NotificationPayload payload;
+    if (Notifier.isPayloadDelivery(context.getSettings(settingsService))) {
+      payload = new NotificationPayload(context.getRepository(),
+          context.getUsername(), prId).addRefChange(
+              event.getPullRequest().getFromRef().getId(), previousHash,
+              strSha1, previousHash == null ? "ADD" : "UPDATE");
+    } else {
+      payload = null;
+    }
 
-    String prId = Long.toString(event.getPullRequest().getId());
+    // Merge checks run on the notifier's executor so that the event
+    // dispatcher thread isn't held up by git operations
+    filterChain.shouldDeliverNotificationAsync(context, notifier.getExecutor())
+        .whenComplete((deliver, error) -> {
+          if (error != null) {
+            LOGGER.error("Error checking eligibility of pull request " + prId,
+                error);
+          } else if (deliver && payload != null) {
+            notifier.notifyBackground(context, payload);
+          } else if (deliver) {
+            notifier.notifyBackground(context, strRef, strSha1, prId);
+          }
+        });
+  }
 
-    if (filterChain.shouldDeliverNotification(context))
-      notifier.notifyBackground(context.getRepository(), strRef, strSha1, prId);
+  /**
+   * Creates the context shared by the filter chain and the notifier.
+   * @param event The pull request event
+   * @return The context, or null if the hook is not configured
+   */
+  private EventContext createContext(PullRequestEvent event) {
+    final Repository repository =
+        event.getPullRequest().getToRef().getRepository();
+    final Settings settings = settingsService.getSettings(repository);
+    if (settings == null) {
+      return null;
+    }
+    return new EventContext(event, repository, event.getUser().getName(),
+        settings);
   }
 
 }
@@ -1,13 +1,18 @@
 package com.dragouf.bitbucket.webhook;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 import com.atlassian.bitbucket.event.pull.PullRequestMergedEvent;
 import com.atlassian.bitbucket.event.repository.RepositoryPushEvent;
+import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.event.api.EventListener;
 import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
 import com.atlassian.bitbucket.repository.RefChange;
 import com.dragouf.bitbucket.webhook.service.eligibility.EligibilityFilterChain;
 import com.dragouf.bitbucket.webhook.service.eligibility.EventContext;
 import com.dragouf.bitbucket.webhook.service.SettingsService;
+import com.google.common.base.Joiner;
 
 /**
  * Listener for repository change events.
@@ -16,10 +21,19 @@ import com.dragouf.bitbucket.webhook.service.SettingsService;
  * notified upon {@link RepositoryPushEvent} and {@link PullRequestMergedEvent}
  * events.
  *
+ * Each ref change is evaluated on its own by the filter chain, through a
+ * context scoped to that ref. When the hook is configured to batch ref
+ * changes, all the accepted refs of a single event are then sent to Jenkins
+ * in one notification. The same goes for hooks that deliver a
+ * {@link NotificationPayload}, which describes every accepted ref change of
+ * the event.
+ *
  * @author Michael Irwin (mikesir87)
  */
 public class RepositoryChangeListener {
 
+  private static final Joiner BRANCH_JOINER = Joiner.on(',');
+
   private final EligibilityFilterChain filterChain;
   private final Notifier notifier;
   private final SettingsService settingsService;
@@ -43,24 +57,95 @@ public class RepositoryChangeListener {
    */
   @EventListener
   public void onRefsChangedEvent(RepositoryRefsChangedEvent event) {
-    if (settingsService.getSettings(event.getRepository()) == null) {
+    final Settings settings = settingsService.getSettings(event.getRepository());
+    if (settings == null) {
+      return;
+    }
+
+    EventContext context = createContext(event, settings);
+    if (Notifier.isPayloadDelivery(settings)) {
+      notifyPayload(event, context);
+      return;
+    }
+    if (settings.getBoolean(Notifier.BATCH_REF_CHANGES, false)) {
+      notifyBatch(event, context);
       return;
     }
 
     for (RefChange refCh : event.getRefChanges()) {
-      // Get branch name from ref 'refs/heads/master'
-      // NOTE - this method gets called for tag changes too
-      // In that case, the 'branch' passed to Jenkins will
-      // be "refs/tags/TAGNAME"
-      // Leaving this as-is in case someone relies on that...
-      String strRef = refCh.getRef().getId().replaceFirst("refs/heads/", "");
+      String strRef = getRef(refCh);
       String strSha1 = refCh.getToHash();
 
-      String user = (event.getUser() != null) ? event.getUser().getName() : null;
-      EventContext context = new EventContext(event, event.getRepository(), user);
+      EventContext refContext = context.forRefChange(refCh);
+      if (filterChain.shouldDeliverNotification(refContext))
+        notifier.notifyBackground(refContext, strRef, strSha1);
+    }
+  }
+
+  /**
+   * Sends a single notification covering every ref of the event the filter
+   * chain accepts. The refs are passed to Jenkins as a comma separated branch
+   * list; the SHA1 is only sent when a single ref is accepted.
+   * @param event The event to be handled
+   * @param context The context shared by the filters and the notifier
+   */
+  private void notifyBatch(RepositoryRefsChangedEvent event,
+      EventContext context) {
+    Set<String> refs = new LinkedHashSet<String>();
+    String strSha1 = null;
+    for (RefChange refCh : event.getRefChanges()) {
+      if (filterChain.shouldDeliverNotification(context.forRefChange(refCh))) {
+        refs.add(getRef(refCh));
+        strSha1 = refCh.getToHash();
+      }
+    }
+    if (refs.isEmpty()) {
+      return;
+    }
+
+    if (refs.size() == 1) {
+      notifier.notifyBackground(context, refs.iterator().next(), strSha1);
+    } else {
+      notifier.notifyBackground(context, BRANCH_JOINER.join(refs), null);
+    }
+  }
 
-      if (filterChain.shouldDeliverNotification(context))
-        notifier.notifyBackground(context.getRepository(), strRef, strSha1);
+  /**
+   * Sends a single payload describing every ref change of the event the
+   * filter chain accepts.
+   * @param event The event to be handled
+   * @param context The context shared by the filters and the notifier
+   */
+  private void notifyPayload(RepositoryRefsChangedEvent event,
+      EventContext context) {
+    NotificationPayload payload = new NotificationPayload(
+        event.getRepository(), context.getUsername(), null);
+    for (RefChange refCh : event.getRefChanges()) {
+      if (filterChain.shouldDeliverNotification(context.forRefChange(refCh))) {
+        payload.addRefChange(refCh.getRef().getId(), refCh.getFromHash(),
+            refCh.getToHash(),
+            refCh.getType() == null ? null : refCh.getType().name());
+      }
     }
+    if (payload.getRefChanges().isEmpty()) {
+      return;
+    }
+
+    notifier.notifyBackground(context, payload);
+  }
+
+  private EventContext createContext(RepositoryRefsChangedEvent event,
+      Settings settings) {
+    String user = (event.getUser() != null) ? event.getUser().getName() : null;
+    return new EventContext(event, event.getRepository(), user, settings);
+  }
+
+  private String getRef(RefChange refCh) {
+    // Get branch name from ref 'refs/heads/master'
+    // NOTE - this method gets called for tag changes too
+    // In that case, the 'branch' passed to Jenkins will
+    // be "refs/tags/TAGNAME"
+    // Leaving this as-is in case someone relies on that...
+    return refCh.getRef().getId().replaceFirst("refs/heads/", "");
   }
 }
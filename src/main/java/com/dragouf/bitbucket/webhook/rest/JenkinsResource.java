@@ -9,13 +9,12 @@ import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.rest.RestResource;
 import com.atlassian.bitbucket.rest.util.ResourcePatterns;
 import com.atlassian.bitbucket.rest.util.RestUtils;
-import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
-import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
 import com.atlassian.bitbucket.ssh.SshConfiguration;
 import com.atlassian.bitbucket.ssh.SshConfigurationService;
 import com.atlassian.plugins.rest.common.security.AnonymousAllowed;
 import com.dragouf.bitbucket.webhook.NotificationResult;
 import com.dragouf.bitbucket.webhook.Notifier;
+import com.dragouf.bitbucket.webhook.service.CloneUrlService;
 import com.sun.jersey.spi.resource.Singleton;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,8 +46,7 @@ public class JenkinsResource extends RestResource {
   private final Notifier notifier;
   private final PermissionValidationService permissionService;
   private final SshConfigurationService sshConfigurationService;
-  private final SshScmProtocol sshScmProtocol;
-  private final HttpScmProtocol httpScmProtocol;
+  private final CloneUrlService cloneUrlService;
   private final RefService refService;
 
   /**
@@ -57,23 +55,20 @@ public class JenkinsResource extends RestResource {
    * @param permissionValidationService A permission validation service
    * @param i18nService i18n Service
    * @param sshConfigurationService Service to check whether SSH is enabled
-   * @param sshScmProtocol Resolver for generating default SSH clone url
-   * @param httpScmProtocol Resolver for generating default http clone url
+   * @param cloneUrlService Service to get the default clone urls
    * @param refService Service to get default Branch
    */
   public JenkinsResource(Notifier notifier,
                          PermissionValidationService permissionValidationService,
                          I18nService i18nService,
                          SshConfigurationService sshConfigurationService,
-                         SshScmProtocol sshScmProtocol,
-                         HttpScmProtocol httpScmProtocol,
+                         CloneUrlService cloneUrlService,
                          RefService refService) {
     super(i18nService);
     this.notifier = notifier;
     this.permissionService = permissionValidationService;
     this.sshConfigurationService = sshConfigurationService;
-    this.sshScmProtocol = sshScmProtocol;
-    this.httpScmProtocol = httpScmProtocol;
+    this.cloneUrlService = cloneUrlService;
     this.refService = refService;
   }
 
@@ -158,11 +153,11 @@ public class JenkinsResource extends RestResource {
     Map<String, String> data = new HashMap<String, String>();
     SshConfiguration sshConfiguration = sshConfigurationService.getConfiguration();
     if (sshConfiguration.isEnabled()) {
-        data.put("ssh", sshScmProtocol.getCloneUrl(repository, null));
+        data.put("ssh", cloneUrlService.getSshCloneUrl(repository));
     } else {
         data.put("ssh", "");
     }
-    data.put("http", httpScmProtocol.getCloneUrl(repository, null));
+    data.put("http", cloneUrlService.getHttpCloneUrl(repository));
     return Response.ok(data).build();
   }
 
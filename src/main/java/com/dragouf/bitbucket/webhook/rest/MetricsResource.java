@@ -0,0 +1,96 @@
+package com.dragouf.bitbucket.webhook.rest;
+
+import com.atlassian.bitbucket.i18n.I18nService;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionValidationService;
+import com.atlassian.bitbucket.rest.RestResource;
+import com.atlassian.bitbucket.rest.util.RestUtils;
+import com.dragouf.bitbucket.webhook.service.LatencyHistogram;
+import com.dragouf.bitbucket.webhook.service.NotificationMetrics;
+import com.sun.jersey.spi.resource.Singleton;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * REST resource exposing the notification metrics, e.g. for alerting when
+ * notifications start to fail or pile up.
+ */
+@Path("metrics")
+@Produces({ RestUtils.APPLICATION_JSON_UTF8 })
+@Singleton
+public class MetricsResource extends RestResource {
+
+  private final NotificationMetrics metrics;
+  private final PermissionValidationService permissionService;
+
+  /**
+   * Creates Rest resource for the notification metrics
+   * @param metrics The notification metrics
+   * @param permissionValidationService A permission validation service
+   * @param i18nService i18n Service
+   */
+  public MetricsResource(NotificationMetrics metrics,
+                         PermissionValidationService permissionValidationService,
+                         I18nService i18nService) {
+    super(i18nService);
+    this.metrics = metrics;
+    this.permissionService = permissionValidationService;
+  }
+
+  /**
+   * Get a snapshot of the notification metrics. Latencies are in
+   * milliseconds.
+   * @return The metrics
+   */
+  @GET
+  public Response getMetrics() {
+    permissionService.validateForGlobal(Permission.ADMIN);
+
+    Map<String, Object> outcomes = new LinkedHashMap<String, Object>();
+    outcomes.put("success", metrics.getSuccessCount());
+    outcomes.put("failure", metrics.getFailureCount());
+    outcomes.put("timeout", metrics.getTimeoutCount());
+
+    Map<String, Object> executor = new LinkedHashMap<String, Object>();
+    executor.put("queueDepth", metrics.getQueueDepth());
+    executor.put("activeThreads", metrics.getActiveThreads());
+
+    Map<String, Object> endpoints = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, LatencyHistogram> entry
+        : metrics.getEndpointLatencies().entrySet()) {
+      endpoints.put(entry.getKey(), toMap(entry.getValue()));
+    }
+
+    Map<String, Object> filters = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, LatencyHistogram> entry
+        : metrics.getFilterLatencies().entrySet()) {
+      filters.put(entry.getKey(), toMap(entry.getValue()));
+    }
+
+    Map<String, Object> data = new LinkedHashMap<String, Object>();
+    data.put("outcomes", outcomes);
+    data.put("executor", executor);
+    data.put("endpoints", endpoints);
+    data.put("filterRejections", metrics.getFilterRejections());
+    data.put("filters", filters);
+    data.put("settingsLookup", toMap(metrics.getSettingsLookupLatency()));
+    return Response.ok(data).build();
+  }
+
+  private static Map<String, Object> toMap(LatencyHistogram histogram) {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    map.put("count", histogram.getCount());
+    map.put("mean", histogram.getMeanMillis());
+    map.put("p50", histogram.getPercentileMillis(50d));
+    map.put("p95", histogram.getPercentileMillis(95d));
+    map.put("p99", histogram.getPercentileMillis(99d));
+    map.put("max", histogram.getMaxMillis());
+    map.put("buckets", histogram.getBuckets());
+    return map;
+  }
+}
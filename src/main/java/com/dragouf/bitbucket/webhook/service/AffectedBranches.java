@@ -0,0 +1,140 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+
+/**
+ * The branches affected by a set of ref changes, extracted in a single pass
+ * into compact arrays so that they can be iterated any number of times
+ * without looking at the ref changes again. Deleted refs and refs that are
+ * not branches, such as tags, are left out.
+ */
+public final class AffectedBranches implements Iterable<String> {
+
+  /**
+   * Prefix of the ids of branch refs
+   */
+  public static final String REFS_HEADS = "refs/heads/";
+
+  private static final AffectedBranches NONE =
+      new AffectedBranches(new String[0], new RefChangeType[0], 0);
+
+  private final String[] names;
+  private final RefChangeType[] types;
+  private final int size;
+
+  private AffectedBranches(String[] names, RefChangeType[] types, int size) {
+    this.names = names;
+    this.types = types;
+    this.size = size;
+  }
+
+  /**
+   * Extracts the branches affected by the ref changes.
+   * @param refChanges The ref changes
+   * @return The affected branches, in the order of the ref changes
+   */
+  public static AffectedBranches of(Collection<RefChange> refChanges) {
+    if (refChanges == null || refChanges.isEmpty()) {
+      return NONE;
+    }
+    String[] names = new String[refChanges.size()];
+    RefChangeType[] types = new RefChangeType[names.length];
+    int size = 0;
+    for (RefChange refChange : refChanges) {
+      String name = getBranch(refChange);
+      if (name != null && size < names.length) {
+        names[size] = name;
+        types[size] = refChange.getType();
+        size++;
+      }
+    }
+    return size == 0 ? NONE : new AffectedBranches(names, types, size);
+  }
+
+  /**
+   * Gets the branch affected by a single ref change, allocating nothing but
+   * the branch name.
+   * @param refChange The ref change
+   * @return The branch name, without {@code refs/heads/}, or null if the ref
+   * was deleted or is not a branch
+   */
+  public static String getBranch(RefChange refChange) {
+    if (refChange.getType() == RefChangeType.DELETE) {
+      return null;
+    }
+    String id = refChange.getRef().getId();
+    if (id == null || !id.startsWith(REFS_HEADS)) {
+      return null;
+    }
+    return id.substring(REFS_HEADS.length());
+  }
+
+  /**
+   * Gets the number of affected branches.
+   * @return The number of branches
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the name of an affected branch.
+   * @param index The index of the branch
+   * @return The branch name, without {@code refs/heads/}
+   */
+  public String getName(int index) {
+    checkIndex(index);
+    return names[index];
+  }
+
+  /**
+   * Gets the type of the change of an affected branch.
+   * @param index The index of the branch
+   * @return The type of the ref change
+   */
+  public RefChangeType getType(int index) {
+    checkIndex(index);
+    return types[index];
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Iterator<String> iterator() {
+    return new Iterator<String>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      @Override
+      public String next() {
+        if (next >= size) {
+          throw new NoSuchElementException();
+        }
+        return names[next++];
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(Arrays.copyOf(names, size));
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: "
+          + size);
+    }
+  }
+}
@@ -15,8 +15,17 @@ public interface BranchEvaluator {
   /**
    * Get the branches that were affected by the provided refChanges.
    * @param refChanges The changes due to a commit.
-   * @return The branch names affected by the provided ref changes.
+   * @return The branch names affected by the provided ref changes, which
+   * may be iterated several times.
    */
   Iterable<String> getBranches(Collection<RefChange> refChanges);
 
+  /**
+   * Get the branch affected by a single refChange, the common case of a push
+   * updating a single branch.
+   * @param refChange The change due to a commit.
+   * @return The branch name, or null if no branch was affected.
+   */
+  String getBranch(RefChange refChange);
+
 }
@@ -0,0 +1,24 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import com.atlassian.bitbucket.repository.Repository;
+
+/**
+ * Resolves the default clone URLs of a repository, which Jenkins is notified
+ * with when the hook doesn't use a custom clone URL.
+ */
+public interface CloneUrlService {
+
+  /**
+   * Get the HTTP clone URL of the provided repository.
+   * @param repository The repository
+   * @return The HTTP clone URL
+   */
+  String getHttpCloneUrl(Repository repository);
+
+  /**
+   * Get the SSH clone URL of the provided repository.
+   * @param repository The repository
+   * @return The SSH clone URL
+   */
+  String getSshCloneUrl(Repository repository);
+}
@@ -0,0 +1,165 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryModifiedEvent;
+import com.atlassian.bitbucket.event.server.ApplicationConfigurationChangedEvent;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
+import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.event.api.EventListener;
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Default implementation of the {@link CloneUrlService} interface that caches
+ * the clone URLs per repository and clone type.
+ *
+ * Clone URLs only change when a repository is renamed or moved, or when the
+ * base URL or the SSH configuration of the server changes. Entries are dropped
+ * when a repository is modified or deleted and when the application
+ * configuration changes; the time-to-live bounds how stale an entry can get
+ * on other cluster nodes and after SSH configuration changes, which raise no
+ * such events.
+ */
+public class ConcreteCloneUrlService implements CloneUrlService {
+
+  /**
+   * Plugin property for the maximum number of clone URLs in the cache
+   */
+  public static final String CACHE_MAX_SIZE =
+      "plugin.jenkins.webhook.cloneUrl.cache.maxSize";
+
+  /**
+   * Plugin property for how long cached clone URLs are kept, in seconds
+   */
+  public static final String CACHE_TTL =
+      "plugin.jenkins.webhook.cloneUrl.cache.ttl";
+
+  private static final long DEFAULT_CACHE_MAX_SIZE = 2000L;
+  private static final long DEFAULT_CACHE_TTL = 600L;
+  private static final String HTTP = "http";
+  private static final String SSH = "ssh";
+
+  private final SshScmProtocol sshScmProtocol;
+  private final HttpScmProtocol httpScmProtocol;
+  private final SecurityService securityService;
+  private final Cache<String, String> cloneUrls;
+
+  /**
+   * Create a new instance.
+   * @param sshScmProtocol generates ssh clone URLs
+   * @param httpScmProtocol generates http clone URLs
+   * @param securityService The security service
+   */
+  public ConcreteCloneUrlService(SshScmProtocol sshScmProtocol,
+      HttpScmProtocol httpScmProtocol, SecurityService securityService) {
+    this(sshScmProtocol, httpScmProtocol, securityService,
+        DEFAULT_CACHE_MAX_SIZE, DEFAULT_CACHE_TTL);
+  }
+
+  /**
+   * Create a new instance, reading the cache configuration from the plugin
+   * properties.
+   * @param sshScmProtocol generates ssh clone URLs
+   * @param httpScmProtocol generates http clone URLs
+   * @param securityService The security service
+   * @param propertiesService Service used to read the plugin properties
+   */
+  public ConcreteCloneUrlService(SshScmProtocol sshScmProtocol,
+      HttpScmProtocol httpScmProtocol, SecurityService securityService,
+      ApplicationPropertiesService propertiesService) {
+    this(sshScmProtocol, httpScmProtocol, securityService,
+        propertiesService.getPluginProperty(CACHE_MAX_SIZE,
+            DEFAULT_CACHE_MAX_SIZE),
+        propertiesService.getPluginProperty(CACHE_TTL, DEFAULT_CACHE_TTL));
+  }
+
+  private ConcreteCloneUrlService(SshScmProtocol sshScmProtocol,
+      HttpScmProtocol httpScmProtocol, SecurityService securityService,
+      long maxSize, long ttl) {
+    this.sshScmProtocol = sshScmProtocol;
+    this.httpScmProtocol = httpScmProtocol;
+    this.securityService = securityService;
+    this.cloneUrls = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttl, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getHttpCloneUrl(final Repository repository) {
+    return get(repository, HTTP, () ->
+        httpScmProtocol.getCloneUrl(repository, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getSshCloneUrl(final Repository repository) {
+    // Notifications are sent on behalf of users who had access to the repo
+    return get(repository, SSH, () -> securityService
+        .withPermission(Permission.REPO_READ, "Retrieving SSH clone url")
+        .call(() -> sshScmProtocol.getCloneUrl(repository, null)));
+  }
+
+  /**
+   * Drops the cached clone URLs of a renamed or moved repository.
+   * @param event The repository event
+   */
+  @EventListener
+  public void onRepositoryModified(RepositoryModifiedEvent event) {
+    invalidate(event.getRepository());
+  }
+
+  /**
+   * Drops the cached clone URLs of a deleted repository.
+   * @param event The repository event
+   */
+  @EventListener
+  public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+    invalidate(event.getRepository());
+  }
+
+  /**
+   * Drops all cached clone URLs when the application configuration, e.g. the
+   * base URL, changes.
+   * @param event The configuration event
+   */
+  @EventListener
+  public void onApplicationConfigurationChanged(
+      ApplicationConfigurationChangedEvent<?> event) {
+    cloneUrls.invalidateAll();
+  }
+
+  private String get(Repository repository, String cloneType,
+      Supplier<String> resolver) {
+    String key = getKey(repository.getId(), cloneType);
+    String cloneUrl = cloneUrls.getIfPresent(key);
+    if (cloneUrl == null) {
+      cloneUrl = resolver.get();
+      if (cloneUrl != null) {
+        cloneUrls.put(key, cloneUrl);
+      }
+    }
+    return cloneUrl;
+  }
+
+  private void invalidate(Repository repository) {
+    cloneUrls.invalidate(getKey(repository.getId(), HTTP));
+    cloneUrls.invalidate(getKey(repository.getId(), SSH));
+  }
+
+  private static String getKey(int repositoryId, String cloneType) {
+    return repositoryId + ":" + cloneType;
+  }
+}
@@ -1,21 +1,49 @@
 package com.dragouf.bitbucket.webhook.service;
 
+import java.io.IOException;
 import java.net.ProxySelector;
+import java.net.URI;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.BasicClientConnectionManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.util.concurrent.ThreadFactories;
 
 /**
  * An implementation of the {@link HttpClientFactory} that returns a
@@ -26,14 +54,174 @@ import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
  * If setup of the "trust-all" HttpClient fails, a non-configured HttpClient
  * is returned.
  *
+ * Pooled clients are kept for the lifetime of the plugin, one per Jenkins host
+ * and trust-all flag, and their idle connections are evicted periodically.
+ * Non-blocking clients are kept for the lifetime of the plugin too, one per
+ * trust-all flag.
+ *
  * @author Michael Irwin (mikesir87)
  *
  */
-public class ConcreteHttpClientFactory implements HttpClientFactory {
+public class ConcreteHttpClientFactory implements HttpClientFactory,
+    DisposableBean {
+
+  /**
+   * Plugin property for the maximum number of connections per pool
+   */
+  public static final String POOL_MAX_TOTAL =
+      "plugin.jenkins.webhook.http.pool.maxTotal";
+
+  /**
+   * Plugin property for the maximum number of connections per route
+   */
+  public static final String POOL_MAX_PER_ROUTE =
+      "plugin.jenkins.webhook.http.pool.maxPerRoute";
+
+  /**
+   * Plugin property for how long an idle connection may be kept alive when
+   * Jenkins doesn't say otherwise, in milliseconds
+   */
+  public static final String POOL_KEEP_ALIVE =
+      "plugin.jenkins.webhook.http.pool.keepAlive";
+
+  /**
+   * Plugin property for how long a connection may sit idle in the pool before
+   * being evicted, in milliseconds
+   */
+  public static final String POOL_IDLE_TIMEOUT =
+      "plugin.jenkins.webhook.http.pool.idleTimeout";
+
+  /**
+   * Plugin property for how long to wait for a connection to Jenkins to be
+   * established, in milliseconds
+   */
+  public static final String CONNECT_TIMEOUT =
+      "plugin.jenkins.webhook.http.connectTimeout";
+
+  /**
+   * Plugin property for how long to wait for data from Jenkins once
+   * connected, in milliseconds
+   */
+  public static final String SOCKET_TIMEOUT =
+      "plugin.jenkins.webhook.http.socketTimeout";
+
+  /**
+   * Plugin property for how long to wait for a connection from the pool, in
+   * milliseconds
+   */
+  public static final String LEASE_TIMEOUT =
+      "plugin.jenkins.webhook.http.leaseTimeout";
+
+  /**
+   * Plugin property for the number of I/O threads of the non-blocking client
+   */
+  public static final String ASYNC_IO_THREADS =
+      "plugin.jenkins.webhook.http.async.ioThreads";
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ConcreteHttpClientFactory.class);
 
   private static final Integer HTTP_PORT = 80;
   private static final Integer HTTPS_PORT = 443;
 
+  private static final int DEFAULT_MAX_TOTAL = 20;
+  private static final int DEFAULT_MAX_PER_ROUTE = 5;
+  private static final long DEFAULT_KEEP_ALIVE = 30000L;
+  private static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+  private static final long MIN_EVICTION_INTERVAL = 1000L;
+  private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+  private static final int DEFAULT_SOCKET_TIMEOUT = 30000;
+  private static final long DEFAULT_LEASE_TIMEOUT = 5000L;
+  private static final int DEFAULT_IO_THREADS = 2;
+
+  private final ConcurrentMap<String, DefaultHttpClient> pooledClients =
+      new ConcurrentHashMap<String, DefaultHttpClient>();
+  private final int maxTotal;
+  private final int maxPerRoute;
+  private final long keepAlive;
+  private final long idleTimeout;
+  private final int connectTimeout;
+  private final int socketTimeout;
+  private final long leaseTimeout;
+  private final int ioThreads;
+  private final ConcurrentMap<Boolean, CloseableHttpAsyncClient> asyncClients =
+      new ConcurrentHashMap<Boolean, CloseableHttpAsyncClient>();
+  private ScheduledExecutorService evictor;
+
+  /**
+   * Create a new instance using the default pool configuration.
+   */
+  public ConcreteHttpClientFactory() {
+    this(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE, DEFAULT_KEEP_ALIVE,
+        DEFAULT_IDLE_TIMEOUT);
+  }
+
+  /**
+   * Create a new instance, reading the pool configuration from the plugin
+   * properties.
+   * @param propertiesService Service used to read the plugin properties
+   */
+  public ConcreteHttpClientFactory(
+      ApplicationPropertiesService propertiesService) {
+    this(propertiesService.getPluginProperty(POOL_MAX_TOTAL, DEFAULT_MAX_TOTAL),
+        propertiesService.getPluginProperty(POOL_MAX_PER_ROUTE,
+            DEFAULT_MAX_PER_ROUTE),
+        propertiesService.getPluginProperty(POOL_KEEP_ALIVE,
+            DEFAULT_KEEP_ALIVE),
+        propertiesService.getPluginProperty(POOL_IDLE_TIMEOUT,
+            DEFAULT_IDLE_TIMEOUT),
+        propertiesService.getPluginProperty(CONNECT_TIMEOUT,
+            DEFAULT_CONNECT_TIMEOUT),
+        propertiesService.getPluginProperty(SOCKET_TIMEOUT,
+            DEFAULT_SOCKET_TIMEOUT),
+        propertiesService.getPluginProperty(LEASE_TIMEOUT,
+            DEFAULT_LEASE_TIMEOUT),
+        propertiesService.getPluginProperty(ASYNC_IO_THREADS,
+            DEFAULT_IO_THREADS));
+  }
+
+  /**
+   * Create a new instance with the provided pool configuration.
+   * @param maxTotal The maximum number of connections per pool
+   * @param maxPerRoute The maximum number of connections per route
+   * @param keepAlive Default keep-alive duration, in milliseconds
+   * @param idleTimeout Time after which idle connections are evicted, in
+   * milliseconds
+   */
+  protected ConcreteHttpClientFactory(int maxTotal, int maxPerRoute,
+      long keepAlive, long idleTimeout) {
+    this(maxTotal, maxPerRoute, keepAlive, idleTimeout,
+        DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, DEFAULT_LEASE_TIMEOUT,
+        DEFAULT_IO_THREADS);
+  }
+
+  /**
+   * Create a new instance with the provided pool and timeout configuration.
+   * @param maxTotal The maximum number of connections per pool
+   * @param maxPerRoute The maximum number of connections per route
+   * @param keepAlive Default keep-alive duration, in milliseconds
+   * @param idleTimeout Time after which idle connections are evicted, in
+   * milliseconds
+   * @param connectTimeout Time to wait for a connection to be established, in
+   * milliseconds
+   * @param socketTimeout Time to wait for data once connected, in milliseconds
+   * @param leaseTimeout Time to wait for a connection from the pool, in
+   * milliseconds
+   * @param ioThreads The number of I/O threads of the non-blocking client
+   */
+  protected ConcreteHttpClientFactory(int maxTotal, int maxPerRoute,
+      long keepAlive, long idleTimeout, int connectTimeout, int socketTimeout,
+      long leaseTimeout, int ioThreads) {
+    this.maxTotal = maxTotal;
+    this.maxPerRoute = maxPerRoute;
+    this.keepAlive = keepAlive;
+    this.idleTimeout = idleTimeout;
+    this.connectTimeout = connectTimeout;
+    this.socketTimeout = socketTimeout;
+    this.leaseTimeout = leaseTimeout;
+    this.ioThreads = Math.max(1, ioThreads);
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -43,6 +231,88 @@ public class ConcreteHttpClientFactory implements HttpClientFactory {
     return createHttpClient(usingSsl && trustAllCerts);
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public HttpClient getPooledHttpClient(String url, Boolean trustAllCerts)
+      throws Exception {
+    URI uri = URI.create(url);
+    boolean useConfigured = "https".equalsIgnoreCase(uri.getScheme())
+        && trustAllCerts;
+    String key = uri.getHost() + (useConfigured ? "#trustAll" : "");
+
+    DefaultHttpClient client = pooledClients.get(key);
+    if (client == null) {
+      DefaultHttpClient created = createPooledHttpClient(useConfigured);
+      client = pooledClients.putIfAbsent(key, created);
+      if (client == null) {
+        client = created;
+        startEvictor();
+      } else {
+        created.getConnectionManager().shutdown();
+      }
+    }
+    return client;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public HttpAsyncClient getAsyncHttpClient(Boolean trustAllCerts)
+      throws Exception {
+    CloseableHttpAsyncClient client = asyncClients.get(trustAllCerts);
+    if (client == null) {
+      CloseableHttpAsyncClient created = createAsyncHttpClient(trustAllCerts);
+      client = asyncClients.putIfAbsent(trustAllCerts, created);
+      if (client == null) {
+        client = created;
+        client.start();
+      } else {
+        created.close();
+      }
+    }
+    return client;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public RequestConfig getDefaultRequestConfig() {
+    return RequestConfig.custom()
+        .setConnectTimeout(connectTimeout)
+        .setSocketTimeout(socketTimeout)
+        .setConnectionRequestTimeout((int) leaseTimeout)
+        .build();
+  }
+
+  /**
+   * Shuts down every pooled and non-blocking client along with the idle
+   * connection evictor.
+   */
+  @Override
+  public void destroy() {
+    synchronized (this) {
+      if (evictor != null) {
+        evictor.shutdownNow();
+      }
+    }
+    for (DefaultHttpClient client : pooledClients.values()) {
+      client.getConnectionManager().shutdown();
+    }
+    pooledClients.clear();
+    for (CloseableHttpAsyncClient client : asyncClients.values()) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        LOGGER.warn("Could not close non-blocking HttpClient", e);
+      }
+    }
+    asyncClients.clear();
+  }
+
   /**
    * Create a new HttpClient.
    * @param useConfigured True if the client should be configured to accept any
@@ -65,9 +335,78 @@ public class ConcreteHttpClientFactory implements HttpClientFactory {
 
     client.setRoutePlanner(new ProxySelectorRoutePlanner(schemeRegistry,
         ProxySelector.getDefault()));
+    setTimeouts(client);
+    return client;
+  }
+
+  /**
+   * Create a new HttpClient on top of a pooling connection manager.
+   * @param useConfigured True if the client should be configured to accept any
+   * certificate.
+   * @return The requested HttpClient
+   * @throws Exception
+   */
+  protected DefaultHttpClient createPooledHttpClient(boolean useConfigured)
+      throws Exception {
+    SchemeRegistry schemeRegistry = useConfigured
+        ? createScheme(createContext())
+        : SchemeRegistryFactory.createDefault();
+
+    PoolingClientConnectionManager connectionManager =
+        new PoolingClientConnectionManager(schemeRegistry);
+    connectionManager.setMaxTotal(maxTotal);
+    connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+    DefaultHttpClient client = new DefaultHttpClient(connectionManager);
+    client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+      @Override
+      public long getKeepAliveDuration(HttpResponse response,
+          HttpContext context) {
+        long duration = super.getKeepAliveDuration(response, context);
+        return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+      }
+    });
+    client.setRoutePlanner(new ProxySelectorRoutePlanner(schemeRegistry,
+        ProxySelector.getDefault()));
+    setTimeouts(client);
     return client;
   }
 
+  /**
+   * Create a new non-blocking HttpClient. It has its own connection pool,
+   * shared by all Jenkins hosts, and is not started yet.
+   * @param useConfigured True if the client should be configured to accept any
+   * certificate.
+   * @return The requested HttpClient
+   * @throws Exception
+   */
+  protected CloseableHttpAsyncClient createAsyncHttpClient(
+      boolean useConfigured) throws Exception {
+    HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+        .setDefaultIOReactorConfig(IOReactorConfig.custom()
+            .setIoThreadCount(ioThreads)
+            .build())
+        .setThreadFactory(ThreadFactories.namedThreadFactory(
+            "JenkinsWebhookIO", ThreadFactories.Type.DAEMON))
+        .setMaxConnTotal(maxTotal)
+        .setMaxConnPerRoute(maxPerRoute)
+        .setDefaultRequestConfig(getDefaultRequestConfig())
+        .setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+          @Override
+          public long getKeepAliveDuration(HttpResponse response,
+              HttpContext context) {
+            long duration = super.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+          }
+        })
+        .setRoutePlanner(
+            new SystemDefaultRoutePlanner(ProxySelector.getDefault()));
+    if (useConfigured) {
+      builder.setSSLContext(createContext());
+    }
+    return builder.build();
+  }
+
   /**
    * Creates an SSL context
    * @return The SSL context
@@ -100,4 +439,35 @@ public class ConcreteHttpClientFactory implements HttpClientFactory {
     return schemeRegistry;
   }
 
+  /**
+   * Sets the default timeouts of a client. A notification can override them
+   * through the parameters of its request.
+   */
+  private void setTimeouts(DefaultHttpClient client) {
+    HttpParams params = client.getParams();
+    HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+    HttpConnectionParams.setSoTimeout(params, socketTimeout);
+    HttpClientParams.setConnectionManagerTimeout(params, leaseTimeout);
+  }
+
+  private synchronized void startEvictor() {
+    if (evictor != null) {
+      return;
+    }
+    long interval = Math.max(MIN_EVICTION_INTERVAL, idleTimeout / 2);
+    evictor = Executors.newSingleThreadScheduledExecutor(
+        ThreadFactories.namedThreadFactory("JenkinsWebhookConnectionEvictor",
+            ThreadFactories.Type.DAEMON));
+    evictor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        for (DefaultHttpClient client : pooledClients.values()) {
+          client.getConnectionManager().closeExpiredConnections();
+          client.getConnectionManager().closeIdleConnections(idleTimeout,
+              TimeUnit.MILLISECONDS);
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
 }
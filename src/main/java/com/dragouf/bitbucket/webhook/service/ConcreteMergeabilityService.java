@@ -0,0 +1,134 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestMergeability;
+import com.atlassian.bitbucket.pull.PullRequestService;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Default implementation of the {@link MergeabilityService} interface that
+ * caches the result of {@link PullRequestService#canMerge(int, long)} by
+ * repository, pull request, from commit and to commit. Concurrent checks of
+ * the same commits wait for a single merge check instead of starting their
+ * own.
+ */
+public class ConcreteMergeabilityService implements MergeabilityService {
+
+  /**
+   * Plugin property for the maximum number of cached merge checks
+   */
+  public static final String CACHE_MAX_SIZE =
+      "plugin.jenkins.webhook.mergeability.cache.maxSize";
+
+  /**
+   * Plugin property for how long merge checks are cached, in seconds
+   */
+  public static final String CACHE_TTL =
+      "plugin.jenkins.webhook.mergeability.cache.ttl";
+
+  private static final long DEFAULT_CACHE_MAX_SIZE = 1000L;
+  private static final long DEFAULT_CACHE_TTL = 600L;
+
+  private final LoadingCache<MergeKey, PullRequestMergeability> cache;
+
+  /**
+   * Create a new instance.
+   * @param pullRequestService Service that runs the merge checks
+   * @param securityService Service used to run the merge checks from
+   * background threads, which have no authenticated user
+   */
+  public ConcreteMergeabilityService(PullRequestService pullRequestService,
+      SecurityService securityService) {
+    this(pullRequestService, securityService, DEFAULT_CACHE_MAX_SIZE,
+        DEFAULT_CACHE_TTL);
+  }
+
+  /**
+   * Create a new instance, reading the cache configuration from the plugin
+   * properties.
+   * @param pullRequestService Service that runs the merge checks
+   * @param securityService Service used to run the merge checks from
+   * background threads, which have no authenticated user
+   * @param propertiesService Service used to read the plugin properties
+   */
+  public ConcreteMergeabilityService(PullRequestService pullRequestService,
+      SecurityService securityService,
+      ApplicationPropertiesService propertiesService) {
+    this(pullRequestService, securityService,
+        propertiesService.getPluginProperty(CACHE_MAX_SIZE,
+            DEFAULT_CACHE_MAX_SIZE),
+        propertiesService.getPluginProperty(CACHE_TTL, DEFAULT_CACHE_TTL));
+  }
+
+  private ConcreteMergeabilityService(
+      final PullRequestService pullRequestService,
+      final SecurityService securityService, long maxSize, long ttl) {
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttl, TimeUnit.SECONDS)
+        .build(new CacheLoader<MergeKey, PullRequestMergeability>() {
+          @Override
+          public PullRequestMergeability load(final MergeKey key)
+              throws Exception {
+            return securityService
+                .withPermission(Permission.REPO_READ,
+                    "Checking pull request mergeability")
+                .call(() -> pullRequestService.canMerge(key.repositoryId,
+                    key.pullRequestId));
+          }
+        });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public PullRequestMergeability canMerge(PullRequest pullRequest) {
+    //Using getToRef() here is required; pull requests are "scoped" to their target repository
+    return cache.getUnchecked(new MergeKey(
+        pullRequest.getToRef().getRepository().getId(), pullRequest.getId(),
+        pullRequest.getFromRef().getLatestCommit(),
+        pullRequest.getToRef().getLatestCommit()));
+  }
+
+  private static final class MergeKey {
+
+    private final int repositoryId;
+    private final long pullRequestId;
+    private final String fromHash;
+    private final String toHash;
+
+    private MergeKey(int repositoryId, long pullRequestId, String fromHash,
+        String toHash) {
+      this.repositoryId = repositoryId;
+      this.pullRequestId = pullRequestId;
+      this.fromHash = fromHash;
+      this.toHash = toHash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof MergeKey)) {
+        return false;
+      }
+      MergeKey other = (MergeKey) obj;
+      return repositoryId == other.repositoryId
+          && pullRequestId == other.pullRequestId
+          && Objects.equal(fromHash, other.fromHash)
+          && Objects.equal(toHash, other.toHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(repositoryId, pullRequestId, fromHash, toHash);
+    }
+  }
+}
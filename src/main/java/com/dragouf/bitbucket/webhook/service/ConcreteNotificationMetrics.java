@@ -0,0 +1,253 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.dragouf.bitbucket.webhook.NotificationResult.Outcome;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Default implementation of the {@link NotificationMetrics} interface, which
+ * registers itself with the platform MBean server once the plugin is started.
+ * Endpoints that haven't been notified for an hour are forgotten.
+ */
+public class ConcreteNotificationMetrics implements NotificationMetrics,
+    InitializingBean, DisposableBean {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ConcreteNotificationMetrics.class);
+
+  private static final long MAX_ENDPOINTS = 1000L;
+
+  private final Map<Outcome, LongAdder> outcomes =
+      new ConcurrentHashMap<Outcome, LongAdder>();
+  private final Cache<String, LatencyHistogram> endpointLatencies =
+      CacheBuilder.newBuilder()
+          .maximumSize(MAX_ENDPOINTS)
+          .expireAfterAccess(1, TimeUnit.HOURS)
+          .build();
+  private final ConcurrentMap<String, LongAdder> filterRejections =
+      new ConcurrentHashMap<String, LongAdder>();
+  private final ConcurrentMap<String, LatencyHistogram> filterLatencies =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private final LatencyHistogram settingsLookupLatency = new LatencyHistogram();
+  private volatile NotificationExecutor executor;
+  private ObjectName objectName;
+
+  /**
+   * Create a new instance.
+   */
+  public ConcreteNotificationMetrics() {
+    for (Outcome outcome : Outcome.values()) {
+      outcomes.put(outcome, new LongAdder());
+    }
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server, replacing those of
+   * a previous instance of the plugin.
+   */
+  @Override
+  public void afterPropertiesSet() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(new StandardMBean(this,
+          NotificationMetricsMXBean.class, true), name);
+      objectName = name;
+    } catch (JMException e) {
+      LOGGER.warn("Could not register the notification metrics with JMX", e);
+    }
+  }
+
+  /**
+   * Unregisters the metrics from the platform MBean server.
+   */
+  @Override
+  public void destroy() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      LOGGER.debug("Could not unregister the notification metrics", e);
+    }
+    objectName = null;
+  }
+
+  @Override
+  public void recordOutcome(Outcome outcome) {
+    outcomes.get(outcome).increment();
+  }
+
+  @Override
+  public void recordLatency(String endpoint, long nanos) {
+    LatencyHistogram histogram = endpointLatencies.getIfPresent(endpoint);
+    if (histogram == null) {
+      histogram = endpointLatencies.asMap()
+          .computeIfAbsent(endpoint, key -> new LatencyHistogram());
+    }
+    histogram.record(nanos);
+  }
+
+  @Override
+  public void recordFilterRejection(Class<?> filter) {
+    filterRejections.computeIfAbsent(filter.getSimpleName(),
+        key -> new LongAdder()).increment();
+  }
+
+  @Override
+  public void recordFilterLatency(Class<?> filter, long nanos) {
+    filterLatencies.computeIfAbsent(filter.getSimpleName(),
+        key -> new LatencyHistogram()).record(nanos);
+  }
+
+  @Override
+  public void recordSettingsLookup(long nanos) {
+    settingsLookupLatency.record(nanos);
+  }
+
+  /**
+   * Sets the executor whose queue depth and active threads are reported.
+   * @param executor The notification executor
+   */
+  public void setExecutor(NotificationExecutor executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  public Map<String, LatencyHistogram> getEndpointLatencies() {
+    return new TreeMap<String, LatencyHistogram>(endpointLatencies.asMap());
+  }
+
+  @Override
+  public Map<String, LatencyHistogram> getFilterLatencies() {
+    return new TreeMap<String, LatencyHistogram>(filterLatencies);
+  }
+
+  @Override
+  public LatencyHistogram getSettingsLookupLatency() {
+    return settingsLookupLatency;
+  }
+
+  @Override
+  public long getSuccessCount() {
+    return outcomes.get(Outcome.SUCCESS).sum();
+  }
+
+  @Override
+  public long getFailureCount() {
+    return outcomes.get(Outcome.FAILURE).sum();
+  }
+
+  @Override
+  public long getTimeoutCount() {
+    return outcomes.get(Outcome.TIMEOUT).sum();
+  }
+
+  @Override
+  public int getQueueDepth() {
+    NotificationExecutor current = executor;
+    return current == null ? 0 : current.getQueueDepth();
+  }
+
+  @Override
+  public int getActiveThreads() {
+    NotificationExecutor current = executor;
+    return current == null ? 0 : current.getActiveCount();
+  }
+
+  @Override
+  public Map<String, Long> getEndpointRequestCounts() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, LatencyHistogram> entry
+        : endpointLatencies.asMap().entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getCount());
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Double> getEndpointMeanLatencies() {
+    Map<String, Double> result = new TreeMap<String, Double>();
+    for (Map.Entry<String, LatencyHistogram> entry
+        : endpointLatencies.asMap().entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getMeanMillis());
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getEndpointP95Latencies() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, LatencyHistogram> entry
+        : endpointLatencies.asMap().entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getPercentileMillis(95d));
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getEndpointMaxLatencies() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, LatencyHistogram> entry
+        : endpointLatencies.asMap().entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getMaxMillis());
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getFilterRejections() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, LongAdder> entry : filterRejections.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().sum());
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Double> getFilterMeanLatencies() {
+    Map<String, Double> result = new TreeMap<String, Double>();
+    for (Map.Entry<String, LatencyHistogram> entry
+        : filterLatencies.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getMeanMillis());
+    }
+    return result;
+  }
+
+  @Override
+  public long getSettingsLookupCount() {
+    return settingsLookupLatency.getCount();
+  }
+
+  @Override
+  public double getSettingsLookupMeanLatency() {
+    return settingsLookupLatency.getMeanMillis();
+  }
+
+  @Override
+  public long getSettingsLookupMaxLatency() {
+    return settingsLookupLatency.getMaxMillis();
+  }
+}
@@ -1,30 +1,65 @@
 package com.dragouf.bitbucket.webhook.service;
 
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.atlassian.bitbucket.event.hook.RepositoryHookDisabledEvent;
+import com.atlassian.bitbucket.event.hook.RepositoryHookEnabledEvent;
+import com.atlassian.bitbucket.event.hook.RepositoryHookEvent;
+import com.atlassian.bitbucket.event.hook.RepositoryHookSettingsChangedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
 import com.atlassian.bitbucket.hook.repository.RepositoryHook;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
 import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.event.api.EventListener;
 import com.dragouf.bitbucket.webhook.Notifier;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * Default implementation of the {@link SettingsService} interface that uses
  * a SecurityService to ensure that the current user has the ability to retrieve
  * the webhook settings.
  *
+ * The hook and its settings are cached per repository id. Entries are dropped
+ * when the hook is enabled, disabled or reconfigured and when the repository
+ * is deleted; the time-to-live bounds how stale an entry can get on other
+ * cluster nodes, which don't see those events.
+ *
  * @author Michael Irwin (mikesir87)
  */
 public class ConcreteSettingsService implements SettingsService {
 
+  /**
+   * Plugin property for the maximum number of repositories in the cache
+   */
+  public static final String CACHE_MAX_SIZE =
+      "plugin.jenkins.webhook.settings.cache.maxSize";
+
+  /**
+   * Plugin property for how long cached settings are kept, in seconds
+   */
+  public static final String CACHE_TTL =
+      "plugin.jenkins.webhook.settings.cache.ttl";
+
   private static final Logger LOGGER =
-      LoggerFactory.getLogger(Notifier.class);
+      LoggerFactory.getLogger(ConcreteSettingsService.class);
+
+  private static final long DEFAULT_CACHE_MAX_SIZE = 1000L;
+  private static final long DEFAULT_CACHE_TTL = 60L;
 
-  private RepositoryHookService hookService;
-  private SecurityService securityService;
+  private final Cache<Integer, Optional<RepositoryHook>> hooks;
+  private final Cache<Integer, Optional<Settings>> settings;
+  private final RepositoryHookService hookService;
+  private final SecurityService securityService;
+  private final NotificationMetrics metrics;
 
   /**
    * Create a new instance.
@@ -33,8 +68,56 @@ public class ConcreteSettingsService implements SettingsService {
    */
   public ConcreteSettingsService(RepositoryHookService hookService,
       SecurityService securityService) {
+    this(hookService, securityService, DEFAULT_CACHE_MAX_SIZE,
+        DEFAULT_CACHE_TTL, null);
+  }
+
+  /**
+   * Create a new instance, reading the cache configuration from the plugin
+   * properties.
+   * @param hookService The repository hook service
+   * @param securityService The security service
+   * @param propertiesService Service used to read the plugin properties
+   */
+  public ConcreteSettingsService(RepositoryHookService hookService,
+      SecurityService securityService,
+      ApplicationPropertiesService propertiesService) {
+    this(hookService, securityService, propertiesService, null);
+  }
+
+  /**
+   * Create a new instance, reading the cache configuration from the plugin
+   * properties and recording the latency of lookups.
+   * @param hookService The repository hook service
+   * @param securityService The security service
+   * @param propertiesService Service used to read the plugin properties
+   * @param metrics The metrics to record lookups in, may be null
+   */
+  public ConcreteSettingsService(RepositoryHookService hookService,
+      SecurityService securityService,
+      ApplicationPropertiesService propertiesService,
+      NotificationMetrics metrics) {
+    this(hookService, securityService,
+        propertiesService.getPluginProperty(CACHE_MAX_SIZE,
+            DEFAULT_CACHE_MAX_SIZE),
+        propertiesService.getPluginProperty(CACHE_TTL, DEFAULT_CACHE_TTL),
+        metrics);
+  }
+
+  private ConcreteSettingsService(RepositoryHookService hookService,
+      SecurityService securityService, long maxSize, long ttl,
+      NotificationMetrics metrics) {
     this.hookService = hookService;
     this.securityService = securityService;
+    this.metrics = metrics != null ? metrics : new ConcreteNotificationMetrics();
+    this.hooks = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttl, TimeUnit.SECONDS)
+        .build();
+    this.settings = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttl, TimeUnit.SECONDS)
+        .build();
   }
 
   /**
@@ -42,12 +125,19 @@ public class ConcreteSettingsService implements SettingsService {
    */
   @Override
   public RepositoryHook getRepositoryHook(final Repository repository) {
+    long start = System.nanoTime();
     try {
-      return securityService.withPermission(Permission.REPO_ADMIN, "Retrieving repository hook")
-              .call(() -> hookService.getByKey(repository, Notifier.KEY));
+      return hooks.get(repository.getId(), () -> Optional.fromNullable(
+          securityService
+              .withPermission(Permission.REPO_ADMIN,
+                  "Retrieving repository hook")
+              .call(() -> hookService.getByKey(repository, Notifier.KEY))))
+          .orNull();
     } catch (Exception e) {
       LOGGER.error("Unexpected exception trying to get repository hook", e);
       return null;
+    } finally {
+      metrics.recordSettingsLookup(System.nanoTime() - start);
     }
   }
 
@@ -56,12 +146,65 @@ public class ConcreteSettingsService implements SettingsService {
    */
   @Override
   public Settings getSettings(final Repository repository) {
+    long start = System.nanoTime();
     try {
-      return securityService.withPermission(Permission.REPO_ADMIN, "Retrieving settings")
-              .call(() -> hookService.getSettings(repository, Notifier.KEY));
+      return settings.get(repository.getId(), () -> Optional.fromNullable(
+          securityService
+              .withPermission(Permission.REPO_ADMIN, "Retrieving settings")
+              .call(() -> hookService.getSettings(repository, Notifier.KEY))))
+          .orNull();
     } catch (Exception e) {
       LOGGER.error("Unexpected exception trying to get webhook settings", e);
       return null;
+    } finally {
+      metrics.recordSettingsLookup(System.nanoTime() - start);
     }
   }
+
+  /**
+   * Drops the cached hook when it gets enabled.
+   * @param event The hook event
+   */
+  @EventListener
+  public void onHookEnabled(RepositoryHookEnabledEvent event) {
+    invalidate(event);
+  }
+
+  /**
+   * Drops the cached hook when it gets disabled.
+   * @param event The hook event
+   */
+  @EventListener
+  public void onHookDisabled(RepositoryHookDisabledEvent event) {
+    invalidate(event);
+  }
+
+  /**
+   * Drops the cached hook and settings when the settings are changed.
+   * @param event The hook event
+   */
+  @EventListener
+  public void onHookSettingsChanged(RepositoryHookSettingsChangedEvent event) {
+    invalidate(event);
+  }
+
+  /**
+   * Drops the cached hook and settings of a deleted repository.
+   * @param event The repository event
+   */
+  @EventListener
+  public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+    invalidate(event.getRepository());
+  }
+
+  private void invalidate(RepositoryHookEvent event) {
+    if (Notifier.KEY.equals(event.getRepositoryHookKey())) {
+      invalidate(event.getRepository());
+    }
+  }
+
+  private void invalidate(Repository repository) {
+    hooks.invalidate(repository.getId());
+    settings.invalidate(repository.getId());
+  }
 }
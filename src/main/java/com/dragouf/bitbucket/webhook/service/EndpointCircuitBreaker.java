@@ -0,0 +1,169 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * A circuit breaker per Jenkins endpoint, so that a Jenkins that is down
+ * doesn't tie up a notification thread per push until its socket times out.
+ *
+ * A circuit opens after a number of consecutive failures and rejects
+ * notifications for that endpoint until the open duration has passed. A single
+ * probe is then let through: the circuit closes if it succeeds and opens again
+ * if it fails.
+ */
+public class EndpointCircuitBreaker {
+
+  /**
+   * The states of a circuit
+   */
+  public enum State {
+    /**
+     * Notifications are sent
+     */
+    CLOSED,
+    /**
+     * Notifications are rejected
+     */
+    OPEN,
+    /**
+     * A single probe notification is sent
+     */
+    HALF_OPEN
+  }
+
+  private static final long MAX_ENDPOINTS = 1000L;
+
+  private final int failureThreshold;
+  private final long openNanos;
+  private final Ticker ticker;
+  private final LoadingCache<String, Circuit> circuits;
+
+  /**
+   * Create a new instance.
+   * @param failureThreshold Number of consecutive failures that open a circuit
+   * @param openDuration How long a circuit stays open before it is probed
+   * @param unit The unit of the open duration
+   */
+  public EndpointCircuitBreaker(int failureThreshold, long openDuration,
+      TimeUnit unit) {
+    this(failureThreshold, openDuration, unit, Ticker.systemTicker());
+  }
+
+  EndpointCircuitBreaker(int failureThreshold, long openDuration,
+      TimeUnit unit, Ticker ticker) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openNanos = unit.toNanos(Math.max(0L, openDuration));
+    this.ticker = ticker;
+    this.circuits = CacheBuilder.newBuilder()
+        .maximumSize(MAX_ENDPOINTS)
+        .expireAfterAccess(1, TimeUnit.HOURS)
+        .build(new CacheLoader<String, Circuit>() {
+          @Override
+          public Circuit load(String endpoint) {
+            return new Circuit();
+          }
+        });
+  }
+
+  /**
+   * Gets the endpoint of a Jenkins URL, i.e. its scheme, host and port.
+   * @param url The Jenkins URL
+   * @return The endpoint, or the URL itself if it can't be parsed
+   */
+  public static String getEndpoint(String url) {
+    try {
+      URI uri = URI.create(url.trim());
+      if (uri.getHost() != null) {
+        String endpoint = uri.getScheme() + "://" + uri.getHost();
+        if (uri.getPort() >= 0) {
+          endpoint += ":" + uri.getPort();
+        }
+        return endpoint.toLowerCase(Locale.ROOT);
+      }
+    } catch (IllegalArgumentException e) {
+      // Fall through, the notification itself reports the invalid URL
+    }
+    return url;
+  }
+
+  /**
+   * Checks whether a notification may be sent to an endpoint. Callers that
+   * are allowed must report the outcome with {@link #onSuccess(String)} or
+   * {@link #onFailure(String)}.
+   * @param endpoint The endpoint
+   * @return True if the notification may be sent
+   */
+  public boolean tryAcquire(String endpoint) {
+    Circuit circuit = circuits.getUnchecked(endpoint);
+    synchronized (circuit) {
+      if (circuit.state == State.CLOSED) {
+        return true;
+      }
+      // Only one probe at a time, unless the last one never reported back
+      long now = ticker.read();
+      if (now - circuit.openedAt < openNanos) {
+        return false;
+      }
+      circuit.state = State.HALF_OPEN;
+      circuit.openedAt = now;
+      return true;
+    }
+  }
+
+  /**
+   * Reports a notification that reached the endpoint.
+   * @param endpoint The endpoint
+   */
+  public void onSuccess(String endpoint) {
+    Circuit circuit = circuits.getUnchecked(endpoint);
+    synchronized (circuit) {
+      circuit.state = State.CLOSED;
+      circuit.failures = 0;
+    }
+  }
+
+  /**
+   * Reports a notification that failed to reach the endpoint or timed out.
+   * @param endpoint The endpoint
+   */
+  public void onFailure(String endpoint) {
+    Circuit circuit = circuits.getUnchecked(endpoint);
+    synchronized (circuit) {
+      circuit.failures++;
+      if (circuit.state == State.HALF_OPEN
+          || circuit.failures >= failureThreshold) {
+        circuit.state = State.OPEN;
+        circuit.openedAt = ticker.read();
+      }
+    }
+  }
+
+  /**
+   * Gets the state of the circuit of an endpoint.
+   * @param endpoint The endpoint
+   * @return The circuit state
+   */
+  public State getState(String endpoint) {
+    Circuit circuit = circuits.getUnchecked(endpoint);
+    synchronized (circuit) {
+      return circuit.state;
+    }
+  }
+
+  /**
+   * The state of the circuit of one endpoint.
+   */
+  private static final class Circuit {
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+  }
+}
@@ -0,0 +1,217 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Caps the number of notifications sent at the same time to each Jenkins
+ * endpoint. The notification executor bounds the total, but when it runs on
+ * virtual threads, or when requests are sent with the non-blocking client,
+ * that bound is too large to protect a single Jenkins.
+ *
+ * A permit can be waited for on the calling thread, or asynchronously so that
+ * no thread is held while the endpoint is busy. Waiters are served in order.
+ */
+public class EndpointLimiter {
+
+  private final int maxConcurrent;
+  private final LoadingCache<String, Permits> permits;
+
+  /**
+   * Create a new instance.
+   * @param maxConcurrent Maximum number of notifications in flight per
+   * endpoint, at least one is allowed
+   */
+  public EndpointLimiter(int maxConcurrent) {
+    this.maxConcurrent = Math.max(1, maxConcurrent);
+    // Permits that are taken are referenced by their holders, so only idle
+    // endpoints can be collected
+    this.permits = CacheBuilder.newBuilder()
+        .weakValues()
+        .build(new CacheLoader<String, Permits>() {
+          @Override
+          public Permits load(String endpoint) {
+            return new Permits(EndpointLimiter.this.maxConcurrent);
+          }
+        });
+  }
+
+  /**
+   * Waits for a permit to send a notification to an endpoint. The permit
+   * must be given back with {@link Permit#release()} once the notification
+   * is done.
+   * @param endpoint The endpoint
+   * @param timeout How long to wait, zero or less to wait indefinitely
+   * @param unit The unit of the timeout
+   * @return The permit, or null if none was available in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Permit acquire(String endpoint, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    Permits endpointPermits = permits.getUnchecked(endpoint);
+    CompletableFuture<Permit> waiter = endpointPermits.acquire();
+    try {
+      return timeout <= 0 ? waiter.get() : waiter.get(timeout, unit);
+    } catch (TimeoutException e) {
+      return endpointPermits.abandon(waiter);
+    } catch (InterruptedException e) {
+      Permit permit = endpointPermits.abandon(waiter);
+      if (permit != null) {
+        permit.release();
+      }
+      throw e;
+    } catch (ExecutionException e) {
+      // Waiters are only ever completed with a permit or null
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Waits for a permit to send a notification to an endpoint without holding
+   * the calling thread. The permit must be given back with
+   * {@link Permit#release()} once the notification is done.
+   * @param endpoint The endpoint
+   * @param timeout How long to wait, zero or less to wait indefinitely
+   * @param unit The unit of the timeout
+   * @param scheduler Gives up waiting once the timeout has elapsed
+   * @return A future of the permit, completed with null if none was
+   * available in time
+   */
+  public CompletableFuture<Permit> acquireAsync(String endpoint, long timeout,
+      TimeUnit unit, ScheduledExecutorService scheduler) {
+    final Permits endpointPermits = permits.getUnchecked(endpoint);
+    final CompletableFuture<Permit> waiter = endpointPermits.acquire();
+    if (waiter.isDone() || timeout <= 0) {
+      return waiter;
+    }
+    try {
+      final ScheduledFuture<?> expiry = scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          endpointPermits.abandon(waiter);
+        }
+      }, timeout, unit);
+      waiter.whenComplete((permit, failure) -> expiry.cancel(false));
+    } catch (RejectedExecutionException e) {
+      // Shutting down, don't wait
+      Permit permit = endpointPermits.abandon(waiter);
+      if (permit != null) {
+        permit.release();
+      }
+      return CompletableFuture.completedFuture(null);
+    }
+    return waiter;
+  }
+
+  /**
+   * Gets the number of notifications that may currently be sent to an
+   * endpoint without waiting.
+   * @param endpoint The endpoint
+   * @return The available permits
+   */
+  public int getAvailable(String endpoint) {
+    return permits.getUnchecked(endpoint).getAvailable();
+  }
+
+  /**
+   * Gets the maximum number of notifications in flight per endpoint.
+   * @return The limit
+   */
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  /**
+   * The right to send one notification to an endpoint.
+   */
+  public static final class Permit {
+
+    private final Permits permits;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Permit(Permits permits) {
+      this.permits = permits;
+    }
+
+    /**
+     * Gives the permit back, handing it to the next waiter if there is one.
+     * Releasing a permit more than once has no effect.
+     */
+    public void release() {
+      if (released.compareAndSet(false, true)) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * The permits of a single endpoint.
+   */
+  private static final class Permits {
+
+    private final Deque<CompletableFuture<Permit>> waiters =
+        new ArrayDeque<CompletableFuture<Permit>>();
+    private int available;
+
+    private Permits(int available) {
+      this.available = available;
+    }
+
+    private synchronized CompletableFuture<Permit> acquire() {
+      if (available > 0) {
+        available--;
+        return CompletableFuture.completedFuture(new Permit(this));
+      }
+      CompletableFuture<Permit> waiter = new CompletableFuture<Permit>();
+      waiters.add(waiter);
+      return waiter;
+    }
+
+    /**
+     * Stops waiting for a permit.
+     * @return The permit if it was handed over meanwhile, otherwise null
+     */
+    private Permit abandon(CompletableFuture<Permit> waiter) {
+      if (waiter.complete(null)) {
+        synchronized (this) {
+          waiters.remove(waiter);
+        }
+        return null;
+      }
+      return waiter.join();
+    }
+
+    private void release() {
+      while (true) {
+        CompletableFuture<Permit> waiter;
+        synchronized (this) {
+          waiter = waiters.poll();
+          if (waiter == null) {
+            available++;
+            return;
+          }
+        }
+        // Completed outside the lock, the waiter may start its request
+        if (waiter.complete(new Permit(this))) {
+          return;
+        }
+      }
+    }
+
+    private synchronized int getAvailable() {
+      return available;
+    }
+  }
+}
@@ -1,6 +1,8 @@
 package com.dragouf.bitbucket.webhook.service;
 
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.nio.client.HttpAsyncClient;
 
 /**
  * Defines a generator that will create a HttpClient used to communicate with
@@ -19,4 +21,34 @@ public interface HttpClientFactory {
    */
   HttpClient getHttpClient(Boolean usingSsl, Boolean trustAllCerts)
       throws Exception;
+
+  /**
+   * Get a long-lived HttpClient backed by a connection pool that is shared by
+   * every notification sent to the same Jenkins host. The returned client must
+   * not be shut down by the caller; consuming the response entity is enough to
+   * hand the connection back to the pool.
+   * @param url The URL that is about to be requested.
+   * @param trustAllCerts True if all certs should be trusted.
+   * @return A pooled HttpClient configured to communicate with Jenkins.
+   * @throws Exception Any exception, but shouldn't happen.
+   */
+  HttpClient getPooledHttpClient(String url, Boolean trustAllCerts)
+      throws Exception;
+
+  /**
+   * Get a long-lived, non-blocking HttpClient shared by every notification.
+   * A small, fixed number of I/O threads drives all of its requests. The
+   * returned client must not be closed by the caller.
+   * @param trustAllCerts True if all certs should be trusted.
+   * @return A started non-blocking HttpClient.
+   * @throws Exception Any exception, but shouldn't happen.
+   */
+  HttpAsyncClient getAsyncHttpClient(Boolean trustAllCerts) throws Exception;
+
+  /**
+   * Get the timeouts the non-blocking HttpClient uses, as a base for
+   * requests that override some of them.
+   * @return The default request configuration
+   */
+  RequestConfig getDefaultRequestConfig();
 }
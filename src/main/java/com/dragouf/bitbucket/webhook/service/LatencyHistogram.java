@@ -0,0 +1,123 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with fixed buckets, cheap enough to record every
+ * notification from any thread. Percentiles are estimated as the upper bound
+ * of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+  private static final long[] BOUNDS_MILLIS = {
+    5L, 10L, 25L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L, 30000L,
+    60000L
+  };
+
+  private final AtomicLongArray buckets =
+      new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+  /**
+   * Records a latency.
+   * @param nanos The latency in nanoseconds
+   */
+  public void record(long nanos) {
+    long value = Math.max(0L, nanos);
+    long millis = TimeUnit.NANOSECONDS.toMillis(value);
+    int bucket = 0;
+    while (bucket < BOUNDS_MILLIS.length && millis > BOUNDS_MILLIS[bucket]) {
+      bucket++;
+    }
+    buckets.incrementAndGet(bucket);
+    count.increment();
+    totalNanos.add(value);
+    maxNanos.accumulate(value);
+  }
+
+  /**
+   * Gets the number of recorded latencies.
+   * @return The count
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Gets the mean latency.
+   * @return The mean in milliseconds, 0 if nothing was recorded
+   */
+  public double getMeanMillis() {
+    long recorded = count.sum();
+    if (recorded == 0L) {
+      return 0d;
+    }
+    return totalNanos.sum() / (double) recorded
+        / TimeUnit.MILLISECONDS.toNanos(1L);
+  }
+
+  /**
+   * Gets the highest latency.
+   * @return The maximum in milliseconds
+   */
+  public long getMaxMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+  }
+
+  /**
+   * Estimates a percentile of the latencies.
+   * @param percentile The percentile, between 0 and 100
+   * @return The upper bound in milliseconds of the bucket holding the
+   * percentile, the maximum for the last bucket, 0 if nothing was recorded
+   */
+  public long getPercentileMillis(double percentile) {
+    long[] counts = getBucketCounts();
+    long total = 0L;
+    for (long bucketCount : counts) {
+      total += bucketCount;
+    }
+    if (total == 0L) {
+      return 0L;
+    }
+    long rank = (long) Math.ceil(total * Math.min(100d, percentile) / 100d);
+    long seen = 0L;
+    for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0L) {
+        return Math.min(BOUNDS_MILLIS[i], getMaxMillis());
+      }
+    }
+    return getMaxMillis();
+  }
+
+  /**
+   * Gets the number of latencies per bucket, keyed by the upper bound of the
+   * bucket in milliseconds, e.g. {@code le_250}, and {@code le_inf} for the
+   * last one.
+   * @return The bucket counts, in increasing order of bounds
+   */
+  public Map<String, Long> getBuckets() {
+    long[] counts = getBucketCounts();
+    Map<String, Long> result = new LinkedHashMap<String, Long>();
+    for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+      result.put("le_" + BOUNDS_MILLIS[i], counts[i]);
+    }
+    result.put("le_inf", counts[BOUNDS_MILLIS.length]);
+    return result;
+  }
+
+  private long[] getBucketCounts() {
+    long[] counts = new long[buckets.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = buckets.get(i);
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,20 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestMergeability;
+
+/**
+ * Service that checks whether pull requests can be merged, sharing the result
+ * of each check between every caller interested in the same commits.
+ */
+public interface MergeabilityService {
+
+  /**
+   * Checks whether the pull request can be merged at its current from and to
+   * commits.
+   * @param pullRequest The pull request to check
+   * @return The mergeability of the pull request
+   */
+  PullRequestMergeability canMerge(PullRequest pullRequest);
+
+}
@@ -0,0 +1,241 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.dragouf.bitbucket.webhook.NotificationResult;
+
+/**
+ * Holds notifications back for a quiet period and only sends the latest one
+ * submitted for a given key. Every new submission restarts the quiet period,
+ * but a notification is never held for longer than its maximum delay after the
+ * first submission for the key.
+ *
+ * Notifications that are due are handed to a {@link NotificationExecutor},
+ * without ever running them on the timer thread. A due notification the
+ * executor cannot take is held back a little longer and handed over again.
+ */
+public class NotificationDebouncer {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(NotificationDebouncer.class);
+  private static final long RETRY_DELAY_MILLIS = 500L;
+
+  private final NotificationExecutor executor;
+  private final ScheduledExecutorService scheduler;
+  private final Map<String, Pending> pending = new HashMap<String, Pending>();
+  private final AtomicLong debouncedCount = new AtomicLong();
+
+  /**
+   * Create a new instance.
+   * @param executor The executor due notifications are submitted to
+   */
+  public NotificationDebouncer(NotificationExecutor executor) {
+    this.executor = executor;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        ThreadFactories.namedThreadFactory("JenkinsWebhookDebouncer",
+            ThreadFactories.Type.DAEMON));
+  }
+
+  /**
+   * Submit a notification, replacing any notification still held back for
+   * the same key.
+   * @param key Identifies notifications that supersede each other
+   * @param task The notification to send
+   * @param quietPeriod How long to wait for further submissions, in
+   * milliseconds
+   * @param maxDelay The longest a notification may be held back after the
+   * first submission for the key, in milliseconds
+   * @return A future of the result of the notification that is eventually sent
+   * for the key
+   */
+  public CompletableFuture<NotificationResult> submit(String key,
+      final Callable<NotificationResult> task, long quietPeriod,
+      long maxDelay) {
+    return submitAsync(key, new Callable<CompletableFuture<NotificationResult>>() {
+      @Override
+      public CompletableFuture<NotificationResult> call() throws Exception {
+        return CompletableFuture.completedFuture(task.call());
+      }
+    }, quietPeriod, maxDelay);
+  }
+
+  /**
+   * Submit a notification that completes asynchronously, replacing any
+   * notification still held back for the same key.
+   * @param key Identifies notifications that supersede each other
+   * @param task Starts the notification and returns a future of its result
+   * @param quietPeriod How long to wait for further submissions, in
+   * milliseconds
+   * @param maxDelay The longest a notification may be held back after the
+   * first submission for the key, in milliseconds
+   * @return A future of the result of the notification that is eventually sent
+   * for the key
+   */
+  public CompletableFuture<NotificationResult> submitAsync(String key,
+      Callable<CompletableFuture<NotificationResult>> task, long quietPeriod,
+      long maxDelay) {
+    return submitAsync(key, key, task, quietPeriod, maxDelay);
+  }
+
+  /**
+   * Submit a notification that completes asynchronously, replacing any
+   * notification still held back for the same key.
+   * @param key Identifies notifications that supersede each other
+   * @param executorKey Key the notification is submitted to the executor
+   * with once it is due
+   * @param task Starts the notification and returns a future of its result
+   * @param quietPeriod How long to wait for further submissions, in
+   * milliseconds
+   * @param maxDelay The longest a notification may be held back after the
+   * first submission for the key, in milliseconds
+   * @return A future of the result of the notification that is eventually sent
+   * for the key
+   */
+  public CompletableFuture<NotificationResult> submitAsync(final String key,
+      String executorKey, Callable<CompletableFuture<NotificationResult>> task,
+      long quietPeriod, long maxDelay) {
+    long now = System.nanoTime();
+    synchronized (pending) {
+      Pending held = pending.get(key);
+      if (held == null) {
+        held = new Pending(now);
+        pending.put(key, held);
+      } else {
+        held.timer.cancel(false);
+        debouncedCount.incrementAndGet();
+        LOGGER.debug("Superseding held back notification for {}", key);
+      }
+      held.task = task;
+      held.executorKey = executorKey;
+
+      long remaining = held.firstSubmitted
+          + TimeUnit.MILLISECONDS.toNanos(maxDelay) - now;
+      long delay = Math.max(0L,
+          Math.min(TimeUnit.MILLISECONDS.toNanos(quietPeriod), remaining));
+      schedule(key, held, delay);
+      return held.promise;
+    }
+  }
+
+  /**
+   * Gets the number of notifications that were superseded by a later one.
+   * @return The debounced count
+   */
+  public long getDebouncedCount() {
+    return debouncedCount.get();
+  }
+
+  /**
+   * Discard every held back notification.
+   */
+  public void shutdownNow() {
+    scheduler.shutdownNow();
+    synchronized (pending) {
+      for (Pending held : pending.values()) {
+        held.promise.cancel(false);
+      }
+      pending.clear();
+    }
+  }
+
+  private void schedule(final String key, final Pending held, long delay) {
+    held.timer = scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        fire(key, held);
+      }
+    }, delay, TimeUnit.NANOSECONDS);
+  }
+
+  private void fire(String key, final Pending held) {
+    final Callable<CompletableFuture<NotificationResult>> task;
+    final String executorKey;
+    synchronized (pending) {
+      if (pending.get(key) != held) {
+        return;
+      }
+      pending.remove(key);
+      task = held.task;
+      executorKey = held.executorKey;
+    }
+
+    CompletableFuture<NotificationResult> result;
+    try {
+      result = executor.handOff(executorKey, task);
+    } catch (RejectedExecutionException e) {
+      if (executor.isShutdown()) {
+        held.promise.cancel(false);
+      } else {
+        holdBack(key, held);
+      }
+      return;
+    }
+    complete(held, result);
+  }
+
+  /**
+   * Holds a due notification the executor could not take back for a little
+   * longer, unless a newer one has been submitted for the key meanwhile.
+   */
+  private void holdBack(String key, Pending held) {
+    synchronized (pending) {
+      Pending newer = pending.get(key);
+      if (newer == null) {
+        LOGGER.debug("Notification queue full, holding back notification "
+            + "for {}", key);
+        pending.put(key, held);
+        try {
+          schedule(key, held,
+              TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY_MILLIS));
+        } catch (RejectedExecutionException e) {
+          // Shut down meanwhile
+          pending.remove(key);
+          held.promise.cancel(false);
+        }
+      } else {
+        complete(held, newer.promise);
+      }
+    }
+  }
+
+  private static void complete(final Pending held,
+      CompletableFuture<NotificationResult> result) {
+    result.whenComplete((notification, failure) -> {
+      if (failure instanceof CancellationException) {
+        held.promise.cancel(false);
+      } else if (failure != null) {
+        held.promise.completeExceptionally(failure);
+      } else {
+        held.promise.complete(notification);
+      }
+    });
+  }
+
+  private static final class Pending {
+
+    private final long firstSubmitted;
+    private final CompletableFuture<NotificationResult> promise =
+        new CompletableFuture<NotificationResult>();
+    private Callable<CompletableFuture<NotificationResult>> task;
+    private String executorKey;
+    private ScheduledFuture<?> timer;
+
+    private Pending(long firstSubmitted) {
+      this.firstSubmitted = firstSubmitted;
+    }
+  }
+}
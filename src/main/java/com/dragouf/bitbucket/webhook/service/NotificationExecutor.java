@@ -0,0 +1,488 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.dragouf.bitbucket.webhook.NotificationResult;
+
+/**
+ * A bounded executor for background Jenkins notifications. The number of
+ * threads and the number of queued notifications are both capped, and a
+ * {@link SaturationPolicy} decides what happens to a notification submitted
+ * while the queue is full.
+ *
+ * Queued tasks are tracked by key (usually repository and ref) so that the
+ * {@link SaturationPolicy#COALESCE} policy can fold a new notification into
+ * one for the same key that is still waiting to run. The queued notification
+ * then sends the newest payload.
+ *
+ * Other work belonging to a notification, such as eligibility checks, can be
+ * run through {@link #execute(Runnable)} and is subject to the same limits.
+ * Such work is never dropped to make room and never runs on the submitting
+ * thread: when it cannot be queued it is rejected with a
+ * {@link RejectedExecutionException}, whatever the policy. Notifications due
+ * on a timer are handed over with {@link #handOff(String, Callable)}, which
+ * never runs them on the timer thread either.
+ *
+ * A notification sent with a non-blocking transport is submitted through
+ * {@link #submitAsync(String, Callable)}: its thread is released as soon as
+ * the request is under way and the returned future completes with the
+ * response.
+ *
+ * Notifications run either on a fixed pool of platform threads or, when
+ * given a thread factory such as one of virtual threads, each on a new
+ * thread of its own with a bound on how many run at the same time.
+ */
+public class NotificationExecutor implements Executor {
+
+  /**
+   * What to do with a notification submitted while the queue is full.
+   */
+  public enum SaturationPolicy {
+    /**
+     * Discard the oldest queued notification to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Run the notification on the submitting thread. Work submitted through
+     * {@link NotificationExecutor#execute(Runnable)} or
+     * {@link NotificationExecutor#handOff(String, Callable)} is rejected
+     * instead.
+     */
+    CALLER_RUNS,
+    /**
+     * Fold the notification into a queued one for the same key, which then
+     * runs the newest notification, or drop it if there is none.
+     */
+    COALESCE;
+
+    /**
+     * Parses a policy from its configuration value, e.g. "caller-runs".
+     * @param value The configuration value
+     * @param defaultPolicy Policy to use if the value is not recognised
+     * @return The matching policy
+     */
+    public static SaturationPolicy fromString(String value,
+        SaturationPolicy defaultPolicy) {
+      if (value == null) {
+        return defaultPolicy;
+      }
+      try {
+        return valueOf(value.trim().replace('-', '_').toUpperCase());
+      } catch (IllegalArgumentException e) {
+        LOGGER.warn("Unknown saturation policy '{}', using {}", value,
+            defaultPolicy);
+        return defaultPolicy;
+      }
+    }
+  }
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(NotificationExecutor.class);
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  private final ExecutorService executor;
+  private final BlockingQueue<Runnable> queue;
+  private final SaturationPolicy policy;
+  private final ConcurrentMap<String, KeyedTask> pending =
+      new ConcurrentHashMap<String, KeyedTask>();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /**
+   * Create a new executor.
+   * @param name Prefix for the names of the worker threads
+   * @param poolSize Maximum number of worker threads, at least one is used
+   * @param queueCapacity Maximum number of queued notifications, at least one
+   * is used
+   * @param policy What to do when the queue is full
+   */
+  public NotificationExecutor(String name, int poolSize, int queueCapacity,
+      SaturationPolicy policy) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(1, poolSize),
+        Math.max(1, poolSize), KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+        ThreadFactories.namedThreadFactory(name, ThreadFactories.Type.DAEMON),
+        new ThreadPoolExecutor.AbortPolicy());
+    pool.allowCoreThreadTimeOut(true);
+    this.policy = policy;
+    this.executor = pool;
+    this.queue = pool.getQueue();
+  }
+
+  /**
+   * Create a new executor that starts a new thread from the given factory for
+   * each notification, e.g. a virtual thread, instead of pooling threads.
+   * @param maxInFlight Maximum number of notifications running at the same
+   * time, at least one is allowed
+   * @param queueCapacity Maximum number of queued notifications, at least one
+   * is used
+   * @param policy What to do when the queue is full
+   * @param threadFactory Creates the thread of each notification
+   */
+  public NotificationExecutor(int maxInFlight, int queueCapacity,
+      SaturationPolicy policy, ThreadFactory threadFactory) {
+    ThreadPerTaskExecutor threadPerTask =
+        new ThreadPerTaskExecutor(maxInFlight, queueCapacity, threadFactory);
+    this.policy = policy;
+    this.executor = threadPerTask;
+    this.queue = threadPerTask.getQueue();
+  }
+
+  /**
+   * Submit a notification.
+   * @param key Identifies notifications that are interchangeable, may be null
+   * @param task The notification to run
+   * @return A future of the notification result. The future is cancelled if
+   * the notification had to be dropped.
+   */
+  public CompletableFuture<NotificationResult> submit(String key,
+      final Callable<NotificationResult> task) {
+    return submitAsync(key, new Callable<CompletableFuture<NotificationResult>>() {
+      @Override
+      public CompletableFuture<NotificationResult> call() throws Exception {
+        return CompletableFuture.completedFuture(task.call());
+      }
+    });
+  }
+
+  /**
+   * Submit a notification that completes asynchronously. The task runs on a
+   * worker thread, which is released as soon as the task returns.
+   * @param key Identifies notifications that are interchangeable, may be null
+   * @param task Starts the notification and returns a future of its result
+   * @return A future of the notification result. The future is cancelled if
+   * the notification had to be dropped.
+   */
+  public CompletableFuture<NotificationResult> submitAsync(String key,
+      Callable<CompletableFuture<NotificationResult>> task) {
+    try {
+      return schedule(new KeyedTask(key, task, true, true));
+    } catch (RejectedExecutionException e) {
+      if (executor.isShutdown()) {
+        LOGGER.debug("Notifier shut down, dropped notification for {}", key);
+      } else {
+        LOGGER.warn("Notification queue full, dropped notification for {} "
+            + "(queue depth {}, {} rejected so far)", key, getQueueDepth(),
+            rejectedCount.get());
+      }
+      CompletableFuture<NotificationResult> dropped =
+          new CompletableFuture<NotificationResult>();
+      dropped.cancel(false);
+      return dropped;
+    }
+  }
+
+  /**
+   * Run work belonging to a notification. The work is never dropped once
+   * queued and never runs on the calling thread.
+   * @param task The work to run
+   * @throws RejectedExecutionException If the queue is full or the executor
+   * has been shut down
+   */
+  @Override
+  public void execute(final Runnable task) {
+    schedule(new KeyedTask(null,
+        new Callable<CompletableFuture<NotificationResult>>() {
+          @Override
+          public CompletableFuture<NotificationResult> call() {
+            task.run();
+            return null;
+          }
+        }, false, false));
+  }
+
+  /**
+   * Hand a notification over from a thread that must not be held up, such as
+   * a timer thread. The notification never runs on the calling thread; it may
+   * be coalesced or dropped to make room like any other notification.
+   * @param key Identifies notifications that are interchangeable, may be null
+   * @param task Starts the notification and returns a future of its result
+   * @return A future of the notification result
+   * @throws RejectedExecutionException If the notification could not be
+   * queued, so that the caller can try again later
+   */
+  public CompletableFuture<NotificationResult> handOff(String key,
+      Callable<CompletableFuture<NotificationResult>> task) {
+    return schedule(new KeyedTask(key, task, true, false));
+  }
+
+  /**
+   * Queues a task, applying the saturation policy.
+   * @return The future of the task, or of the queued task it was folded into
+   * @throws RejectedExecutionException If the task was neither queued nor
+   * folded into a queued one
+   */
+  private CompletableFuture<NotificationResult> schedule(KeyedTask task) {
+    String key = task.key;
+    KeyedTask previous = key == null ? null : pending.put(key, task);
+    try {
+      dispatch(task);
+    } catch (RejectedExecutionException e) {
+      // Reached for COALESCE, for work that may neither run on the caller nor
+      // make room, and once the executor has been shut down
+      task.cancel(false);
+      if (!executor.isShutdown() && previous != null
+          && previous.replace(task.slot.callable)) {
+        pending.putIfAbsent(key, previous);
+        if (!previous.isQueued()) {
+          pending.remove(key, previous);
+        }
+        coalescedCount.incrementAndGet();
+        LOGGER.debug("Notification queue full, coalesced notification for {}",
+            key);
+        return previous.promise;
+      }
+      throw e;
+    }
+    return task.promise;
+  }
+
+  /**
+   * Hands a task to the underlying executor, applying the saturation policy
+   * if it is full.
+   */
+  private void dispatch(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      if (executor.isShutdown()) {
+        throw new RejectedExecutionException("Notifier has been shut down");
+      }
+      saturated(task);
+    }
+  }
+
+  private void saturated(Runnable task) {
+    rejectedCount.incrementAndGet();
+    switch (policy) {
+      case CALLER_RUNS:
+        if (!(task instanceof KeyedTask) || !((KeyedTask) task).callerRuns) {
+          throw new RejectedExecutionException("Notification queue full");
+        }
+        LOGGER.debug("Notification queue full, running on caller thread");
+        task.run();
+        break;
+      case DROP_OLDEST:
+        if (!dropOldest()) {
+          throw new RejectedExecutionException("Notification queue full");
+        }
+        LOGGER.warn("Notification queue full, dropped oldest queued "
+            + "notification ({} rejected so far)", rejectedCount.get());
+        executor.execute(task);
+        break;
+      default:
+        throw new RejectedExecutionException("Notification queue full");
+    }
+  }
+
+  /**
+   * Cancels the oldest queued notification, skipping other work.
+   * @return False if no notification is queued
+   */
+  private boolean dropOldest() {
+    for (Runnable queued : queue) {
+      if (queued instanceof KeyedTask && ((KeyedTask) queued).droppable
+          && queue.remove(queued)) {
+        ((KeyedTask) queued).cancel(false);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the number of notifications waiting to run.
+   * @return The queue depth
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * Gets the number of threads currently sending notifications.
+   * @return The active thread count
+   */
+  public int getActiveCount() {
+    if (executor instanceof ThreadPerTaskExecutor) {
+      return ((ThreadPerTaskExecutor) executor).getActiveCount();
+    }
+    return ((ThreadPoolExecutor) executor).getActiveCount();
+  }
+
+  /**
+   * Gets the number of notifications submitted while the queue was full.
+   * @return The rejection count
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * Gets the number of notifications folded into an already queued one.
+   * @return The coalesced count
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /**
+   * Gets the saturation policy in use.
+   * @return The saturation policy
+   */
+  public SaturationPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Checks whether the executor has been shut down.
+   * @return True once {@link #shutdownNow()} has been called
+   */
+  public boolean isShutdown() {
+    return executor.isShutdown();
+  }
+
+  /**
+   * Stop all running notifications and cancel the queued ones.
+   */
+  public void shutdownNow() {
+    for (Runnable queued : executor.shutdownNow()) {
+      if (queued instanceof Future) {
+        ((Future<?>) queued).cancel(false);
+      }
+    }
+    pending.clear();
+  }
+
+  private final class KeyedTask
+      extends FutureTask<CompletableFuture<NotificationResult>> {
+
+    private final String key;
+    private final Slot slot;
+    private final boolean droppable;
+    private final boolean callerRuns;
+    private final CompletableFuture<NotificationResult> promise =
+        new CompletableFuture<NotificationResult>();
+    private volatile boolean started;
+
+    /**
+     * @param droppable Whether the task may be dropped to make room
+     * @param callerRuns Whether the task may run on the submitting thread
+     */
+    private KeyedTask(String key,
+        Callable<CompletableFuture<NotificationResult>> callable,
+        boolean droppable, boolean callerRuns) {
+      this(key, new Slot(callable), droppable, callerRuns);
+    }
+
+    private KeyedTask(String key, Slot slot, boolean droppable,
+        boolean callerRuns) {
+      super(slot);
+      this.key = key;
+      this.slot = slot;
+      this.droppable = droppable;
+      this.callerRuns = callerRuns;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        started = true;
+      }
+      forget();
+      super.run();
+    }
+
+    private boolean isQueued() {
+      return !started && !isDone();
+    }
+
+    /**
+     * Swaps the queued notification for a newer one.
+     * @return False if the task has already started or been cancelled
+     */
+    private synchronized boolean replace(
+        Callable<CompletableFuture<NotificationResult>> callable) {
+      if (!isQueued()) {
+        return false;
+      }
+      slot.callable = callable;
+      return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      forget();
+      return super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    protected void done() {
+      if (isCancelled()) {
+        promise.cancel(false);
+        return;
+      }
+      CompletableFuture<NotificationResult> result;
+      try {
+        result = get();
+      } catch (ExecutionException e) {
+        promise.completeExceptionally(e.getCause());
+        return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        promise.completeExceptionally(e);
+        return;
+      }
+      if (result == null) {
+        promise.complete(null);
+        return;
+      }
+      result.whenComplete((notification, failure) -> {
+        if (failure != null) {
+          promise.completeExceptionally(failure);
+        } else {
+          promise.complete(notification);
+        }
+      });
+    }
+
+    private void forget() {
+      if (key != null) {
+        pending.remove(key, this);
+      }
+    }
+  }
+
+  private static final class Slot
+      implements Callable<CompletableFuture<NotificationResult>> {
+
+    private volatile Callable<CompletableFuture<NotificationResult>> callable;
+
+    private Slot(Callable<CompletableFuture<NotificationResult>> callable) {
+      this.callable = callable;
+    }
+
+    @Override
+    public CompletableFuture<NotificationResult> call() throws Exception {
+      return callable.call();
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.util.Map;
+
+import com.dragouf.bitbucket.webhook.NotificationResult.Outcome;
+
+/**
+ * Records how notifications behave under load: request latencies and
+ * outcomes, executor saturation, filter rejections and settings lookups. The
+ * measurements are exposed through JMX and the REST API.
+ */
+public interface NotificationMetrics extends NotificationMetricsMXBean {
+
+  /**
+   * The JMX object name of the metrics
+   */
+  String OBJECT_NAME = "com.dragouf.bitbucket.webhook:type=NotificationMetrics";
+
+  /**
+   * Records the outcome of a notification.
+   * @param outcome The outcome
+   */
+  void recordOutcome(Outcome outcome);
+
+  /**
+   * Records the latency of a request sent to Jenkins.
+   * @param endpoint The endpoint of the Jenkins
+   * @param nanos The latency in nanoseconds
+   */
+  void recordLatency(String endpoint, long nanos);
+
+  /**
+   * Records a notification rejected by an eligibility filter.
+   * @param filter The class of the filter
+   */
+  void recordFilterRejection(Class<?> filter);
+
+  /**
+   * Records the time an eligibility filter took to evaluate an event.
+   * @param filter The class of the filter
+   * @param nanos The latency in nanoseconds
+   */
+  void recordFilterLatency(Class<?> filter, long nanos);
+
+  /**
+   * Records the latency of a hook or settings lookup.
+   * @param nanos The latency in nanoseconds
+   */
+  void recordSettingsLookup(long nanos);
+
+  /**
+   * Gets the request latency histogram per endpoint.
+   * @return The histograms
+   */
+  Map<String, LatencyHistogram> getEndpointLatencies();
+
+  /**
+   * Gets the evaluation latency histogram per eligibility filter.
+   * @return The histograms keyed by filter class name
+   */
+  Map<String, LatencyHistogram> getFilterLatencies();
+
+  /**
+   * Gets the latency histogram of hook and settings lookups.
+   * @return The histogram
+   */
+  LatencyHistogram getSettingsLookupLatency();
+}
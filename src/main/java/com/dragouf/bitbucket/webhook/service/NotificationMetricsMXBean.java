@@ -0,0 +1,96 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link NotificationMetrics}, registered as
+ * {@value NotificationMetrics#OBJECT_NAME}. Latencies are in milliseconds and
+ * maps of endpoints are keyed by the scheme, host and port of a Jenkins.
+ */
+public interface NotificationMetricsMXBean {
+
+  /**
+   * Gets the number of notifications Jenkins accepted.
+   * @return The count
+   */
+  long getSuccessCount();
+
+  /**
+   * Gets the number of notifications that failed, including those rejected
+   * while the circuit of their endpoint was open.
+   * @return The count
+   */
+  long getFailureCount();
+
+  /**
+   * Gets the number of notifications Jenkins didn't answer in time.
+   * @return The count
+   */
+  long getTimeoutCount();
+
+  /**
+   * Gets the number of notifications waiting for a thread.
+   * @return The queue depth
+   */
+  int getQueueDepth();
+
+  /**
+   * Gets the number of threads sending notifications.
+   * @return The active thread count
+   */
+  int getActiveThreads();
+
+  /**
+   * Gets the number of requests sent per endpoint.
+   * @return The request counts
+   */
+  Map<String, Long> getEndpointRequestCounts();
+
+  /**
+   * Gets the mean request latency per endpoint.
+   * @return The mean latencies
+   */
+  Map<String, Double> getEndpointMeanLatencies();
+
+  /**
+   * Gets the estimated 95th percentile of the request latency per endpoint.
+   * @return The 95th percentile latencies
+   */
+  Map<String, Long> getEndpointP95Latencies();
+
+  /**
+   * Gets the highest request latency per endpoint.
+   * @return The maximum latencies
+   */
+  Map<String, Long> getEndpointMaxLatencies();
+
+  /**
+   * Gets the number of notifications each eligibility filter rejected.
+   * @return The rejection counts keyed by filter class name
+   */
+  Map<String, Long> getFilterRejections();
+
+  /**
+   * Gets the mean time each eligibility filter takes to evaluate an event.
+   * @return The mean latencies keyed by filter class name
+   */
+  Map<String, Double> getFilterMeanLatencies();
+
+  /**
+   * Gets the number of hook and settings lookups.
+   * @return The count
+   */
+  long getSettingsLookupCount();
+
+  /**
+   * Gets the mean latency of hook and settings lookups.
+   * @return The mean latency
+   */
+  double getSettingsLookupMeanLatency();
+
+  /**
+   * Gets the highest latency of hook and settings lookups.
+   * @return The maximum latency
+   */
+  long getSettingsLookupMaxLatency();
+}
@@ -0,0 +1,416 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * A durable outbox for Jenkins notifications, kept as an append-only journal
+ * file. Every notification is journaled before it is sent and acknowledged
+ * once it has been delivered or given up on, so notifications that were still
+ * pending when Bitbucket stopped can be replayed on the next start.
+ *
+ * Only the latest notification for a repository, ref and pull request is
+ * kept: Jenkins polls the repository when notified, so an older pending
+ * notification is superseded by a newer one. Payloads are never superseded, since each one
+ * describes ref changes that a newer payload doesn't repeat. The journal is
+ * compacted down to the pending notifications once enough of them have been
+ * acknowledged.
+ *
+ * Without a journal file the outbox only keeps the pending notifications in
+ * memory: failed notifications are still retried with backoff, but pending
+ * ones are lost when Bitbucket stops.
+ */
+public class NotificationOutbox {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(NotificationOutbox.class);
+
+  private static final String ENQUEUE = "ENQ";
+  private static final String ACKNOWLEDGE = "ACK";
+  private static final int COMPACT_THRESHOLD = 1000;
+
+  private final Gson gson = new Gson();
+  private final File journal;
+  private final int maxAttempts;
+  private final long initialBackoff;
+  private final long maxBackoff;
+  private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+  private Writer writer;
+  private int acknowledged;
+
+  /**
+   * Create a new outbox.
+   * @param journal The journal file, created if it doesn't exist, or null to
+   * keep the notifications in memory only
+   * @param maxAttempts How many times a notification is sent before giving up
+   * @param initialBackoff Delay before the first retry, in milliseconds
+   * @param maxBackoff Longest delay between retries, in milliseconds
+   */
+  public NotificationOutbox(File journal, int maxAttempts, long initialBackoff,
+      long maxBackoff) {
+    this.journal = journal;
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.initialBackoff = Math.max(1L, initialBackoff);
+    this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+  }
+
+  /**
+   * Reads the journal and returns the notifications that were still pending
+   * when it was last written. Must be called before any other method.
+   * @return The pending notifications, oldest first
+   * @throws IOException if the journal can't be read or written
+   */
+  public synchronized List<Entry> replay() throws IOException {
+    pending.clear();
+    if (journal == null) {
+      return new ArrayList<Entry>();
+    }
+    if (journal.isFile()) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(journal), Charsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          read(line);
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    compact();
+    return new ArrayList<Entry>(pending.values());
+  }
+
+  /**
+   * Journals a notification, superseding any pending notification for the
+   * same repository, ref and pull request. A pull request notification and a
+   * push to its branch don't supersede each other.
+   * @param repositoryId The id of the repository
+   * @param ref The branch ref related to the commit
+   * @param sha1 The commit's SHA1 hash code, may be null
+   * @param prId The pull request id, may be null
+   * @return The journaled notification
+   */
+  public synchronized Entry enqueue(int repositoryId, String ref, String sha1,
+      String prId) {
+    return enqueue(repositoryId, ref, sha1, prId, null);
+  }
+
+  /**
+   * Journals a notification that may be delivered as a payload. Without a
+   * payload, it supersedes any pending notification for the same repository,
+   * ref and pull request.
+   * @param repositoryId The id of the repository
+   * @param ref The branch ref related to the commit
+   * @param sha1 The commit's SHA1 hash code, may be null
+   * @param prId The pull request id, may be null
+   * @param payload The serialized payload, may be null
+   * @return The journaled notification
+   */
+  public synchronized Entry enqueue(int repositoryId, String ref, String sha1,
+      String prId, String payload) {
+    return enqueue(repositoryId, ref, sha1, prId, null, payload);
+  }
+
+  /**
+   * Journals a notification caused by a user, see
+   * {@link #enqueue(int, String, String, String, String)}.
+   * @param repositoryId The id of the repository
+   * @param ref The branch ref related to the commit
+   * @param sha1 The commit's SHA1 hash code, may be null
+   * @param prId The pull request id, may be null
+   * @param user The name of the user who caused the notification, may be
+   * null
+   * @param payload The serialized payload, may be null
+   * @return The journaled notification
+   */
+  public synchronized Entry enqueue(int repositoryId, String ref, String sha1,
+      String prId, String user, String payload) {
+    Entry entry = new Entry(UUID.randomUUID().toString(), repositoryId, ref,
+        sha1, prId, user, payload);
+    if (pending.put(entry.getKey(), entry) != null) {
+      acknowledged++;
+    }
+    append(ENQUEUE, entry);
+    return entry;
+  }
+
+  /**
+   * Marks a notification as done, either because it was delivered or because
+   * it was given up on.
+   * @param entry The journaled notification
+   */
+  public synchronized void acknowledge(Entry entry) {
+    if (!pending.remove(entry.getKey(), entry)) {
+      // Superseded, its replacement is still pending
+      return;
+    }
+    append(ACKNOWLEDGE, entry);
+    if (++acknowledged >= COMPACT_THRESHOLD) {
+      try {
+        compact();
+      } catch (IOException e) {
+        LOGGER.warn("Could not compact notification journal {}", journal, e);
+      }
+    }
+  }
+
+  /**
+   * Narrows a pending notification down to the Jenkins instances that still
+   * need it, so that retrying it doesn't notify the others again.
+   * @param entry The journaled notification
+   * @param targets The base URLs of the Jenkins instances to retry
+   */
+  public synchronized void retryTargets(Entry entry, List<String> targets) {
+    if (isDone(entry)) {
+      return;
+    }
+    entry.targets = new ArrayList<String>(targets);
+    // The earlier record of the notification is now stale
+    acknowledged++;
+    append(ENQUEUE, entry);
+  }
+
+  /**
+   * Checks whether a notification has been superseded or acknowledged.
+   * @param entry The journaled notification
+   * @return True if the notification no longer needs to be sent
+   */
+  public synchronized boolean isDone(Entry entry) {
+    return pending.get(entry.getKey()) != entry;
+  }
+
+  /**
+   * Gets how long to wait before the next attempt to send a notification,
+   * using exponential backoff with jitter.
+   * @param attempts The number of attempts made so far
+   * @return The delay in milliseconds, or -1 if no attempts are left
+   */
+  public long getRetryDelay(int attempts) {
+    if (attempts >= maxAttempts) {
+      return -1L;
+    }
+    int doublings = Math.max(0, attempts - 1);
+    long backoff = maxBackoff;
+    if (doublings < Long.numberOfLeadingZeros(initialBackoff) - 1) {
+      backoff = Math.min(maxBackoff, initialBackoff << doublings);
+    }
+    // Spread the retries of notifications that failed together
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+  /**
+   * Gets the number of pending notifications.
+   * @return The pending count
+   */
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Closes the journal. Pending notifications stay in it for the next start.
+   */
+  public synchronized void close() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        LOGGER.warn("Could not close notification journal {}", journal, e);
+      }
+      writer = null;
+    }
+  }
+
+  private void read(String line) {
+    int separator = line.indexOf(' ');
+    if (separator < 0) {
+      return;
+    }
+    Entry entry;
+    try {
+      entry = gson.fromJson(line.substring(separator + 1), Entry.class);
+    } catch (JsonParseException e) {
+      // Most likely a record torn by a crash while it was written
+      LOGGER.warn("Skipping unreadable notification journal record: {}", line);
+      return;
+    }
+    if (entry == null || entry.id == null) {
+      return;
+    }
+    String operation = line.substring(0, separator);
+    if (ENQUEUE.equals(operation)) {
+      pending.put(entry.getKey(), entry);
+    } else if (ACKNOWLEDGE.equals(operation)) {
+      Entry current = pending.get(entry.getKey());
+      if (current != null && current.id.equals(entry.id)) {
+        pending.remove(entry.getKey());
+      }
+    }
+  }
+
+  private void append(String operation, Entry entry) {
+    if (journal == null) {
+      return;
+    }
+    try {
+      if (writer == null) {
+        writer = new OutputStreamWriter(new FileOutputStream(journal, true),
+            Charsets.UTF_8);
+      }
+      writer.write(operation + " " + gson.toJson(entry) + "\n");
+      writer.flush();
+    } catch (IOException e) {
+      LOGGER.error("Could not write to notification journal {}", journal, e);
+    }
+  }
+
+  /**
+   * Rewrites the journal with only the pending notifications. The new journal
+   * is written next to the old one and then moved over it, so a crash while
+   * compacting leaves one of them intact.
+   */
+  private void compact() throws IOException {
+    if (journal == null) {
+      acknowledged = 0;
+      return;
+    }
+    close();
+    File compacted = new File(journal.getPath() + ".tmp");
+    File parent = journal.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create directory " + parent);
+    }
+    FileOutputStream out = new FileOutputStream(compacted);
+    Writer compactedWriter = new OutputStreamWriter(out, Charsets.UTF_8);
+    try {
+      for (Entry entry : pending.values()) {
+        compactedWriter.write(ENQUEUE + " " + gson.toJson(entry) + "\n");
+      }
+      compactedWriter.flush();
+      out.getFD().sync();
+    } finally {
+      compactedWriter.close();
+    }
+    if (!compacted.renameTo(journal)
+        && !(journal.delete() && compacted.renameTo(journal))) {
+      throw new IOException("Could not replace " + journal);
+    }
+    acknowledged = 0;
+  }
+
+  /**
+   * A journaled notification.
+   */
+  public static final class Entry {
+
+    private String id;
+    private int repositoryId;
+    private String ref;
+    private String sha1;
+    private String prId;
+    private String user;
+    private String payload;
+    private volatile List<String> targets;
+    private transient int attempts;
+
+    private Entry(String id, int repositoryId, String ref, String sha1,
+        String prId, String user, String payload) {
+      this.id = id;
+      this.repositoryId = repositoryId;
+      this.ref = ref;
+      this.sha1 = sha1;
+      this.prId = prId;
+      this.user = user;
+      this.payload = payload;
+    }
+
+    /**
+     * Gets the {@code repositoryId} property.
+     * @return The id of the repository
+     */
+    public int getRepositoryId() {
+      return repositoryId;
+    }
+
+    /**
+     * Gets the {@code ref} property.
+     * @return The branch ref related to the commit
+     */
+    public String getRef() {
+      return ref;
+    }
+
+    /**
+     * Gets the {@code sha1} property.
+     * @return The commit's SHA1 hash code
+     */
+    public String getSha1() {
+      return sha1;
+    }
+
+    /**
+     * Gets the {@code prId} property.
+     * @return The pull request id
+     */
+    public String getPrId() {
+      return prId;
+    }
+
+    /**
+     * Gets the {@code user} property.
+     * @return The name of the user who caused the notification, may be null
+     */
+    public String getUser() {
+      return user;
+    }
+
+    /**
+     * Gets the {@code payload} property.
+     * @return The serialized payload, null for notifyCommit notifications
+     */
+    public String getPayload() {
+      return payload;
+    }
+
+    /**
+     * Gets the {@code targets} property.
+     * @return The base URLs of the Jenkins instances still to notify, null
+     * for all the targets of the hook
+     */
+    public List<String> getTargets() {
+      return targets;
+    }
+
+    /**
+     * Records an attempt to send the notification.
+     * @return The number of attempts made so far
+     */
+    public synchronized int recordAttempt() {
+      return ++attempts;
+    }
+
+    private String getKey() {
+      String key = repositoryId + ":" + ref + "#";
+      return payload == null ? key + prId : key + id;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import com.dragouf.bitbucket.webhook.NotificationResult;
+import com.google.common.base.Charsets;
+
+/**
+ * Evaluates the response of Jenkins to a notification without buffering the
+ * whole body. Only a bounded prefix of the body is read, which is enough to
+ * tell whether Jenkins scheduled a build; a longer body, e.g. the HTML page a
+ * misconfigured URL points at, gets its connection aborted rather than read to
+ * the end.
+ *
+ * Responses received by a non-blocking client are evaluated as they arrive by
+ * the consumer from {@link #newAsyncConsumer(String)}, which keeps the same
+ * prefix and discards the rest of the body.
+ */
+public class ResponseEvaluator {
+
+  private static final String SCHEDULED = "Scheduled";
+  private static final int DISCARD_BUFFER_SIZE = 8192;
+
+  private final int maxBytes;
+
+  /**
+   * Create a new instance.
+   * @param maxBytes The maximum number of bytes of the body to read
+   */
+  public ResponseEvaluator(int maxBytes) {
+    this.maxBytes = Math.max(SCHEDULED.length(), maxBytes);
+  }
+
+  /**
+   * Evaluates a response. A notification is successful if Jenkins answered
+   * with a 2xx status and a body starting with {@code Scheduled}; server
+   * errors may pass on a later attempt. The body is either read to the end,
+   * so the connection can be reused, or the request is aborted.
+   * @param url The URL that was used for notification
+   * @param request The request, aborted if the body is too long
+   * @param response The response from Jenkins
+   * @return The notification result
+   * @throws IOException if the body can't be read
+   */
+  public NotificationResult evaluate(String url, AbortableHttpRequest request,
+      HttpResponse response) throws IOException {
+    return evaluate(url, request, response, true);
+  }
+
+  /**
+   * Evaluates a response, optionally accepting any 2xx status as a success,
+   * e.g. for payloads, which Jenkins doesn't answer with {@code Scheduled}.
+   * @param url The URL that was used for notification
+   * @param request The request, aborted if the body is too long
+   * @param response The response from Jenkins
+   * @param expectScheduled True if the body must start with {@code Scheduled}
+   * @return The notification result
+   * @throws IOException if the body can't be read
+   */
+  public NotificationResult evaluate(String url, AbortableHttpRequest request,
+      HttpResponse response, boolean expectScheduled) throws IOException {
+    StatusLine status = response.getStatusLine();
+    int statusCode = status == null ? 0 : status.getStatusCode();
+
+    HttpEntity entity = response.getEntity();
+    String body = "";
+    boolean truncated = false;
+    if (entity != null) {
+      byte[] buffer = new byte[maxBytes];
+      int length = 0;
+      InputStream content = entity.getContent();
+      try {
+        int read;
+        while (length < maxBytes
+            && (read = content.read(buffer, length, maxBytes - length)) > 0) {
+          length += read;
+        }
+        truncated = length == maxBytes && content.read() >= 0;
+        if (!truncated) {
+          content.close();
+        }
+      } finally {
+        if (truncated) {
+          // Reading the rest could take long, give up on the connection
+          request.abort();
+        }
+      }
+      body = new String(buffer, 0, length, getCharset(entity));
+    }
+    return evaluate(url, statusCode, body, truncated, expectScheduled);
+  }
+
+  /**
+   * Creates a consumer that evaluates a response received by a non-blocking
+   * client.
+   * @param url The URL that was used for notification
+   * @return The response consumer
+   */
+  public HttpAsyncResponseConsumer<NotificationResult> newAsyncConsumer(
+      String url) {
+    return newAsyncConsumer(url, true);
+  }
+
+  /**
+   * Creates a consumer that evaluates a response received by a non-blocking
+   * client, optionally accepting any 2xx status as a success.
+   * @param url The URL that was used for notification
+   * @param expectScheduled True if the body must start with {@code Scheduled}
+   * @return The response consumer
+   */
+  public HttpAsyncResponseConsumer<NotificationResult> newAsyncConsumer(
+      String url, boolean expectScheduled) {
+    return new BoundedResponseConsumer(url, expectScheduled);
+  }
+
+  private static NotificationResult evaluate(String url, int statusCode,
+      String body, boolean truncated, boolean expectScheduled) {
+    boolean successful = statusCode / 100 == 2
+        && (!expectScheduled || body.startsWith(SCHEDULED));
+    // Server errors are usually transient, e.g. Jenkins restarting, and a
+    // response without a status can't tell whether anything was scheduled
+    boolean retryable = statusCode == 0 || statusCode >= 500;
+    return new NotificationResult(successful, url,
+        "Jenkins response: " + body + (truncated ? "..." : ""), retryable);
+  }
+
+  private static Charset getCharset(HttpEntity entity) {
+    try {
+      return getCharset(ContentType.get(entity));
+    } catch (RuntimeException e) {
+      // Unknown or invalid charset, fall back to UTF-8
+      return Charsets.UTF_8;
+    }
+  }
+
+  private static Charset getCharset(ContentType contentType) {
+    return contentType != null && contentType.getCharset() != null
+        ? contentType.getCharset() : Charsets.UTF_8;
+  }
+
+  /**
+   * Keeps the prefix of a response body as it is received and discards the
+   * rest, so the connection can still be reused.
+   */
+  private final class BoundedResponseConsumer
+      extends AbstractAsyncResponseConsumer<NotificationResult> {
+
+    private final String url;
+    private final boolean expectScheduled;
+    private final ByteBuffer prefix = ByteBuffer.allocate(maxBytes);
+    private ByteBuffer discarded;
+    private int statusCode;
+    private Charset charset = Charsets.UTF_8;
+    private boolean truncated;
+
+    private BoundedResponseConsumer(String url, boolean expectScheduled) {
+      this.url = url;
+      this.expectScheduled = expectScheduled;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) {
+      StatusLine status = response.getStatusLine();
+      statusCode = status == null ? 0 : status.getStatusCode();
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity,
+        ContentType contentType) {
+      charset = getCharset(contentType);
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder,
+        IOControl ioControl) throws IOException {
+      while (prefix.hasRemaining()) {
+        if (decoder.read(prefix) <= 0) {
+          return;
+        }
+      }
+      if (discarded == null) {
+        discarded = ByteBuffer.allocate(DISCARD_BUFFER_SIZE);
+      }
+      while (decoder.read(discarded) > 0) {
+        truncated = true;
+        discarded.clear();
+      }
+    }
+
+    @Override
+    protected NotificationResult buildResult(HttpContext context) {
+      return evaluate(url, statusCode,
+          new String(prefix.array(), 0, prefix.position(), charset), truncated,
+          expectScheduled);
+    }
+
+    @Override
+    protected void releaseResources() {
+      discarded = null;
+    }
+  }
+}
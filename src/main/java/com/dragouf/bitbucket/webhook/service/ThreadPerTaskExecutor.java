@@ -0,0 +1,167 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a new thread for every task instead of pooling threads, which is how
+ * virtual threads are meant to be used. The number of tasks running at the
+ * same time is bounded; tasks submitted beyond that bound wait in a bounded
+ * queue and are started as running tasks complete. A task that can neither
+ * start nor be queued is rejected with a {@link RejectedExecutionException}.
+ */
+final class ThreadPerTaskExecutor extends AbstractExecutorService {
+
+  private final ThreadFactory threadFactory;
+  private final Semaphore inFlight;
+  private final BlockingQueue<Runnable> queue;
+  private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+  private volatile boolean shutdown;
+
+  /**
+   * Create a new executor.
+   * @param maxInFlight Maximum number of tasks running at the same time, at
+   * least one is allowed
+   * @param queueCapacity Maximum number of tasks waiting to start, at least
+   * one is used
+   * @param threadFactory Creates the thread of each task
+   */
+  ThreadPerTaskExecutor(int maxInFlight, int queueCapacity,
+      ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+    this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+    this.queue = new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity));
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    if (shutdown) {
+      throw new RejectedExecutionException("Executor has been shut down");
+    }
+    if (inFlight.tryAcquire()) {
+      start(task);
+      return;
+    }
+    if (!queue.offer(task)) {
+      throw new RejectedExecutionException("Queue full");
+    }
+    if (shutdown && queue.remove(task)) {
+      throw new RejectedExecutionException("Executor has been shut down");
+    }
+    // A running task may have completed before the task was queued
+    drain();
+  }
+
+  /**
+   * Gets the tasks waiting to start.
+   * @return The queue
+   */
+  BlockingQueue<Runnable> getQueue() {
+    return queue;
+  }
+
+  /**
+   * Gets the number of running tasks.
+   * @return The active count
+   */
+  int getActiveCount() {
+    return threads.size();
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+    signalTermination();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown = true;
+    List<Runnable> drained = new ArrayList<Runnable>();
+    queue.drainTo(drained);
+    for (Thread thread : threads) {
+      thread.interrupt();
+    }
+    signalTermination();
+    return drained;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return shutdown && threads.isEmpty();
+  }
+
+  @Override
+  public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!isTerminated()) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Starts a task on a new thread, with a permit already taken for it.
+   */
+  private void start(final Runnable task) {
+    Thread thread = threadFactory.newThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          threads.remove(Thread.currentThread());
+          inFlight.release();
+          signalTermination();
+          drain();
+        }
+      }
+    });
+    if (thread == null) {
+      inFlight.release();
+      throw new RejectedExecutionException("Could not create a thread");
+    }
+    threads.add(thread);
+    thread.start();
+  }
+
+  /**
+   * Starts queued tasks while permits are available.
+   */
+  private void drain() {
+    while (!shutdown && !queue.isEmpty() && inFlight.tryAcquire()) {
+      Runnable next = queue.poll();
+      if (next == null) {
+        // Taken by another thread meanwhile
+        inFlight.release();
+        return;
+      }
+      start(next);
+    }
+  }
+
+  private synchronized void signalTermination() {
+    if (isTerminated()) {
+      notifyAll();
+    }
+  }
+}
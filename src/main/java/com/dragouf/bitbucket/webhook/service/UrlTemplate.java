@@ -0,0 +1,227 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The Jenkins notification URL of a hook configuration, compiled once so that
+ * a notification only appends its own parameters. The static part, i.e. the
+ * Jenkins base URL, the encoded clone URL and the HipChat user, is built when
+ * the template is compiled.
+ *
+ * Custom parameters are appended as given, e.g. {@code &token=abc&cause=${user}},
+ * with the following variables replaced by their URL-encoded value:
+ * <ul>
+ * <li>{@code ${branch}}, the changed branch, e.g. {@code master}</li>
+ * <li>{@code ${sha1}}, the commit hash</li>
+ * <li>{@code ${prId}}, the pull request id</li>
+ * <li>{@code ${user}}, the name of the user who caused the notification</li>
+ * </ul>
+ */
+public final class UrlTemplate {
+
+  /**
+   * The variables that custom parameters may use
+   */
+  public static final List<String> VARIABLES =
+      Arrays.asList("branch", "sha1", "prId", "user");
+
+  private static final String BRANCH_PREFIX = "refs/heads/";
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+  private static final int BRANCH = 0;
+  private static final int SHA1 = 1;
+  private static final int PR_ID = 2;
+  private static final int USER = 3;
+
+  private final String prefix;
+  private final String suffix;
+  private final boolean omitHashCode;
+  private final boolean omitBranchName;
+  private final String[] literals;
+  private final int[] variables;
+
+  private UrlTemplate(String prefix, String suffix, boolean omitHashCode,
+      boolean omitBranchName, List<String> literals, List<Integer> variables) {
+    this.prefix = prefix;
+    this.suffix = suffix;
+    this.omitHashCode = omitHashCode;
+    this.omitBranchName = omitBranchName;
+    this.literals = literals.toArray(new String[literals.size()]);
+    this.variables = new int[variables.size()];
+    for (int i = 0; i < this.variables.length; i++) {
+      this.variables[i] = variables.get(i);
+    }
+  }
+
+  /**
+   * Compiles the notification URL of a hook configuration.
+   * @param jenkinsBase Base URL for Jenkins instance
+   * @param cloneUrl The repository url
+   * @param hipchatUser The HipChat user, may be null
+   * @param omitHashCode Defines whether the commit's SHA1 hash code is omitted
+   * @param omitBranchName Defines whether the commit's branch name is omitted
+   * @param customParameters Custom parameters to append, may be null
+   * @return The compiled template
+   * @throws IllegalArgumentException if the clone URL is missing or the
+   * custom parameters are invalid
+   */
+  public static UrlTemplate compile(String jenkinsBase, String cloneUrl,
+      String hipchatUser, boolean omitHashCode, boolean omitBranchName,
+      String customParameters) {
+    if (cloneUrl == null) {
+      throw new IllegalArgumentException("No clone url to notify Jenkins of");
+    }
+    StringBuilder prefix = new StringBuilder();
+    prefix.append(jenkinsBase != null && jenkinsBase.endsWith("/")
+        ? jenkinsBase.substring(0, jenkinsBase.length() - 1) : jenkinsBase);
+    prefix.append("?GIT_URL=");
+    appendEncoded(prefix, cloneUrl);
+
+    List<String> literals = new ArrayList<String>();
+    List<Integer> variables = new ArrayList<Integer>();
+    parse(customParameters, literals, variables);
+    return new UrlTemplate(prefix.toString(), "&HIPCHAT_USER=" + hipchatUser,
+        omitHashCode, omitBranchName, literals, variables);
+  }
+
+  /**
+   * Checks custom parameters.
+   * @param customParameters The custom parameters, may be null
+   * @throws IllegalArgumentException if a variable is unknown or not closed
+   */
+  public static void validate(String customParameters) {
+    parse(customParameters, new ArrayList<String>(), new ArrayList<Integer>());
+  }
+
+  /**
+   * Builds the URL of a notification.
+   * @param ref The branch ref related to the commit
+   * @param sha1 The commit's SHA1 hash code
+   * @param prId The pull request id, may be null
+   * @param user The name of the user who caused the notification, may be
+   * null
+   * @return The URL to notify Jenkins with
+   */
+  public String expand(String ref, String sha1, String prId, String user) {
+    StringBuilder url = new StringBuilder(prefix.length() + suffix.length()
+        + 128);
+    url.append(prefix);
+    if (ref != null && !omitBranchName) {
+      url.append("&GIT_BRANCH=");
+      appendEncoded(url, ref);
+    }
+    if (sha1 != null && !omitHashCode) {
+      url.append("&sha1=").append(sha1);
+    }
+    if (omitBranchName) {
+      url.append("&PULLREQUEST_ID=").append(prId);
+    }
+    url.append(suffix);
+    for (int i = 0; i < variables.length; i++) {
+      url.append(literals[i]);
+      appendEncoded(url, getValue(variables[i], ref, sha1, prId, user));
+    }
+    if (literals.length > variables.length) {
+      url.append(literals[variables.length]);
+    }
+    return url.toString();
+  }
+
+  /**
+   * Appends a value encoded like {@link java.net.URLEncoder} does with UTF-8,
+   * without allocating for values that need no encoding.
+   * @param builder The builder to append to
+   * @param value The value to encode, may be null
+   */
+  static void appendEncoded(StringBuilder builder, String value) {
+    if (value == null) {
+      return;
+    }
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (isUnreserved(c)) {
+        builder.append(c);
+      } else if (c == ' ') {
+        builder.append('+');
+      } else if (c < 0x80) {
+        appendByte(builder, c);
+      } else if (c < 0x800) {
+        appendByte(builder, 0xC0 | (c >> 6));
+        appendByte(builder, 0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        appendByte(builder, 0xF0 | (codePoint >> 18));
+        appendByte(builder, 0x80 | ((codePoint >> 12) & 0x3F));
+        appendByte(builder, 0x80 | ((codePoint >> 6) & 0x3F));
+        appendByte(builder, 0x80 | (codePoint & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        // Like String.getBytes, an unpaired surrogate becomes a '?'
+        appendByte(builder, '?');
+      } else {
+        appendByte(builder, 0xE0 | (c >> 12));
+        appendByte(builder, 0x80 | ((c >> 6) & 0x3F));
+        appendByte(builder, 0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private static boolean isUnreserved(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*'
+        || c == '_';
+  }
+
+  private static void appendByte(StringBuilder builder, int b) {
+    builder.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+  }
+
+  private static String getValue(int variable, String ref, String sha1,
+      String prId, String user) {
+    switch (variable) {
+      case BRANCH:
+        return ref != null && ref.startsWith(BRANCH_PREFIX)
+            ? ref.substring(BRANCH_PREFIX.length()) : ref;
+      case SHA1:
+        return sha1;
+      case PR_ID:
+        return prId;
+      case USER:
+        return user;
+      default:
+        throw new IllegalStateException("Unknown variable " + variable);
+    }
+  }
+
+  /**
+   * Splits custom parameters into literals and the variables between them.
+   */
+  private static void parse(String customParameters, List<String> literals,
+      List<Integer> variables) {
+    if (customParameters == null || customParameters.trim().isEmpty()) {
+      return;
+    }
+    String parameters = customParameters.trim();
+    int start = 0;
+    int open;
+    while ((open = parameters.indexOf("${", start)) >= 0) {
+      int close = parameters.indexOf('}', open);
+      if (close < 0) {
+        throw new IllegalArgumentException("Variable at position " + open
+            + " is not closed");
+      }
+      String name = parameters.substring(open + 2, close).trim();
+      int variable = VARIABLES.indexOf(name);
+      if (variable < 0) {
+        throw new IllegalArgumentException("Unknown variable ${" + name
+            + "}, use one of " + VARIABLES);
+      }
+      literals.add(parameters.substring(start, open));
+      variables.add(variable);
+      start = close + 1;
+    }
+    literals.add(parameters.substring(start));
+  }
+}
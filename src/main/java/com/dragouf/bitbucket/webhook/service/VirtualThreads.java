@@ -0,0 +1,45 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates virtual threads on runtimes that have them (Java 21 and later). The
+ * plugin is built for Java 8, so the virtual thread API is looked up
+ * reflectively; on older runtimes no factory is returned and callers fall back
+ * to platform threads.
+ */
+public final class VirtualThreads {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(VirtualThreads.class);
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Creates a factory of virtual threads.
+   * @param name Prefix for the names of the threads
+   * @return The thread factory, or null if the runtime doesn't support
+   * virtual threads
+   */
+  public static ThreadFactory newThreadFactory(String name) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method nameMethod =
+          builderClass.getMethod("name", String.class, long.class);
+      builder = nameMethod.invoke(builder, name + ":thread-", 1L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      LOGGER.debug("Virtual threads are not supported by this runtime", e);
+      return null;
+    } catch (RuntimeException e) {
+      LOGGER.debug("Virtual threads are not supported by this runtime", e);
+      return null;
+    }
+  }
+}
@@ -1,5 +1,8 @@
 package com.dragouf.bitbucket.webhook.service.eligibility;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
 import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.RefChangeType;
@@ -7,19 +10,46 @@ import com.atlassian.bitbucket.setting.Settings;
 import com.dragouf.bitbucket.webhook.Notifier;
 import com.dragouf.bitbucket.webhook.service.BranchEvaluator;
 import com.dragouf.bitbucket.webhook.service.SettingsService;
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 /**
  * Defines an eligibility filter that provides the ability to create a
  * black/whitelist of branches to ignore or accept commits for notification
- * sending.
+ * sending. The branch patterns are compiled into a {@link BranchMatcher} once
+ * per distinct settings value.
+ *
+ * When the {@link EventContext} is scoped to a single ref change, only that
+ * ref is considered; otherwise all the refs changed by the event are.
  *
  * @author Michael Irwin (mikesir87)
  */
 public class BranchEligibilityFilter
     implements EligibilityFilter {
 
+  /**
+   * Key of the compiled branch patterns in the {@link EventContext}
+   */
+  public static final String BRANCH_PATTERNS = "branchPatterns";
+
+  private static final Logger logger = // CHECKSTYLE:logger
+      LoggerFactory.getLogger(BranchEligibilityFilter.class);
+  private static final long MAX_CACHED_MATCHERS = 500L;
+
   private SettingsService settingsService;
   private BranchEvaluator branchEvaluator;
+  private final LoadingCache<String, BranchMatcher> matchers =
+      CacheBuilder.newBuilder()
+          .maximumSize(MAX_CACHED_MATCHERS)
+          .build(new CacheLoader<String, BranchMatcher>() {
+            @Override
+            public BranchMatcher load(String patterns) {
+              return BranchMatcher.compile(patterns);
+            }
+          });
 
   /**
    * Create a new instance.
@@ -33,35 +63,61 @@ public class BranchEligibilityFilter
   }
 
 
+  /**
+   * {@inheritDoc}
+   *
+   * Only matches the changed ref against the compiled branch patterns.
+   */
+  @Override
+  public Cost getCost() {
+    return Cost.CHEAP;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Class<?> getEventType() {
+    return RepositoryRefsChangedEvent.class;
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public boolean shouldDeliverNotification(EventContext context) {
-    if (!RepositoryRefsChangedEvent.class.isAssignableFrom(context.getEventSource()
-        .getClass()))
+    if (!(context.getEventSource() instanceof RepositoryRefsChangedEvent))
       return true;
 
     RepositoryRefsChangedEvent event = (RepositoryRefsChangedEvent) context.getEventSource();
 
+    // Contexts scoped to a single ref only look at that ref
+    RefChange scoped = context.getRefChange();
+
     // Don't trigger Jenkins Webhook on deleted branches
-    RefChange refCh = event.getRefChanges().iterator().next();
+    RefChange refCh = scoped != null
+        ? scoped : event.getRefChanges().iterator().next();
     if (refCh.getType().compareTo(RefChangeType.DELETE) == 0)
       return false;
 
-    final Settings settings = settingsService.getSettings(
-        context.getRepository());
+    final Settings settings = context.getSettings(settingsService);
     String branchOption = settings.getString(Notifier.BRANCH_OPTIONS);
     if (branchOption == null ||
         (!branchOption.equals("blacklist") && !branchOption.equals("whitelist")))
       return true;
 
-    String[] branchesSettings =
-        settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES).split(" ");
-    Iterable<String> branches =
-        branchEvaluator.getBranches(event.getRefChanges());
-
-    boolean haveMatch = hasMatch(branchesSettings, branches);
+    BranchMatcher matcher = context.memoize(BRANCH_PATTERNS,
+        () -> getMatcher(settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES)));
+    if (matcher == null)
+      return true;
+    boolean haveMatch;
+    if (scoped != null) {
+      String branch = branchEvaluator.getBranch(scoped);
+      haveMatch = branch != null && matcher.matches(branch);
+    } else {
+      haveMatch = matcher.matchesAny(
+          branchEvaluator.getBranches(event.getRefChanges()));
+    }
     if (haveMatch && branchOption.equals("blacklist"))
       return false;
     else if (!haveMatch && branchOption.equals("whitelist"))
@@ -69,20 +125,20 @@ public class BranchEligibilityFilter
     return true;
   }
 
-  protected boolean hasMatch(String[] settings,
-      Iterable<String> affectedBranches) {
-    for (String branch : affectedBranches) {
-      branch = branch.toLowerCase();
-      for (String s : settings) {
-        s = s.toLowerCase();
-        if (s.endsWith("*") && branch.startsWith(s.substring(0, s.length() - 1)))
-          return true;
-        if (s.equals(branch))
-          return true;
-      }
+  /**
+   * Gets the compiled matcher for the branch patterns, compiling them only the
+   * first time they are seen.
+   * @param patterns The branch patterns of the hook settings
+   * @return The matcher, or null if the patterns are invalid
+   */
+  private BranchMatcher getMatcher(String patterns) {
+    try {
+      return matchers.getUnchecked(Strings.nullToEmpty(patterns));
+    } catch (UncheckedExecutionException e) {
+      logger.warn("Ignoring invalid branch patterns '{}'", patterns,
+          e.getCause());
+      return null;
     }
-
-    return false;
   }
 
 }
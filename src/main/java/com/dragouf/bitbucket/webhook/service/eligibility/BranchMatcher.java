@@ -0,0 +1,185 @@
+package com.dragouf.bitbucket.webhook.service.eligibility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Joiner;
+
+/**
+ * A matcher for the space-delimited branch patterns of the hook settings,
+ * compiled once so that matching a branch doesn't depend on the number of
+ * patterns. Matching is case-insensitive. Supported patterns are:
+ * <ul>
+ * <li>exact branch names, e.g. {@code master}</li>
+ * <li>prefixes, e.g. {@code feature*}, which match any branch starting with
+ * the prefix, including nested ones like {@code feature/foo/bar}</li>
+ * <li>globs, e.g. {@code release/*&#47;hotfix}, where {@code *} and {@code ?}
+ * don't match a {@code /} and {@code **} matches anything</li>
+ * <li>regular expressions prefixed with {@code regex:}, e.g.
+ * {@code regex:release/\d+\.\d+}, which must match the whole branch name</li>
+ * </ul>
+ */
+public final class BranchMatcher {
+
+  /**
+   * Prefix of patterns that are regular expressions
+   */
+  public static final String REGEX_PREFIX = "regex:";
+
+  private final Set<String> exactNames = new HashSet<String>();
+  private final PrefixNode prefixes = new PrefixNode();
+  private final Pattern pattern;
+
+  private BranchMatcher(Set<String> exactNames, List<String> prefixes,
+      List<String> regexes) {
+    this.exactNames.addAll(exactNames);
+    for (String prefix : prefixes) {
+      this.prefixes.add(prefix);
+    }
+    this.pattern = regexes.isEmpty() ? null : Pattern.compile(
+        "(?:" + Joiner.on(")|(?:").join(regexes) + ")",
+        Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+  }
+
+  /**
+   * Compiles the branch patterns of the hook settings.
+   * @param patterns Space-delimited branch patterns, may be null
+   * @return The compiled matcher
+   * @throws IllegalArgumentException if a regular expression is invalid
+   */
+  public static BranchMatcher compile(String patterns) {
+    Set<String> exactNames = new HashSet<String>();
+    List<String> prefixes = new ArrayList<String>();
+    List<String> regexes = new ArrayList<String>();
+    if (patterns != null) {
+      for (String pattern : patterns.trim().split("\\s+")) {
+        if (pattern.isEmpty()) {
+          continue;
+        }
+        if (pattern.startsWith(REGEX_PREFIX)) {
+          String regex = pattern.substring(REGEX_PREFIX.length());
+          // Fail on the offending pattern rather than on the combined one
+          Pattern.compile(regex);
+          regexes.add(regex);
+          continue;
+        }
+
+        String glob = pattern.toLowerCase(Locale.ROOT);
+        int wildcard = indexOfWildcard(glob);
+        if (wildcard < 0) {
+          exactNames.add(glob);
+        } else if (wildcard == glob.length() - 1 && glob.endsWith("*")) {
+          prefixes.add(glob.substring(0, wildcard));
+        } else {
+          regexes.add(globToRegex(glob));
+        }
+      }
+    }
+    return new BranchMatcher(exactNames, prefixes, regexes);
+  }
+
+  /**
+   * Checks whether a branch matches any of the patterns.
+   * @param branch The branch name, without {@code refs/heads/}
+   * @return True if the branch matches
+   */
+  public boolean matches(String branch) {
+    String name = branch.toLowerCase(Locale.ROOT);
+    return exactNames.contains(name)
+        || prefixes.matchesPrefixOf(name)
+        || (pattern != null && pattern.matcher(name).matches());
+  }
+
+  /**
+   * Checks whether any of the branches matches any of the patterns.
+   * @param branches The branch names, without {@code refs/heads/}
+   * @return True if at least one branch matches
+   */
+  public boolean matchesAny(Iterable<String> branches) {
+    for (String branch : branches) {
+      if (matches(branch)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int indexOfWildcard(String glob) {
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String globToRegex(String glob) {
+    StringBuilder regex = new StringBuilder();
+    StringBuilder literal = new StringBuilder();
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c != '*' && c != '?') {
+        literal.append(c);
+        continue;
+      }
+      if (literal.length() > 0) {
+        regex.append(Pattern.quote(literal.toString()));
+        literal.setLength(0);
+      }
+      if (c == '?') {
+        regex.append("[^/]");
+      } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+        regex.append(".*");
+        i++;
+      } else {
+        regex.append("[^/]*");
+      }
+    }
+    if (literal.length() > 0) {
+      regex.append(Pattern.quote(literal.toString()));
+    }
+    return regex.toString();
+  }
+
+  /**
+   * A character trie of the prefix patterns.
+   */
+  private static final class PrefixNode {
+
+    private final Map<Character, PrefixNode> children =
+        new HashMap<Character, PrefixNode>();
+    private boolean terminal;
+
+    private void add(String prefix) {
+      PrefixNode node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        Character c = prefix.charAt(i);
+        PrefixNode child = node.children.get(c);
+        if (child == null) {
+          child = new PrefixNode();
+          node.children.put(c, child);
+        }
+        node = child;
+      }
+      node.terminal = true;
+    }
+
+    private boolean matchesPrefixOf(String name) {
+      PrefixNode node = this;
+      for (int i = 0; !node.terminal && i < name.length(); i++) {
+        node = node.children.get(name.charAt(i));
+        if (node == null) {
+          return false;
+        }
+      }
+      return node.terminal;
+    }
+  }
+}
@@ -1,31 +1,266 @@
 package com.dragouf.bitbucket.webhook.service.eligibility;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.dragouf.bitbucket.webhook.service.ConcreteNotificationMetrics;
+import com.dragouf.bitbucket.webhook.service.NotificationMetrics;
 
 /**
  * A concrete implementation of the EligiblityFilterChain.
  *
+ * Filters are evaluated from the cheapest to the most expensive according to
+ * their {@link EligibilityFilter#getCost() cost}, keeping the order they were
+ * provided in among filters of the same cost. The time each filter takes is
+ * recorded in the metrics. With adaptive ordering enabled, filters of the
+ * same cost are periodically reordered so that the ones that reject the most
+ * events for the least time come first.
+ *
+ * Each filter declares the {@link EligibilityFilter#getEventType() type of
+ * events} it applies to. The filters applying to a concrete event class are
+ * looked up once and reused for all later events of that class, so filters
+ * are only run for the events they care about.
+ *
  * @author Michael Irwin (mikesir87)
  */
 public class ConcreteEligibilityFilterChain implements EligibilityFilterChain {
 
-  private List<EligibilityFilter> filters;
+  /**
+   * Plugin property enabling the adaptive ordering of filters of the same cost
+   */
+  public static final String ADAPTIVE_ORDER =
+      "plugin.jenkins.webhook.filters.adaptiveOrder";
+
+  private static final long REORDER_INTERVAL = 1000L;
+  private static final Comparator<EligibilityFilter> BY_COST =
+      Comparator.comparing(ConcreteEligibilityFilterChain::costOf);
+
+  private volatile FilterRegistry registry;
+  private final Map<EligibilityFilter, FilterStats> stats =
+      new IdentityHashMap<EligibilityFilter, FilterStats>();
+  private final NotificationMetrics metrics;
+  private final boolean adaptive;
+  private final AtomicLong evaluations = new AtomicLong();
 
   /**
    * Construct a new instance with the provided filters
    * @param filters The EligibilityFilters to be used.
    */
   public ConcreteEligibilityFilterChain(List<EligibilityFilter> filters) {
-    this.filters = filters;
+    this(filters, null, false);
+  }
+
+  /**
+   * Construct a new instance with the provided filters that counts the
+   * notifications each filter rejects.
+   * @param filters The EligibilityFilters to be used.
+   * @param metrics The metrics to record rejections in, may be null
+   */
+  public ConcreteEligibilityFilterChain(List<EligibilityFilter> filters,
+      NotificationMetrics metrics) {
+    this(filters, metrics, false);
+  }
+
+  /**
+   * Construct a new instance with the provided filters, reading whether they
+   * are ordered adaptively from the plugin properties.
+   * @param filters The EligibilityFilters to be used.
+   * @param metrics The metrics to record rejections in, may be null
+   * @param propertiesService Service used to read the plugin properties
+   */
+  public ConcreteEligibilityFilterChain(List<EligibilityFilter> filters,
+      NotificationMetrics metrics,
+      ApplicationPropertiesService propertiesService) {
+    this(filters, metrics,
+        propertiesService.getPluginProperty(ADAPTIVE_ORDER, false));
+  }
+
+  ConcreteEligibilityFilterChain(List<EligibilityFilter> filters,
+      NotificationMetrics metrics, boolean adaptive) {
+    this.metrics = metrics != null ? metrics : new ConcreteNotificationMetrics();
+    this.adaptive = adaptive;
+    List<EligibilityFilter> ordered = new ArrayList<EligibilityFilter>(filters);
+    Collections.sort(ordered, BY_COST);
+    for (EligibilityFilter filter : ordered) {
+      stats.put(filter, new FilterStats());
+    }
+    this.registry = new FilterRegistry(ordered);
   }
 
   @Override
   public boolean shouldDeliverNotification(EventContext event) {
-    for (EligibilityFilter filter : filters) {
-      if (!filter.shouldDeliverNotification(event))
+    for (EligibilityFilter filter : registry.getFilters(event)) {
+      long start = System.nanoTime();
+      boolean deliver = filter.shouldDeliverNotification(event);
+      record(filter, System.nanoTime() - start, deliver);
+      if (!deliver) {
         return false;
+      }
     }
     return true;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * The filters are evaluated in order, and the remaining filters are skipped
+   * as soon as one says the notification should not be delivered.
+   */
+  @Override
+  public CompletableFuture<Boolean> shouldDeliverNotificationAsync(
+      final EventContext event, final Executor executor) {
+    CompletableFuture<Boolean> result = CompletableFuture.completedFuture(true);
+    for (final EligibilityFilter filter : registry.getFilters(event)) {
+      result = result.thenCompose(deliver -> {
+        if (!deliver) {
+          return CompletableFuture.completedFuture(false);
+        }
+        final long start = System.nanoTime();
+        return filter.shouldDeliverNotificationAsync(event, executor)
+            .thenApply(filtered -> {
+              record(filter, System.nanoTime() - start, filtered);
+              return filtered;
+            });
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Gets the filters in the order they are evaluated.
+   * @return The filters
+   */
+  public List<EligibilityFilter> getFilters() {
+    return registry.filters;
+  }
+
+  /**
+   * Gets the filters evaluated for events of the provided source type, in
+   * the order they are evaluated.
+   * @param eventType The type of the event source
+   * @return The filters applying to the type
+   */
+  public List<EligibilityFilter> getFilters(Class<?> eventType) {
+    return registry.getFilters(eventType);
+  }
+
+  private void record(EligibilityFilter filter, long nanos, boolean deliver) {
+    metrics.recordFilterLatency(filter.getClass(), nanos);
+    if (!deliver) {
+      metrics.recordFilterRejection(filter.getClass());
+    }
+    if (adaptive) {
+      stats.get(filter).record(nanos, deliver);
+      if (evaluations.incrementAndGet() % REORDER_INTERVAL == 0) {
+        reorder();
+      }
+    }
+  }
+
+  /**
+   * Orders the filters of the same cost by their expected time per
+   * rejection, which puts first the filters that are most likely to end the
+   * evaluation early for the least time.
+   */
+  private void reorder() {
+    final Map<EligibilityFilter, Double> ranks =
+        new IdentityHashMap<EligibilityFilter, Double>();
+    List<EligibilityFilter> ordered =
+        new ArrayList<EligibilityFilter>(registry.filters);
+    for (EligibilityFilter filter : ordered) {
+      ranks.put(filter, stats.get(filter).getRank());
+    }
+    Collections.sort(ordered, BY_COST.thenComparing(ranks::get));
+    registry = new FilterRegistry(ordered);
+  }
+
+  private static Cost costOf(EligibilityFilter filter) {
+    Cost cost = filter.getCost();
+    return cost != null ? cost : Cost.MODERATE;
+  }
+
+  private static Class<?> eventTypeOf(EligibilityFilter filter) {
+    Class<?> type = filter.getEventType();
+    return type != null ? type : Object.class;
+  }
+
+  /**
+   * The filters in the order they are evaluated, and those of them applying
+   * to each event source class seen so far.
+   */
+  private static final class FilterRegistry {
+
+    private final List<EligibilityFilter> filters;
+    private final ConcurrentMap<Class<?>, List<EligibilityFilter>> byType =
+        new ConcurrentHashMap<Class<?>, List<EligibilityFilter>>();
+
+    private FilterRegistry(List<EligibilityFilter> filters) {
+      this.filters = Collections.unmodifiableList(filters);
+    }
+
+    private List<EligibilityFilter> getFilters(EventContext event) {
+      Object source = event.getEventSource();
+      return getFilters(source != null ? source.getClass() : Object.class);
+    }
+
+    private List<EligibilityFilter> getFilters(Class<?> type) {
+      List<EligibilityFilter> applicable = byType.get(type);
+      if (applicable == null) {
+        applicable = byType.computeIfAbsent(type, this::select);
+      }
+      return applicable;
+    }
+
+    private List<EligibilityFilter> select(Class<?> type) {
+      List<EligibilityFilter> applicable = new ArrayList<EligibilityFilter>();
+      for (EligibilityFilter filter : filters) {
+        if (eventTypeOf(filter).isAssignableFrom(type)) {
+          applicable.add(filter);
+        }
+      }
+      return Collections.unmodifiableList(applicable);
+    }
+  }
+
+  /**
+   * What a filter cost and how often it rejected events.
+   */
+  private static final class FilterStats {
+
+    private final LongAdder evaluated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    private void record(long elapsed, boolean deliver) {
+      evaluated.increment();
+      nanos.add(elapsed);
+      if (!deliver) {
+        rejected.increment();
+      }
+    }
+
+    /**
+     * Gets the mean time spent per rejected event, smoothed so that filters
+     * that have rejected nothing yet still get a finite rank. Filters too
+     * fast to measure count as a nanosecond, so they are still ordered by
+     * how often they reject.
+     */
+    private double getRank() {
+      double count = evaluated.sum();
+      double meanNanos = count == 0d ? 1d : Math.max(1d, nanos.sum() / count);
+      double rejectionRate = (rejected.sum() + 1d) / (count + 2d);
+      return meanNanos / rejectionRate;
+    }
+  }
 }
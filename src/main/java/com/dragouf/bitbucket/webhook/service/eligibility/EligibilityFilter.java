@@ -1,5 +1,7 @@
 package com.dragouf.bitbucket.webhook.service.eligibility;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * A SendingFilter represents a single filter in an EligibilityFilterChain that
@@ -12,6 +14,25 @@ package com.dragouf.bitbucket.webhook.service.eligibility;
  */
 public interface EligibilityFilter {
 
+  /**
+   * How expensive a filter is to evaluate. A chain evaluates cheaper filters
+   * first, so that most events are rejected before the expensive checks run.
+   */
+  enum Cost {
+    /**
+     * Only looks at the event and the hook settings
+     */
+    CHEAP,
+    /**
+     * May look data up in Bitbucket, usually from a cache
+     */
+    MODERATE,
+    /**
+     * Runs git operations or other slow checks
+     */
+    EXPENSIVE
+  }
+
   /**
    * Determines whether a notification should be delivered based on the provided
    * event.
@@ -21,4 +42,38 @@ public interface EligibilityFilter {
    */
   boolean shouldDeliverNotification(EventContext event);
 
+  /**
+   * Determines whether a notification should be delivered without blocking
+   * the calling thread on expensive checks. Filters with such checks run them
+   * on the provided executor; the default implementation evaluates
+   * {@link #shouldDeliverNotification(EventContext)} on the calling thread.
+   * @param event The event to be analyzed.
+   * @param executor Executor for expensive checks
+   * @return A future of the result of
+   * {@link #shouldDeliverNotification(EventContext)}
+   */
+  default CompletableFuture<Boolean> shouldDeliverNotificationAsync(
+      EventContext event, Executor executor) {
+    return CompletableFuture.completedFuture(shouldDeliverNotification(event));
+  }
+
+  /**
+   * Gets how expensive the filter is to evaluate.
+   * @return The cost of the filter, {@link Cost#MODERATE} unless overridden
+   */
+  default Cost getCost() {
+    return Cost.MODERATE;
+  }
+
+  /**
+   * Gets the type of event sources the filter applies to. A chain only asks
+   * the filter about events whose source is an instance of this type, and
+   * delivers the others as far as this filter is concerned.
+   * @return The event source type, {@code Object} (all events) unless
+   * overridden
+   */
+  default Class<?> getEventType() {
+    return Object.class;
+  }
+
 }
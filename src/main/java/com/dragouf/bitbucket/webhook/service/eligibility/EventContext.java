@@ -1,12 +1,28 @@
 package com.dragouf.bitbucket.webhook.service.eligibility;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.atlassian.bitbucket.hook.repository.RepositoryHook;
+import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.setting.Settings;
+import com.dragouf.bitbucket.webhook.service.SettingsService;
 
 /**
  * A context object that will be used throughout the eligibility filter chain.
  * The purpose is to encapsulate the original event and provide a single
  * context object.
  *
+ * The context also acts as a per-event scratchpad: the hook settings and any
+ * data derived from them are resolved the first time they are asked for and
+ * then shared by every filter and by the {@code Notifier}.
+ *
+ * An event changing several refs can be evaluated one ref at a time with
+ * contexts {@link #forRefChange(RefChange) scoped} to each ref change. Scoped
+ * contexts share the settings and memoized data of the event's context.
+ *
  * @author Michael Irwin (mikesir87)
  */
 public class EventContext {
@@ -14,6 +30,11 @@ public class EventContext {
   private final Object eventSource;
   private final Repository repository;
   private final String username;
+  private final RefChange refChange;
+  private final EventContext parent;
+  private final Map<String, Object> memos = new HashMap<String, Object>();
+  private Settings settings;
+  private RepositoryHook repositoryHook;
 
   /**
    * Constructs a new context instance
@@ -22,9 +43,42 @@ public class EventContext {
    * @param username The username of the user that initiated the event
    */
   public EventContext(Object source, Repository repository, String username) {
+    this(source, repository, username, null);
+  }
+
+  /**
+   * Constructs a new context instance with already resolved settings
+   * @param source The original event source
+   * @param repository The repository being affected by the event
+   * @param username The username of the user that initiated the event
+   * @param settings The hook settings of the repository, may be null
+   */
+  public EventContext(Object source, Repository repository, String username,
+      Settings settings) {
     this.eventSource = source;
     this.repository = repository;
     this.username = username;
+    this.settings = settings;
+    this.refChange = null;
+    this.parent = null;
+  }
+
+  private EventContext(EventContext parent, RefChange refChange) {
+    this.eventSource = parent.eventSource;
+    this.repository = parent.repository;
+    this.username = parent.username;
+    this.refChange = refChange;
+    this.parent = parent;
+  }
+
+  /**
+   * Creates a context scoped to one of the ref changes of the event, sharing
+   * the settings and memoized data of this context.
+   * @param refChange The ref change to evaluate
+   * @return The scoped context
+   */
+  public EventContext forRefChange(RefChange refChange) {
+    return new EventContext(parent != null ? parent : this, refChange);
   }
 
   /**
@@ -34,6 +88,16 @@ public class EventContext {
   public Object getEventSource() {
     return eventSource;
   }
+
+  /**
+   * Gets the {@code refChange} property.
+   * @return The ref change the context is scoped to, or null if it covers
+   * the whole event
+   */
+  public RefChange getRefChange() {
+    return refChange;
+  }
+
   /**
    * Gets the {@code repository} property.
    * @return The repository that was affected by this event
@@ -49,4 +113,55 @@ public class EventContext {
   public String getUsername() {
     return username;
   }
+
+  /**
+   * Gets the hook settings of the repository, looking them up on first use.
+   * @param settingsService Service used if the settings are not resolved yet
+   * @return The hook settings, or null if the hook is not configured
+   */
+  public synchronized Settings getSettings(SettingsService settingsService) {
+    if (parent != null) {
+      return parent.getSettings(settingsService);
+    }
+    if (settings == null) {
+      settings = settingsService.getSettings(repository);
+    }
+    return settings;
+  }
+
+  /**
+   * Gets the hook of the repository, looking it up on first use.
+   * @param settingsService Service used if the hook is not resolved yet
+   * @return The repository hook, or null if it could not be found
+   */
+  public synchronized RepositoryHook getRepositoryHook(
+      SettingsService settingsService) {
+    if (parent != null) {
+      return parent.getRepositoryHook(settingsService);
+    }
+    if (repositoryHook == null) {
+      repositoryHook = settingsService.getRepositoryHook(repository);
+    }
+    return repositoryHook;
+  }
+
+  /**
+   * Gets a value derived from the event, computing it on first use. Later
+   * calls with the same key return the same value, even if it is null.
+   * @param key Identifies the value
+   * @param supplier Computes the value
+   * @return The memoized value
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized <T> T memoize(String key, Supplier<T> supplier) {
+    if (parent != null) {
+      return parent.memoize(key, supplier);
+    }
+    if (memos.containsKey(key)) {
+      return (T) memos.get(key);
+    }
+    T value = supplier.get();
+    memos.put(key, value);
+    return value;
+  }
 }
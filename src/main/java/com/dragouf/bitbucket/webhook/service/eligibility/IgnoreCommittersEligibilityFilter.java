@@ -1,53 +1,196 @@
 package com.dragouf.bitbucket.webhook.service.eligibility;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 import com.dragouf.bitbucket.webhook.Notifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.atlassian.bitbucket.setting.Settings;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.user.UserService;
 import com.dragouf.bitbucket.webhook.service.SettingsService;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 
 /**
  * An EligibilityFilter that checks if the user that initiated the
  * RepositoryRefsChangedEvent is a user that is in the ignores list for the
  * hook configuration.
  *
+ * Entries of the ignores list prefixed with {@code group:} ignore every member
+ * of that group. The list is parsed once per distinct settings value and
+ * group memberships are cached for a configurable time.
+ *
  * @author Michael Irwin (mikesir87)
  */
 public class IgnoreCommittersEligibilityFilter implements EligibilityFilter {
 
+  /**
+   * Key of the parsed ignored committers in the {@link EventContext}
+   */
+  public static final String IGNORED_COMMITTERS = "ignoredCommitters";
+
+  /**
+   * Prefix of the ignores list entries that are group names
+   */
+  public static final String GROUP_PREFIX = "group:";
+
+  /**
+   * Plugin property for how long group memberships are cached, in seconds
+   */
+  public static final String GROUP_CACHE_TTL =
+      "plugin.jenkins.webhook.ignoreCommitters.groupCache.ttl";
+
   private static final Logger logger = // CHECKSTYLE:logger
   LoggerFactory.getLogger(IgnoreCommittersEligibilityFilter.class);
 
+  private static final long DEFAULT_GROUP_CACHE_TTL = 300L;
+  private static final long MAX_CACHED_LISTS = 500L;
+  private static final long MAX_CACHED_MEMBERSHIPS = 10000L;
+
   private SettingsService settingsService;
+  private final UserService userService;
+  private final SecurityService securityService;
+  private final LoadingCache<String, IgnoredCommitters> ignoredCommitters =
+      CacheBuilder.newBuilder()
+          .maximumSize(MAX_CACHED_LISTS)
+          .build(new CacheLoader<String, IgnoredCommitters>() {
+            @Override
+            public IgnoredCommitters load(String ignoreCommitters) {
+              return new IgnoredCommitters(ignoreCommitters);
+            }
+          });
+  private final Cache<List<String>, Boolean> memberships;
 
   /**
-   * Constructs a new instance
+   * Constructs a new instance that doesn't resolve group entries
    * @param settingsService Service to get the webhook settings
    */
   public IgnoreCommittersEligibilityFilter(
       SettingsService settingsService) {
+    this(settingsService, null, null, DEFAULT_GROUP_CACHE_TTL);
+  }
+
+  /**
+   * Constructs a new instance
+   * @param settingsService Service to get the webhook settings
+   * @param userService Service to resolve group memberships
+   * @param securityService Service to escalate permissions for the group
+   * lookups
+   * @param propertiesService Service used to read the plugin properties
+   */
+  public IgnoreCommittersEligibilityFilter(
+      SettingsService settingsService, UserService userService,
+      SecurityService securityService,
+      ApplicationPropertiesService propertiesService) {
+    this(settingsService, userService, securityService,
+        propertiesService.getPluginProperty(GROUP_CACHE_TTL,
+            DEFAULT_GROUP_CACHE_TTL));
+  }
+
+  private IgnoreCommittersEligibilityFilter(SettingsService settingsService,
+      UserService userService, SecurityService securityService,
+      long groupCacheTtl) {
     this.settingsService = settingsService;
+    this.userService = userService;
+    this.securityService = securityService;
+    this.memberships = CacheBuilder.newBuilder()
+        .maximumSize(MAX_CACHED_MEMBERSHIPS)
+        .expireAfterWrite(groupCacheTtl, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Group entries are resolved through the user service.
+   */
+  @Override
+  public Cost getCost() {
+    return Cost.MODERATE;
   }
 
   @Override
   public boolean shouldDeliverNotification(EventContext event) {
     String eventUserName = event.getUsername();
 
-    final Settings settings = settingsService.getSettings(
-        event.getRepository());
-    String ignoreCommitters = settings.getString(Notifier.IGNORE_COMMITTERS);
+    final Settings settings = event.getSettings(settingsService);
+    final String ignoreCommitters =
+        settings.getString(Notifier.IGNORE_COMMITTERS);
     if (ignoreCommitters == null || eventUserName == null)
       return true;
 
-    for (String committer : ignoreCommitters.split(" ")) {
-      if (committer.equalsIgnoreCase(eventUserName)) {
-        logger.debug("Ignoring push event due to ignore committer {}",
-            committer);
+    IgnoredCommitters committers = event.memoize(IGNORED_COMMITTERS,
+        () -> ignoredCommitters.getUnchecked(ignoreCommitters));
+    String username = eventUserName.toLowerCase(Locale.ROOT);
+    if (committers.users.contains(username)) {
+      logger.debug("Ignoring push event due to ignore committer {}",
+          eventUserName);
+      return false;
+    }
+    for (String group : committers.groups) {
+      if (isUserInGroup(eventUserName, group)) {
+        logger.debug("Ignoring push event due to ignore committer group {}",
+            group);
         return false;
       }
     }
     return true;
   }
 
+  private boolean isUserInGroup(final String username, final String group) {
+    if (userService == null) {
+      return false;
+    }
+    List<String> key = new ArrayList<String>(2);
+    key.add(username);
+    key.add(group);
+    Boolean member = memberships.getIfPresent(key);
+    if (member == null) {
+      try {
+        member = securityService
+            .withPermission(Permission.ADMIN, "Checking group membership")
+            .call(() -> userService.isUserInGroup(username, group));
+      } catch (Exception e) {
+        logger.error("Unexpected exception checking if {} is in group {}",
+            username, group, e);
+        return false;
+      }
+      memberships.put(key, member);
+    }
+    return member;
+  }
+
+  /**
+   * The parsed ignores list of the hook settings.
+   */
+  private static final class IgnoredCommitters {
+
+    private final Set<String> users = new HashSet<String>();
+    private final List<String> groups = new ArrayList<String>();
+
+    private IgnoredCommitters(String ignoreCommitters) {
+      for (String committer : ignoreCommitters.trim().split("\\s+")) {
+        if (committer.startsWith(GROUP_PREFIX)) {
+          String group = committer.substring(GROUP_PREFIX.length());
+          if (!group.isEmpty() && !groups.contains(group)) {
+            groups.add(group);
+          }
+        } else if (!committer.isEmpty()) {
+          users.add(committer.toLowerCase(Locale.ROOT));
+        }
+      }
+    }
+  }
+
 }
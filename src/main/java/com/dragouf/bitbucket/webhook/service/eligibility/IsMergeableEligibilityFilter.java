@@ -1,42 +1,72 @@
 package com.dragouf.bitbucket.webhook.service.eligibility;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.atlassian.bitbucket.event.pull.PullRequestEvent;
-import com.atlassian.bitbucket.pull.PullRequestService;
+import com.atlassian.bitbucket.pull.PullRequestMergeability;
 import com.atlassian.bitbucket.pull.PullRequestState;
+import com.dragouf.bitbucket.webhook.service.MergeabilityService;
 
 /**
  * An EligibilityFilter that checks if the commit that was
  * made, is auto-mergeable by Stash.
  *
- * This filter works with all PullRequestEvents that come through.
+ * This filter works with all PullRequestEvents that come through. Since merge
+ * checks run git operations, the asynchronous variant runs them on the
+ * provided executor, and fails if the executor cannot take them rather than
+ * running them on the calling thread.
  *
  * @author Melvyn de Kort (lordmatanza)
  * @author Michael Irwin (mikesir87)
  */
 public class IsMergeableEligibilityFilter implements EligibilityFilter {
 
+  /**
+   * Key of the pull request mergeability in the {@link EventContext}
+   */
+  public static final String MERGEABILITY = "mergeability";
+
   private static final Logger logger = // CHECKSTYLE:logger
       LoggerFactory.getLogger(IsMergeableEligibilityFilter.class);
 
-  private PullRequestService pullRequestService;
+  private MergeabilityService mergeabilityService;
 
   /**
    * Constructs a new instance
-   * @param pullRequestService Service to get the webhook settings
+   * @param mergeabilityService Service to check if pull requests can be merged
    */
   public IsMergeableEligibilityFilter(
-      PullRequestService pullRequestService) {
-    this.pullRequestService = pullRequestService;
+      MergeabilityService mergeabilityService) {
+    this.mergeabilityService = mergeabilityService;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Merge checks run git operations.
+   */
+  @Override
+  public Cost getCost() {
+    return Cost.EXPENSIVE;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Class<?> getEventType() {
+    return PullRequestEvent.class;
   }
 
   @Override
   public boolean shouldDeliverNotification(EventContext context) {
 
-    if (!PullRequestEvent.class
-        .isAssignableFrom(context.getEventSource().getClass()))
+    if (!(context.getEventSource() instanceof PullRequestEvent))
       return true;
 
     PullRequestEvent event = (PullRequestEvent) context.getEventSource();
@@ -44,10 +74,9 @@ public class IsMergeableEligibilityFilter implements EligibilityFilter {
     if (!event.getPullRequest().getState().equals(PullRequestState.OPEN))
       return true;
 
-    int repoId = context.getRepository().getId();
-    long pullRequestId = event.getPullRequest().getId();
-
-    if (pullRequestService.canMerge(repoId, pullRequestId).isConflicted()) {
+    PullRequestMergeability mergeability = context.memoize(MERGEABILITY,
+        () -> mergeabilityService.canMerge(event.getPullRequest()));
+    if (mergeability.isConflicted()) {
       logger.debug("Ignoring push event due to conflicts in merge");
       return false;
     }
@@ -55,4 +84,23 @@ public class IsMergeableEligibilityFilter implements EligibilityFilter {
     return true;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletableFuture<Boolean> shouldDeliverNotificationAsync(
+      final EventContext context, Executor executor) {
+    if (!(context.getEventSource() instanceof PullRequestEvent))
+      return CompletableFuture.completedFuture(true);
+
+    try {
+      return CompletableFuture.supplyAsync(
+          () -> shouldDeliverNotification(context), executor);
+    } catch (RejectedExecutionException e) {
+      CompletableFuture<Boolean> rejected = new CompletableFuture<Boolean>();
+      rejected.completeExceptionally(e);
+      return rejected;
+    }
+  }
+
 }
@@ -17,13 +17,30 @@ public class PullRequestRescopeEligibilityFilter implements EligibilityFilter {
   private static final Logger logger = // CHECKSTYLE:logger
       LoggerFactory.getLogger(PullRequestRescopeEligibilityFilter.class);
 
+  /**
+   * {@inheritDoc}
+   *
+   * Only compares the hashes of the event.
+   */
+  @Override
+  public Cost getCost() {
+    return Cost.CHEAP;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Class<?> getEventType() {
+    return PullRequestRescopedEvent.class;
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public boolean shouldDeliverNotification(EventContext context) {
-    if (!PullRequestRescopedEvent.class
-        .isAssignableFrom(context.getEventSource().getClass()))
+    if (!(context.getEventSource() instanceof PullRequestRescopedEvent))
       return true;
 
     PullRequestRescopedEvent event =
@@ -0,0 +1,76 @@
+package com.dragouf.bitbucket.webhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.repository.Repository;
+
+/**
+ * Test case for the {@link NotificationPayload} class.
+ */
+public class NotificationPayloadTest {
+
+  private Repository repo;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() {
+    repo = mock(Repository.class);
+    Project project = mock(Project.class);
+    when(repo.getId()).thenReturn(7);
+    when(repo.getSlug()).thenReturn("bar");
+    when(repo.getName()).thenReturn("Bar");
+    when(repo.getProject()).thenReturn(project);
+    when(project.getKey()).thenReturn("FOO");
+  }
+
+  /**
+   * Validate the JSON sent to Jenkins
+   */
+  @Test
+  public void shouldSerializeWithCloneUrl() {
+    NotificationPayload payload = new NotificationPayload(repo, "pinky", "10")
+        .addRefChange("refs/heads/master", "sha0", "sha1", "UPDATE");
+
+    assertEquals("{\"repository\":{\"id\":7,\"project\":\"FOO\","
+        + "\"slug\":\"bar\",\"name\":\"Bar\","
+        + "\"cloneUrl\":\"http://stash/scm/foo/bar.git\"},"
+        + "\"refChanges\":[{\"ref\":\"refs/heads/master\","
+        + "\"fromHash\":\"sha0\",\"toHash\":\"sha1\",\"type\":\"UPDATE\"}],"
+        + "\"pullRequestId\":\"10\",\"user\":\"pinky\"}",
+        payload.toJson("http://stash/scm/foo/bar.git"));
+  }
+
+  /**
+   * Validate that a payload survives a round trip through the outbox
+   */
+  @Test
+  public void shouldParseSerializedPayload() {
+    NotificationPayload payload = NotificationPayload.fromJson(
+        new NotificationPayload(repo, null, null)
+            .addRefChange("refs/heads/master", "sha0", "sha1", "UPDATE")
+            .addRefChange("refs/heads/develop", null, "sha2", "ADD")
+            .toJson());
+
+    assertEquals("refs/heads/master,refs/heads/develop", payload.getRefs());
+    assertEquals("sha2", payload.getRefChanges().get(1).getToHash());
+    assertNull(payload.getRefChanges().get(1).getFromHash());
+    assertNull(payload.getUser());
+  }
+
+  /**
+   * Validate that a corrupt payload is ignored
+   */
+  @Test
+  public void shouldReturnNullForInvalidJson() {
+    assertNull(NotificationPayload.fromJson("{\"refChanges\":"));
+  }
+}
@@ -0,0 +1,58 @@
+package com.dragouf.bitbucket.webhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.dragouf.bitbucket.webhook.NotificationResult.Outcome;
+
+/**
+ * Test case for the {@link NotificationResult} class.
+ */
+public class NotificationResultTest {
+
+  /**
+   * Validate that a single result is not wrapped
+   */
+  @Test
+  public void shouldReturnSingleResult() {
+    NotificationResult result = new NotificationResult(true, "a", "ok");
+
+    assertSame(result,
+        NotificationResult.aggregate(Collections.singletonList(result)));
+    assertTrue(result.getResults().isEmpty());
+  }
+
+  /**
+   * Validate that results are combined into the worst outcome
+   */
+  @Test
+  public void shouldCombineIntoWorstOutcome() {
+    NotificationResult success = new NotificationResult(true, "a", "ok");
+    NotificationResult timeout =
+        new NotificationResult(Outcome.TIMEOUT, "b", "slow", true);
+    NotificationResult failure = new NotificationResult(false, "c", "ko");
+
+    NotificationResult result =
+        NotificationResult.aggregate(Arrays.asList(success, timeout));
+    assertEquals(Outcome.TIMEOUT, result.getOutcome());
+    assertTrue(result.isRetryable());
+    assertEquals("a, b", result.getUrl());
+    assertEquals("a: ok; b: slow", result.getMessage());
+
+    result = NotificationResult.aggregate(
+        Arrays.asList(failure, timeout, success));
+    assertEquals(Outcome.FAILURE, result.getOutcome());
+    assertEquals(3, result.getResults().size());
+
+    result = NotificationResult.aggregate(Arrays.asList(success, success));
+    assertTrue(result.isSuccessful());
+    assertFalse(result.isRetryable());
+  }
+}
@@ -0,0 +1,93 @@
+package com.dragouf.bitbucket.webhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.atlassian.bitbucket.setting.Settings;
+
+/**
+ * Test case for the {@link NotificationTarget} class.
+ */
+public class NotificationTargetTest {
+
+  /**
+   * Validate that targets are parsed with their options
+   */
+  @Test
+  public void shouldParseTargets() {
+    List<NotificationTarget> targets = NotificationTarget.parse(
+        "# security\nhttps://security.jenkins ssh omitHashCode\n\n"
+        + "http://release.jenkins\tcustom=ssh://git@host/foo.git ignoreCerts"
+        + " omitBranchName\n");
+
+    assertEquals(2, targets.size());
+    assertEquals("https://security.jenkins", targets.get(0).getJenkinsBase());
+    assertEquals("ssh", targets.get(0).getCloneType());
+    assertTrue(targets.get(0).isOmitHashCode());
+    assertFalse(targets.get(0).isIgnoreCerts());
+    assertEquals("custom", targets.get(1).getCloneType());
+    assertEquals("ssh://git@host/foo.git", targets.get(1).getCloneUrl());
+    assertTrue(targets.get(1).isIgnoreCerts());
+    assertTrue(targets.get(1).isOmitBranchName());
+  }
+
+  /**
+   * Validate that a target defaults to the http clone type
+   */
+  @Test
+  public void shouldDefaultToHttpCloneType() {
+    NotificationTarget target =
+        NotificationTarget.parse("https://ci.jenkins").get(0);
+
+    assertEquals("http", target.getCloneType());
+    assertNull(target.getCloneUrl());
+  }
+
+  /**
+   * Validate that a line without a url is rejected
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectLineWithoutUrl() {
+    NotificationTarget.parse("ssh https://ci.jenkins");
+  }
+
+  /**
+   * Validate that an unknown option is rejected
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectUnknownOption() {
+    NotificationTarget.parse("https://ci.jenkins custom=");
+  }
+
+  /**
+   * Validate that the main Jenkins comes first and that invalid additional
+   * targets are ignored
+   */
+  @Test
+  public void shouldGetTargetsFromSettings() {
+    Settings settings = mock(Settings.class);
+    when(settings.getString(Notifier.JENKINS_BASE))
+        .thenReturn("http://main.jenkins");
+    when(settings.getBoolean(Notifier.IGNORE_CERTS, false)).thenReturn(true);
+    when(settings.getString(Notifier.ADDITIONAL_TARGETS))
+        .thenReturn("https://ci.jenkins");
+
+    List<NotificationTarget> targets = NotificationTarget.fromSettings(settings);
+    assertEquals(2, targets.size());
+    assertEquals("http://main.jenkins", targets.get(0).getJenkinsBase());
+    assertTrue(targets.get(0).isIgnoreCerts());
+    assertEquals("https://ci.jenkins", targets.get(1).getJenkinsBase());
+
+    when(settings.getString(Notifier.ADDITIONAL_TARGETS))
+        .thenReturn("https://ci.jenkins bogus");
+    assertEquals(1, NotificationTarget.fromSettings(settings).size());
+  }
+}
@@ -1,27 +1,65 @@
 package com.dragouf.bitbucket.webhook;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
 
 import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
 import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.dragouf.bitbucket.webhook.NotificationResult.Outcome;
+import com.dragouf.bitbucket.webhook.service.ConcreteNotificationMetrics;
 import com.dragouf.bitbucket.webhook.service.HttpClientFactory;
+import com.dragouf.bitbucket.webhook.service.NotificationMetrics;
+import com.dragouf.bitbucket.webhook.service.NotificationOutbox;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.http.client.HttpClient;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 
+import com.google.common.base.Charsets;
+
 import com.atlassian.bitbucket.hook.repository.RepositoryHook;
 import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.user.SecurityService;
 import com.atlassian.bitbucket.util.Operation;
 import com.dragouf.bitbucket.webhook.service.SettingsService;
+import com.dragouf.bitbucket.webhook.service.eligibility.EventContext;
 import static org.junit.Assert.assertFalse;
 import static org.mockito.Mockito.*;
 
@@ -44,6 +82,9 @@ public class NotifierTest {
   private static final String CUSTOM_CLONE_URL =
       "http://custom.host/custom.git";
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   private HttpClientFactory httpClientFactory;
   private HttpClient httpClient;
   private ClientConnectionManager connectionManager;
@@ -100,6 +141,9 @@ public class NotifierTest {
     when(httpClientFactory
         .getHttpClient(any(Boolean.class), any(Boolean.class)))
         .thenReturn(httpClient);
+    when(httpClientFactory
+        .getPooledHttpClient(any(String.class), any(Boolean.class)))
+        .thenReturn(httpClient);
     when(httpClient.getConnectionManager()).thenReturn(connectionManager);
 
     when(httpScmProtocol.getCloneUrl(repo, null)).thenReturn(HTTP_CLONE_URL);
@@ -121,7 +165,7 @@ public class NotifierTest {
     when(settingsService.getRepositoryHook(repo)).thenReturn(null);
     notifier.notify(repo, "refs/heads/master", "sha1");
     verify(httpClientFactory, never())
-      .getHttpClient(anyBoolean(), anyBoolean());
+      .getPooledHttpClient(any(String.class), anyBoolean());
   }
 
   /**
@@ -133,7 +177,7 @@ public class NotifierTest {
     when(repoHook.isEnabled()).thenReturn(false);
     notifier.notify(repo, "refs/heads/master", "sha1");
     verify(httpClientFactory, never())
-        .getHttpClient(anyBoolean(), anyBoolean());
+        .getPooledHttpClient(any(String.class), anyBoolean());
   }
 
   /**
@@ -145,7 +189,7 @@ public class NotifierTest {
     when(settingsService.getSettings(repo)).thenReturn(null);
     notifier.notify(repo, "refs/heads/master", "sha1");
     verify(httpClientFactory, never())
-      .getHttpClient(anyBoolean(), anyBoolean());
+      .getPooledHttpClient(any(String.class), anyBoolean());
   }
 
   /**
@@ -159,9 +203,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1))
+        .getPooledHttpClient(any(String.class), eq(false));
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -181,9 +226,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1))
+        .getPooledHttpClient(any(String.class), eq(false));
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=ssh%3A%2F%2Fgit%40some.stash.com%3A12345%2Ffoo%2Fbar.git"
@@ -205,9 +251,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1))
+        .getPooledHttpClient(any(String.class), eq(false));
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fcustom.host%2Fcustom.git"
@@ -229,9 +276,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1))
+        .getPooledHttpClient(any(String.class), eq(false));
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fcustom.host%2Fcustom.git"
@@ -262,9 +310,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1))
+        .getPooledHttpClient(any(String.class), eq(false));
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -286,9 +335,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(true, false);
+    verify(httpClientFactory, times(1))
+        .getPooledHttpClient(any(String.class), eq(false));
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("https://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -312,9 +362,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(true, true);
+    verify(httpClientFactory, times(1))
+        .getPooledHttpClient(any(String.class), eq(true));
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("https://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -338,9 +389,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1))
+        .getPooledHttpClient(any(String.class), eq(false));
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -362,9 +414,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1))
+        .getPooledHttpClient(any(String.class), eq(false));
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -385,9 +438,10 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-   verify(httpClientFactory, times(1)).getHttpClient(false, false);
+   verify(httpClientFactory, times(1))
+        .getPooledHttpClient(any(String.class), eq(false));
    verify(httpClient, times(1)).execute(captor.capture());
-   verify(connectionManager, times(1)).shutdown();
+   verify(connectionManager, never()).shutdown();
 
    assertEquals("http://localhost.jenkins/git/notifyCommit?"
        + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
@@ -408,13 +462,587 @@ public class NotifierTest {
 
     ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
 
-    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, times(1))
+        .getPooledHttpClient(any(String.class), eq(false));
     verify(httpClient, times(1)).execute(captor.capture());
-    verify(connectionManager, times(1)).shutdown();
+    verify(connectionManager, never()).shutdown();
 
     assertEquals("http://localhost.jenkins/git/notifyCommit?"
         + "url=http%3A%2F%2Fsome.stash.com%2Fscm%2Ffoo%2Fbar.git"
         + "&branches=refs%2Fheads%2Fmaster",
         captor.getValue().getURI().toString());
   }
+
+  /**
+   * Validates that a new client is created and shut down for every
+   * notification when pooling is switched off
+   * @throws Exception
+   */
+  @Test
+  public void shouldShutdownClientWhenPoolingIsDisabled() throws Exception {
+    ApplicationPropertiesService propertiesService =
+        mock(ApplicationPropertiesService.class);
+    when(propertiesService.getPluginProperty(Notifier.HTTP_POOLED, true))
+        .thenReturn(false);
+    notifier = new Notifier(settingsService, httpClientFactory,
+        securityService, sshScmProtocol, httpScmProtocol, propertiesService);
+
+    notifier.notify(repo, "refs/heads/master", "sha1");
+
+    verify(httpClientFactory, times(1)).getHttpClient(false, false);
+    verify(httpClientFactory, never())
+        .getPooledHttpClient(any(String.class), anyBoolean());
+    verify(connectionManager, times(1)).shutdown();
+  }
+
+  /**
+   * Validates that a background notification reuses the settings resolved in
+   * the event context
+   * @throws Exception
+   */
+  @Test
+  public void shouldUseSettingsFromEventContext() throws Exception {
+    EventContext context = new EventContext(null, repo, null, settings);
+
+    notifier.notifyBackground(context, "refs/heads/master", "sha1")
+        .get(5, TimeUnit.SECONDS);
+
+    verify(settingsService, never()).getSettings(repo);
+    verify(settingsService, times(1)).getRepositoryHook(repo);
+    verify(httpClient, times(1)).execute(any(HttpGet.class));
+  }
+
+  /**
+   * Validates that the user of the event context can be passed on in custom
+   * parameters
+   * @throws Exception
+   */
+  @Test
+  public void shouldExpandUserOfEventContext() throws Exception {
+    when(settings.getString(Notifier.CUSTOM_PARAMETERS))
+        .thenReturn("&cause=${user}");
+    EventContext context = new EventContext(null, repo, "jdoe", settings);
+
+    notifier.notifyBackground(context, "master", "sha1")
+        .get(5, TimeUnit.SECONDS);
+
+    ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
+    verify(httpClient, times(1)).execute(captor.capture());
+    assertTrue(captor.getValue().getURI().toString().endsWith("&cause=jdoe"));
+  }
+
+  /**
+   * Validates that a notification that failed with an exception is retried
+   * from the outbox until the attempts are used up
+   * @throws Exception
+   */
+  @Test
+  public void shouldRetryFailedNotificationFromOutbox() throws Exception {
+    ApplicationPropertiesService propertiesService =
+        mock(ApplicationPropertiesService.class);
+    RepositoryService repositoryService = mock(RepositoryService.class);
+    when(propertiesService.getHomeDir()).thenReturn(folder.getRoot());
+    when(propertiesService.getPluginProperty(Notifier.HTTP_POOLED, true))
+        .thenReturn(true);
+    when(propertiesService.getPluginProperty(Notifier.OUTBOX_ENABLED, false))
+        .thenReturn(true);
+    when(propertiesService.getPluginProperty(Notifier.OUTBOX_MAX_ATTEMPTS, 8))
+        .thenReturn(3);
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenThrow(new IOException("Connection refused"));
+    notifier = new Notifier(settingsService, httpClientFactory,
+        securityService, sshScmProtocol, httpScmProtocol, propertiesService,
+        repositoryService);
+    notifier.afterPropertiesSet();
+
+    NotificationResult result = notifier.notifyBackground(
+        new EventContext(null, repo, null, settings), "refs/heads/master",
+        "sha1").get(5, TimeUnit.SECONDS);
+    assertTrue(result.isRetryable());
+
+    verify(httpClient, timeout(5000).times(3)).execute(any(HttpGet.class));
+    Thread.sleep(100L);
+    verify(httpClient, times(3)).execute(any(HttpGet.class));
+    notifier.destroy();
+  }
+
+  /**
+   * Validates that a failed notification is retried from memory when the
+   * outbox journal is not enabled
+   * @throws Exception
+   */
+  @Test
+  public void shouldRetryFailedNotificationWithoutJournal() throws Exception {
+    ApplicationPropertiesService propertiesService =
+        mock(ApplicationPropertiesService.class);
+    when(propertiesService.getHomeDir()).thenReturn(folder.getRoot());
+    when(propertiesService.getPluginProperty(Notifier.HTTP_POOLED, true))
+        .thenReturn(true);
+    when(propertiesService.getPluginProperty(Notifier.OUTBOX_MAX_ATTEMPTS, 8))
+        .thenReturn(3);
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenThrow(new IOException("Connection refused"));
+    notifier = new Notifier(settingsService, httpClientFactory,
+        securityService, sshScmProtocol, httpScmProtocol, propertiesService,
+        mock(RepositoryService.class));
+    notifier.afterPropertiesSet();
+
+    NotificationResult result = notifier.notifyBackground(
+        new EventContext(null, repo, null, settings), "refs/heads/master",
+        "sha1").get(5, TimeUnit.SECONDS);
+    assertTrue(result.isRetryable());
+
+    verify(httpClient, timeout(5000).times(3)).execute(any(HttpGet.class));
+    Thread.sleep(100L);
+    verify(httpClient, times(3)).execute(any(HttpGet.class));
+    assertFalse(new File(folder.getRoot(), "jenkins-webhook").exists());
+    notifier.destroy();
+  }
+
+  /**
+   * Validates that retrying a notification from the outbox only notifies the
+   * Jenkins instances whose notification failed
+   * @throws Exception
+   */
+  @Test
+  public void shouldOnlyRetryFailedTargetsFromOutbox() throws Exception {
+    ApplicationPropertiesService propertiesService =
+        mock(ApplicationPropertiesService.class);
+    RepositoryService repositoryService = mock(RepositoryService.class);
+    when(propertiesService.getHomeDir()).thenReturn(folder.getRoot());
+    when(propertiesService.getPluginProperty(Notifier.HTTP_POOLED, true))
+        .thenReturn(true);
+    when(propertiesService.getPluginProperty(Notifier.OUTBOX_ENABLED, false))
+        .thenReturn(true);
+    when(propertiesService.getPluginProperty(Notifier.OUTBOX_MAX_ATTEMPTS, 8))
+        .thenReturn(3);
+    when(settings.getString(Notifier.ADDITIONAL_TARGETS))
+        .thenReturn("https://release.jenkins");
+    final AtomicInteger primaryRequests = new AtomicInteger();
+    final AtomicInteger releaseRequests = new AtomicInteger();
+    when(httpClient.execute(any(HttpGet.class))).thenAnswer(
+        new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) {
+            HttpGet request = (HttpGet) invocation.getArguments()[0];
+            boolean release = request.getURI().getHost().startsWith("release");
+            (release ? releaseRequests : primaryRequests).incrementAndGet();
+            HttpResponse response = new BasicHttpResponse(
+                HttpVersion.HTTP_1_1, release ? 500 : 200, null);
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(new ByteArrayInputStream(
+                "Scheduled".getBytes(Charsets.UTF_8)));
+            response.setEntity(entity);
+            return response;
+          }
+        });
+    notifier = new Notifier(settingsService, httpClientFactory,
+        securityService, sshScmProtocol, httpScmProtocol, propertiesService,
+        repositoryService);
+    notifier.afterPropertiesSet();
+
+    NotificationResult result = notifier.notifyBackground(
+        new EventContext(null, repo, null, settings), "refs/heads/master",
+        "sha1").get(5, TimeUnit.SECONDS);
+    assertTrue(result.isRetryable());
+    assertEquals(Arrays.asList("https://release.jenkins"),
+        result.getRetryTargets());
+
+    verify(httpClient, timeout(5000).times(4)).execute(any(HttpGet.class));
+    Thread.sleep(100L);
+    verify(httpClient, times(4)).execute(any(HttpGet.class));
+    assertEquals(1, primaryRequests.get());
+    assertEquals(3, releaseRequests.get());
+    notifier.destroy();
+  }
+
+  /**
+   * Validates that a notification dropped because the queue is full is
+   * acknowledged in the outbox, so that it isn't replayed on the next start
+   * @throws Exception
+   */
+  @Test
+  public void shouldAcknowledgeDroppedNotificationInOutbox() throws Exception {
+    ApplicationPropertiesService propertiesService =
+        mock(ApplicationPropertiesService.class);
+    RepositoryService repositoryService = mock(RepositoryService.class);
+    when(propertiesService.getHomeDir()).thenReturn(folder.getRoot());
+    when(propertiesService.getPluginProperty(Notifier.HTTP_POOLED, true))
+        .thenReturn(true);
+    when(propertiesService.getPluginProperty(Notifier.OUTBOX_ENABLED, false))
+        .thenReturn(true);
+    when(propertiesService.getPluginProperty(Notifier.EXECUTOR_POOL_SIZE, 5))
+        .thenReturn(1);
+    when(propertiesService.getPluginProperty(Notifier.EXECUTOR_QUEUE_SIZE,
+        500)).thenReturn(1);
+    when(propertiesService.getPluginProperty(
+        Notifier.EXECUTOR_SATURATION_POLICY)).thenReturn("coalesce");
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(httpClient.execute(any(HttpGet.class))).thenAnswer(
+        new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) throws Exception {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+          }
+        });
+    notifier = new Notifier(settingsService, httpClientFactory,
+        securityService, sshScmProtocol, httpScmProtocol, propertiesService,
+        repositoryService);
+    EventContext context = new EventContext(null, repo, null, settings);
+
+    Future<NotificationResult> running =
+        notifier.notifyBackground(context, "refs/heads/a", "sha1");
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    Future<NotificationResult> queued =
+        notifier.notifyBackground(context, "refs/heads/b", "sha2");
+    Future<NotificationResult> dropped =
+        notifier.notifyBackground(context, "refs/heads/c", "sha3");
+    assertTrue(dropped.isCancelled());
+
+    release.countDown();
+    running.get(5, TimeUnit.SECONDS);
+    queued.get(5, TimeUnit.SECONDS);
+    notifier.destroy();
+
+    NotificationOutbox outbox = new NotificationOutbox(
+        new File(folder.getRoot(), "jenkins-webhook/outbox.journal"), 3,
+        1000L, 1000L);
+    assertTrue(outbox.replay().isEmpty());
+    outbox.close();
+  }
+
+  /**
+   * Validates that a pull request notification is not coalesced into a
+   * queued push notification for the same branch
+   * @throws Exception
+   */
+  @Test
+  public void shouldNotCoalescePullRequestIntoPush() throws Exception {
+    ApplicationPropertiesService propertiesService =
+        mock(ApplicationPropertiesService.class);
+    when(propertiesService.getPluginProperty(Notifier.HTTP_POOLED, true))
+        .thenReturn(true);
+    when(propertiesService.getPluginProperty(Notifier.EXECUTOR_POOL_SIZE, 5))
+        .thenReturn(1);
+    when(propertiesService.getPluginProperty(Notifier.EXECUTOR_QUEUE_SIZE,
+        500)).thenReturn(1);
+    when(propertiesService.getPluginProperty(
+        Notifier.EXECUTOR_SATURATION_POLICY)).thenReturn("coalesce");
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(httpClient.execute(any(HttpGet.class))).thenAnswer(
+        new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) throws Exception {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+          }
+        });
+    notifier = new Notifier(settingsService, httpClientFactory,
+        securityService, sshScmProtocol, httpScmProtocol, propertiesService,
+        mock(RepositoryService.class));
+    EventContext context = new EventContext(null, repo, null, settings);
+
+    Future<NotificationResult> running =
+        notifier.notifyBackground(context, "a", "sha1");
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    Future<NotificationResult> push =
+        notifier.notifyBackground(context, "b", "sha2");
+    Future<NotificationResult> pullRequest =
+        notifier.notifyBackground(context, "b", "sha3", "7");
+    assertTrue(pullRequest.isCancelled());
+
+    release.countDown();
+    running.get(5, TimeUnit.SECONDS);
+    push.get(5, TimeUnit.SECONDS);
+    ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
+    verify(httpClient, times(2)).execute(captor.capture());
+    assertTrue(captor.getAllValues().get(1).getURI().toString()
+        .contains("sha1=sha2"));
+    notifier.destroy();
+  }
+
+  /**
+   * Validates that notifications to a Jenkins that keeps failing are not sent
+   * until its circuit is probed again
+   * @throws Exception
+   */
+  @Test
+  public void shouldFailFastWhenCircuitIsOpen() throws Exception {
+    ApplicationPropertiesService propertiesService =
+        mock(ApplicationPropertiesService.class);
+    when(propertiesService.getPluginProperty(Notifier.HTTP_POOLED, true))
+        .thenReturn(true);
+    when(propertiesService.getPluginProperty(
+        Notifier.CIRCUIT_FAILURE_THRESHOLD, 5)).thenReturn(2);
+    when(propertiesService.getPluginProperty(
+        Notifier.CIRCUIT_OPEN_DURATION, 30L)).thenReturn(60L);
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenThrow(new IOException("Connection refused"));
+    notifier = new Notifier(settingsService, httpClientFactory,
+        securityService, sshScmProtocol, httpScmProtocol, propertiesService);
+
+    notifier.notify(repo, "refs/heads/master", "sha1");
+    notifier.notify(repo, "refs/heads/master", "sha1");
+    NotificationResult result =
+        notifier.notify(repo, "refs/heads/master", "sha1");
+
+    assertFalse(result.isSuccessful());
+    assertTrue(result.isRetryable());
+    verify(httpClient, times(2)).execute(any(HttpGet.class));
+  }
+
+  /**
+   * Validates that the non-blocking client completes the notification once
+   * Jenkins has answered, without holding a thread meanwhile
+   * @throws Exception
+   */
+  @Test
+  public void shouldNotifyWithAsyncClient() throws Exception {
+    ApplicationPropertiesService propertiesService =
+        mock(ApplicationPropertiesService.class);
+    when(propertiesService.getPluginProperty(Notifier.HTTP_ASYNC, false))
+        .thenReturn(true);
+    HttpAsyncClient asyncClient = mock(HttpAsyncClient.class);
+    when(httpClientFactory.getAsyncHttpClient(false)).thenReturn(asyncClient);
+    final CompletableFuture<FutureCallback<NotificationResult>> callback =
+        new CompletableFuture<FutureCallback<NotificationResult>>();
+    when(asyncClient.execute(any(HttpAsyncRequestProducer.class),
+        any(HttpAsyncResponseConsumer.class), any(FutureCallback.class)))
+        .thenAnswer(new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) {
+            callback.complete((FutureCallback<NotificationResult>)
+                invocation.getArguments()[2]);
+            return new CompletableFuture<NotificationResult>();
+          }
+        });
+    notifier = new Notifier(settingsService, httpClientFactory,
+        securityService, sshScmProtocol, httpScmProtocol, propertiesService);
+
+    Future<NotificationResult> future =
+        notifier.notifyBackground(repo, "refs/heads/master", "sha1");
+    callback.get(5, TimeUnit.SECONDS);
+    assertFalse(future.isDone());
+
+    callback.get().completed(new NotificationResult(true,
+        "http://localhost.jenkins", "Jenkins response: Scheduled"));
+    assertTrue(future.get(5, TimeUnit.SECONDS).isSuccessful());
+    verify(httpClient, never()).execute(any(HttpGet.class));
+  }
+
+  /**
+   * Validates that a read timeout is reported as a timeout
+   * @throws Exception
+   */
+  @Test
+  public void shouldReportReadTimeout() throws Exception {
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenThrow(new SocketTimeoutException("Read timed out"));
+
+    NotificationResult result =
+        notifier.notify(repo, "refs/heads/master", "sha1");
+
+    assertEquals(Outcome.TIMEOUT, result.getOutcome());
+    assertTrue(result.isRetryable());
+  }
+
+  /**
+   * Validates that a request is aborted once the deadline set on the hook has
+   * passed, and that the hook timeouts are set on the request
+   * @throws Exception
+   */
+  @Test
+  public void shouldAbortRequestAfterDeadline() throws Exception {
+    when(settings.getString(Notifier.REQUEST_TIMEOUT)).thenReturn("1");
+    when(settings.getString(Notifier.SOCKET_TIMEOUT)).thenReturn("2");
+    when(httpClient.execute(any(HttpGet.class))).thenAnswer(
+        new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) throws Throwable {
+            HttpGet request = (HttpGet) invocation.getArguments()[0];
+            assertEquals(2000,
+                HttpConnectionParams.getSoTimeout(request.getParams()));
+            long giveUp = System.currentTimeMillis() + 5000L;
+            while (!request.isAborted()
+                && System.currentTimeMillis() < giveUp) {
+              Thread.sleep(10L);
+            }
+            throw new IOException("Request aborted");
+          }
+        });
+
+    NotificationResult result =
+        notifier.notify(repo, "refs/heads/master", "sha1");
+
+    assertEquals(Outcome.TIMEOUT, result.getOutcome());
+    assertFalse(result.isSuccessful());
+  }
+
+  /**
+   * Validates that a payload is POSTed as JSON to the Jenkins url, and that
+   * any 2xx response is a success
+   * @throws Exception
+   */
+  @Test
+  public void shouldPostPayload() throws Exception {
+    when(repo.getSlug()).thenReturn("bar");
+    when(httpClient.execute(any(HttpPost.class))).thenReturn(
+        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+    NotificationPayload payload = new NotificationPayload(repo, "alice", null)
+        .addRefChange("refs/heads/master", "sha0", "sha1", "UPDATE")
+        .addRefChange("refs/heads/develop", null, "sha2", "ADD");
+
+    NotificationResult result = notifier.notifyBackground(
+        new EventContext(null, repo, "alice", settings), payload)
+        .get(5, TimeUnit.SECONDS);
+
+    ArgumentCaptor<HttpPost> captor = ArgumentCaptor.forClass(HttpPost.class);
+    verify(httpClient, times(1)).execute(captor.capture());
+    assertTrue(result.isSuccessful());
+    assertEquals(JENKINS_BASE_URL, captor.getValue().getURI().toString());
+    assertEquals("application/json; charset=UTF-8",
+        captor.getValue().getEntity().getContentType().getValue());
+    String body = EntityUtils.toString(captor.getValue().getEntity());
+    assertTrue(body.contains("\"cloneUrl\":\"" + HTTP_CLONE_URL + "\""));
+    assertTrue(body.contains("\"ref\":\"refs/heads/develop\""));
+  }
+
+  /**
+   * Validates that payloads for the same ref are each delivered, even when
+   * the hook debounces notifications, so that no ref change is lost
+   * @throws Exception
+   */
+  @Test
+  public void shouldNotDebouncePayloads() throws Exception {
+    when(repo.getSlug()).thenReturn("bar");
+    when(settings.getString(Notifier.DEBOUNCE_QUIET_PERIOD)).thenReturn("60");
+    when(httpClient.execute(any(HttpPost.class))).thenReturn(
+        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+    EventContext context = new EventContext(null, repo, "alice", settings);
+
+    Future<NotificationResult> first = notifier.notifyBackground(context,
+        new NotificationPayload(repo, "alice", null)
+            .addRefChange("refs/heads/master", "sha0", "sha1", "UPDATE"));
+    Future<NotificationResult> second = notifier.notifyBackground(context,
+        new NotificationPayload(repo, "alice", null)
+            .addRefChange("refs/heads/master", "sha1", "sha2", "UPDATE"));
+
+    assertTrue(first.get(5, TimeUnit.SECONDS).isSuccessful());
+    assertTrue(second.get(5, TimeUnit.SECONDS).isSuccessful());
+    verify(httpClient, times(2)).execute(any(HttpPost.class));
+  }
+
+  /**
+   * Validates that a pull request notification held back for debouncing is
+   * not superseded by a push to its branch
+   * @throws Exception
+   */
+  @Test
+  public void shouldNotDebouncePullRequestWithPush() throws Exception {
+    when(settings.getString(Notifier.DEBOUNCE_QUIET_PERIOD)).thenReturn("1");
+    when(httpClient.execute(any(HttpGet.class))).thenReturn(
+        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+    EventContext context = new EventContext(null, repo, null, settings);
+
+    Future<NotificationResult> pullRequest =
+        notifier.notifyBackground(context, "master", "sha1", "7");
+    Future<NotificationResult> push =
+        notifier.notifyBackground(context, "master", "sha2");
+
+    assertNotNull(pullRequest.get(5, TimeUnit.SECONDS));
+    assertNotNull(push.get(5, TimeUnit.SECONDS));
+    assertNotSame(pullRequest.get(), push.get());
+    verify(httpClient, times(2)).execute(any(HttpGet.class));
+  }
+
+  /**
+   * Validates that every target of a hook is notified and that their results
+   * are combined
+   * @throws Exception
+   */
+  @Test
+  public void shouldNotifyAllTargets() throws Exception {
+    when(settings.getString(Notifier.ADDITIONAL_TARGETS)).thenReturn(
+        "https://release.jenkins custom=" + CUSTOM_CLONE_URL + " ignoreCerts");
+    when(httpClient.execute(any(HttpGet.class))).thenAnswer(
+        new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) {
+            HttpGet request = (HttpGet) invocation.getArguments()[0];
+            boolean release = request.getURI().getHost().startsWith("release");
+            HttpResponse response = new BasicHttpResponse(
+                HttpVersion.HTTP_1_1, release ? 500 : 200, null);
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(new ByteArrayInputStream(
+                "Scheduled".getBytes(Charsets.UTF_8)));
+            response.setEntity(entity);
+            return response;
+          }
+        });
+
+    NotificationResult result = notifier.notifyBackground(repo,
+        "refs/heads/master", "sha1").get(5, TimeUnit.SECONDS);
+
+    ArgumentCaptor<HttpGet> captor = ArgumentCaptor.forClass(HttpGet.class);
+    verify(httpClient, times(2)).execute(captor.capture());
+    verify(httpClientFactory).getPooledHttpClient(any(String.class), eq(true));
+    assertEquals(2, result.getResults().size());
+    assertTrue(result.getResults().get(0).isSuccessful());
+    assertFalse(result.getResults().get(1).isSuccessful());
+    assertTrue(result.getResults().get(1).getUrl()
+        .contains(URLEncoder.encode(CUSTOM_CLONE_URL, "UTF-8")));
+    assertEquals(Outcome.FAILURE, result.getOutcome());
+    assertTrue(result.isRetryable());
+  }
+
+  /**
+   * Validates that an additional target failing with an error is reported
+   * with that error rather than as dropped
+   * @throws Exception
+   */
+  @Test
+  public void shouldReportErrorOfAdditionalTarget() throws Exception {
+    NotificationMetrics metrics = mock(NotificationMetrics.class);
+    doThrow(new IllegalStateException("Metrics unavailable")).when(metrics)
+        .recordLatency(eq("https://release.jenkins"), anyLong());
+    notifier = new Notifier(settingsService, httpClientFactory,
+        securityService, sshScmProtocol, httpScmProtocol, null, null, null,
+        metrics);
+    when(settings.getString(Notifier.ADDITIONAL_TARGETS))
+        .thenReturn("https://release.jenkins");
+
+    NotificationResult result =
+        notifier.notify(repo, "refs/heads/master", "sha1");
+
+    assertEquals(2, result.getResults().size());
+    NotificationResult failed = result.getResults().get(1);
+    assertFalse(failed.isSuccessful());
+    assertEquals("https://release.jenkins", failed.getUrl());
+    assertEquals("Metrics unavailable", failed.getMessage());
+  }
+
+  /**
+   * Validates that the latency and outcome of a request are recorded
+   * @throws Exception
+   */
+  @Test
+  public void shouldRecordMetrics() throws Exception {
+    NotificationMetrics metrics = new ConcreteNotificationMetrics();
+    notifier = new Notifier(settingsService, httpClientFactory,
+        securityService, sshScmProtocol, httpScmProtocol, null, null, null,
+        metrics);
+    when(httpClient.execute(any(HttpGet.class)))
+        .thenThrow(new SocketTimeoutException("Read timed out"));
+
+    notifier.notify(repo, "refs/heads/master", "sha1");
+
+    assertEquals(1L, metrics.getTimeoutCount());
+    assertEquals(Long.valueOf(1L),
+        metrics.getEndpointRequestCounts().get(JENKINS_BASE_URL));
+  }
 }
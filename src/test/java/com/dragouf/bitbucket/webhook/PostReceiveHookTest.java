@@ -111,4 +111,44 @@ public class PostReceiveHookTest {
     verify(errors).addFieldError(eq(Notifier.CLONE_URL), anyString());
   }
 
+  /**
+   * Validate that an error is added when a branch regex is invalid
+   * @throws Exception
+   */
+  @Test
+  public void shouldAddErrorWhenBranchRegexInvalid() throws Exception {
+    when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn("whitelist");
+    when(settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES))
+        .thenReturn("master regex:release/(");
+    hook.validate(settings, errors, repo);
+    verify(errors).addFieldError(eq(Notifier.BRANCH_OPTIONS_BRANCHES),
+        anyString());
+  }
+
+  /**
+   * Validate that an error is added when custom parameters use an unknown
+   * variable
+   * @throws Exception
+   */
+  @Test
+  public void shouldAddErrorWhenCustomParametersInvalid() throws Exception {
+    when(settings.getString(Notifier.CUSTOM_PARAMETERS))
+        .thenReturn("&ref=${ref}");
+    hook.validate(settings, errors, repo);
+    verify(errors).addFieldError(eq(Notifier.CUSTOM_PARAMETERS), anyString());
+  }
+
+  /**
+   * Validate that an error is added when an additional target has an
+   * unknown option
+   * @throws Exception
+   */
+  @Test
+  public void shouldAddErrorWhenAdditionalTargetInvalid() throws Exception {
+    when(settings.getString(Notifier.ADDITIONAL_TARGETS))
+        .thenReturn("https://release.jenkins\nhttps://ci.jenkins git");
+    hook.validate(settings, errors, repo);
+    verify(errors).addFieldError(eq(Notifier.ADDITIONAL_TARGETS), anyString());
+  }
+
 }
@@ -2,13 +2,19 @@ package com.dragouf.bitbucket.webhook;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import com.atlassian.bitbucket.repository.Ref;
 import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -17,10 +23,15 @@ import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.user.ApplicationUser;
+import com.dragouf.bitbucket.webhook.service.ConcreteBranchEvaluator;
 import com.dragouf.bitbucket.webhook.service.SettingsService;
+import com.dragouf.bitbucket.webhook.service.eligibility.BranchEligibilityFilter;
+import com.dragouf.bitbucket.webhook.service.eligibility.ConcreteEligibilityFilterChain;
+import com.dragouf.bitbucket.webhook.service.eligibility.EligibilityFilter;
 import com.dragouf.bitbucket.webhook.service.eligibility.EligibilityFilterChain;
 import com.dragouf.bitbucket.webhook.service.eligibility.EventContext;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -82,7 +93,8 @@ public class RepositoryChangeListenerTest {
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier).notifyBackground(repo, "master", "sha1");
+    verify(notifier).notifyBackground(any(EventContext.class),
+        eq("master"), eq("sha1"));
     assertEquals(e, contextCaptor.getValue().getEventSource());
     assertEquals(username, contextCaptor.getValue().getUsername());
     assertEquals(repo, contextCaptor.getValue().getRepository());
@@ -120,7 +132,8 @@ public class RepositoryChangeListenerTest {
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier).notifyBackground(repo, "master", "sha1");
+    verify(notifier).notifyBackground(any(EventContext.class),
+        eq("master"), eq("sha1"));
     assertEquals(e, contextCaptor.getValue().getEventSource());
     assertEquals(null, contextCaptor.getValue().getUsername());
     assertEquals(repo, contextCaptor.getValue().getRepository());
@@ -159,7 +172,8 @@ public class RepositoryChangeListenerTest {
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier, never()).notifyBackground(repo, "master", "sha1");
+    verify(notifier, never()).notifyBackground(any(EventContext.class),
+        eq("master"), eq("sha1"));
     assertEquals(e, contextCaptor.getValue().getEventSource());
     assertEquals(username, contextCaptor.getValue().getUsername());
     assertEquals(repo, contextCaptor.getValue().getRepository());
@@ -179,7 +193,8 @@ public class RepositoryChangeListenerTest {
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier, never()).notifyBackground(repo, "master", "sha1");
+    verify(notifier, never()).notifyBackground(any(EventContext.class),
+        eq("master"), eq("sha1"));
   }
 
   /**
@@ -254,15 +269,275 @@ public class RepositoryChangeListenerTest {
     List<EventContext> captures = contextCaptor.getAllValues();
 
     EventContext ctx = captures.get(0);
-    verify(notifier).notifyBackground(repo, "master", "sha1");
+    verify(notifier).notifyBackground(any(EventContext.class),
+        eq("master"), eq("sha1"));
     assertEquals(e, ctx.getEventSource());
     assertEquals(username, ctx.getUsername());
     assertEquals(repo, ctx.getRepository());
 
     ctx = captures.get(1);
-    verify(notifier).notifyBackground(repo, "feature/branch", "sha2");
+    verify(notifier).notifyBackground(any(EventContext.class),
+        eq("feature/branch"), eq("sha2"));
     assertEquals(e, ctx.getEventSource());
     assertEquals(username, ctx.getUsername());
     assertEquals(repo, ctx.getRepository());
   }
+
+  /**
+   * Validates that all refs of an event are sent in a single notification
+   * when batching is enabled
+   */
+  @Test
+  public void shouldNotifyOnceWhenBatchingMultipleRefs() {
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    Repository repo = mock(Repository.class);
+    Settings settings = mock(Settings.class);
+
+    LinkedList<RefChange> lst = new LinkedList<RefChange>();
+    lst.add(refChange("refs/heads/master", "sha1"));
+    lst.add(refChange("refs/heads/feature/branch", "sha2"));
+    lst.add(refChange("refs/tags/v1.0", "sha3"));
+    when(e.getRefChanges()).thenReturn(lst);
+
+    when(e.getRepository()).thenReturn(repo);
+    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settings.getBoolean(Notifier.BATCH_REF_CHANGES, false))
+        .thenReturn(true);
+    when(filterChain.shouldDeliverNotification(any(EventContext.class)))
+        .thenReturn(true);
+
+    listener.onRefsChangedEvent(e);
+
+    verify(filterChain, times(3))
+        .shouldDeliverNotification(any(EventContext.class));
+    verify(notifier).notifyBackground(any(EventContext.class),
+        eq("master,feature/branch,refs/tags/v1.0"), (String) isNull());
+    verifyNoMoreInteractions(notifier);
+  }
+
+  /**
+   * Validates that a batched event with a single ref still sends its SHA1
+   */
+  @Test
+  public void shouldKeepSha1WhenBatchingSingleRef() {
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    Repository repo = mock(Repository.class);
+    Settings settings = mock(Settings.class);
+
+    LinkedList<RefChange> lst = new LinkedList<RefChange>();
+    lst.add(refChange("refs/heads/master", "sha1"));
+    when(e.getRefChanges()).thenReturn(lst);
+
+    when(e.getRepository()).thenReturn(repo);
+    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settings.getBoolean(Notifier.BATCH_REF_CHANGES, false))
+        .thenReturn(true);
+    when(filterChain.shouldDeliverNotification(any(EventContext.class)))
+        .thenReturn(true);
+
+    listener.onRefsChangedEvent(e);
+
+    verify(notifier).notifyBackground(any(EventContext.class),
+        eq("master"), eq("sha1"));
+    verifyNoMoreInteractions(notifier);
+  }
+
+  /**
+   * Validates that nothing is sent for a batch the filter chain rejects
+   */
+  @Test
+  public void shouldNotNotifyBatchWhenChainSaysCancel() {
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    Repository repo = mock(Repository.class);
+    Settings settings = mock(Settings.class);
+
+    LinkedList<RefChange> lst = new LinkedList<RefChange>();
+    lst.add(refChange("refs/heads/master", "sha1"));
+    lst.add(refChange("refs/heads/develop", "sha2"));
+    when(e.getRefChanges()).thenReturn(lst);
+
+    when(e.getRepository()).thenReturn(repo);
+    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settings.getBoolean(Notifier.BATCH_REF_CHANGES, false))
+        .thenReturn(true);
+    when(filterChain.shouldDeliverNotification(any(EventContext.class)))
+        .thenReturn(false);
+
+    listener.onRefsChangedEvent(e);
+
+    verify(notifier, never()).notifyBackground(any(EventContext.class),
+        anyString(), anyString());
+  }
+
+  /**
+   * Validates that all refs of an event are sent in a single payload when
+   * the hook delivers payloads
+   */
+  @Test
+  public void shouldNotifyOncePayloadWithAllRefs() {
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    Repository repo = mock(Repository.class);
+    Settings settings = mock(Settings.class);
+
+    LinkedList<RefChange> lst = new LinkedList<RefChange>();
+    lst.add(refChange("refs/heads/master", "sha1"));
+    lst.add(refChange("refs/heads/feature/branch", "sha2"));
+    when(lst.get(0).getFromHash()).thenReturn("sha0");
+    when(lst.get(0).getType()).thenReturn(RefChangeType.UPDATE);
+    when(e.getRefChanges()).thenReturn(lst);
+
+    when(e.getRepository()).thenReturn(repo);
+    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settings.getString(Notifier.DELIVERY_MODE))
+        .thenReturn(Notifier.DELIVERY_PAYLOAD);
+    when(filterChain.shouldDeliverNotification(any(EventContext.class)))
+        .thenReturn(true);
+
+    listener.onRefsChangedEvent(e);
+
+    ArgumentCaptor<NotificationPayload> payloadCaptor =
+        ArgumentCaptor.forClass(NotificationPayload.class);
+    verify(notifier).notifyBackground(any(EventContext.class),
+        payloadCaptor.capture());
+    verifyNoMoreInteractions(notifier);
+
+    NotificationPayload payload = payloadCaptor.getValue();
+    assertEquals("refs/heads/master,refs/heads/feature/branch",
+        payload.getRefs());
+    assertEquals("sha0", payload.getRefChanges().get(0).getFromHash());
+    assertEquals("UPDATE", payload.getRefChanges().get(0).getType());
+    assertEquals("sha2", payload.getRefChanges().get(1).getToHash());
+  }
+
+  /**
+   * Validates that each ref is evaluated once, in a context scoped to it, and
+   * only the refs the filter chain accepts are notified
+   */
+  @Test
+  public void shouldEvaluateEachRefInItsOwnContext() {
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    Repository repo = mock(Repository.class);
+    Settings settings = mock(Settings.class);
+
+    LinkedList<RefChange> lst = new LinkedList<RefChange>();
+    lst.add(refChange("refs/heads/master", "sha1"));
+    lst.add(refChange("refs/heads/develop", "sha2"));
+    when(e.getRefChanges()).thenReturn(lst);
+
+    ArgumentCaptor<EventContext> contextCaptor =
+        ArgumentCaptor.forClass(EventContext.class);
+    when(e.getRepository()).thenReturn(repo);
+    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
+        .thenReturn(false, true);
+
+    listener.onRefsChangedEvent(e);
+
+    verify(filterChain, times(2))
+        .shouldDeliverNotification(any(EventContext.class));
+    List<EventContext> captures = contextCaptor.getAllValues();
+    assertEquals(lst.get(0), captures.get(0).getRefChange());
+    assertEquals(lst.get(1), captures.get(1).getRefChange());
+    assertEquals(settings, captures.get(1).getSettings(settingsService));
+    verify(notifier).notifyBackground(captures.get(1), "develop", "sha2");
+    verifyNoMoreInteractions(notifier);
+  }
+
+  /**
+   * Validates that a batch is built from the refs that pass the filter chain
+   * on their own, so that a deleted first ref neither drops the batch nor is
+   * part of it
+   */
+  @Test
+  public void shouldLeaveDeletedRefsOutOfBatch() {
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    Repository repo = mock(Repository.class);
+    Settings settings = mock(Settings.class);
+
+    LinkedList<RefChange> lst = new LinkedList<RefChange>();
+    lst.add(refChange("refs/heads/old", "0000", RefChangeType.DELETE));
+    lst.add(refChange("refs/heads/master", "sha1", RefChangeType.UPDATE));
+    lst.add(refChange("refs/heads/develop", "sha2", RefChangeType.UPDATE));
+    when(e.getRefChanges()).thenReturn(lst);
+
+    when(e.getRepository()).thenReturn(repo);
+    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settings.getBoolean(Notifier.BATCH_REF_CHANGES, false))
+        .thenReturn(true);
+
+    branchFilteringListener().onRefsChangedEvent(e);
+
+    verify(notifier).notifyBackground(any(EventContext.class),
+        eq("master,develop"), (String) isNull());
+    verifyNoMoreInteractions(notifier);
+  }
+
+  /**
+   * Validates that a whitelist applies to each ref of a batch and of a
+   * payload, rather than to the event as a whole
+   */
+  @Test
+  public void shouldOnlyBatchWhitelistedRefs() {
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    Repository repo = mock(Repository.class);
+    Settings settings = mock(Settings.class);
+
+    LinkedList<RefChange> lst = new LinkedList<RefChange>();
+    lst.add(refChange("refs/heads/master", "sha1", RefChangeType.UPDATE));
+    lst.add(refChange("refs/heads/feature/a", "sha2", RefChangeType.UPDATE));
+    lst.add(refChange("refs/heads/release/1", "sha3", RefChangeType.ADD));
+    when(e.getRefChanges()).thenReturn(lst);
+
+    when(e.getRepository()).thenReturn(repo);
+    when(settingsService.getSettings(repo)).thenReturn(settings);
+    when(settings.getBoolean(Notifier.BATCH_REF_CHANGES, false))
+        .thenReturn(true);
+    when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn("whitelist");
+    when(settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES))
+        .thenReturn("master release/*");
+    RepositoryChangeListener listener = branchFilteringListener();
+
+    listener.onRefsChangedEvent(e);
+
+    verify(notifier).notifyBackground(any(EventContext.class),
+        eq("master,release/1"), (String) isNull());
+
+    when(settings.getString(Notifier.DELIVERY_MODE))
+        .thenReturn(Notifier.DELIVERY_PAYLOAD);
+    listener.onRefsChangedEvent(e);
+
+    ArgumentCaptor<NotificationPayload> payloadCaptor =
+        ArgumentCaptor.forClass(NotificationPayload.class);
+    verify(notifier).notifyBackground(any(EventContext.class),
+        payloadCaptor.capture());
+    assertEquals("refs/heads/master,refs/heads/release/1",
+        payloadCaptor.getValue().getRefs());
+    verifyNoMoreInteractions(notifier);
+  }
+
+  /**
+   * Creates a listener whose filter chain only filters on branches.
+   */
+  private RepositoryChangeListener branchFilteringListener() {
+    EligibilityFilterChain chain = new ConcreteEligibilityFilterChain(
+        Arrays.<EligibilityFilter>asList(new BranchEligibilityFilter(
+            settingsService, new ConcreteBranchEvaluator())));
+    return new RepositoryChangeListener(chain, notifier, settingsService);
+  }
+
+  private RefChange refChange(String refId, String toHash,
+      RefChangeType type) {
+    RefChange refChange = refChange(refId, toHash);
+    when(refChange.getType()).thenReturn(type);
+    return refChange;
+  }
+
+  private RefChange refChange(String refId, String toHash) {
+    RefChange refChange = mock(RefChange.class);
+    Ref ref = mock(Ref.class);
+    when(refChange.getRef()).thenReturn(ref);
+    when(refChange.getToHash()).thenReturn(toHash);
+    when(ref.getId()).thenReturn(refId);
+    return refChange;
+  }
 }
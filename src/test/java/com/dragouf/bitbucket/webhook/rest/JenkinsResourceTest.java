@@ -12,10 +12,9 @@ import java.util.Map;
 
 import javax.ws.rs.core.Response;
 
-import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
-import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
 import com.dragouf.bitbucket.webhook.NotificationResult;
 import com.dragouf.bitbucket.webhook.Notifier;
+import com.dragouf.bitbucket.webhook.service.CloneUrlService;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -53,8 +52,7 @@ public class JenkinsResourceTest {
   private PermissionValidationService permissionValidationService;
   private I18nService i18nService;
   private SshConfigurationService sshConfigurationService;
-  private SshScmProtocol sshScmProtocol;
-  private HttpScmProtocol httpScmProtocol;
+  private CloneUrlService cloneUrlService;
   private RefService refService;
 
   private Repository repository;
@@ -69,14 +67,12 @@ public class JenkinsResourceTest {
     i18nService = mock(I18nService.class);
     sshConfigurationService = mock(SshConfigurationService.class);
 
-    sshScmProtocol = mock(SshScmProtocol.class);
-    httpScmProtocol = mock(HttpScmProtocol.class);
+    cloneUrlService = mock(CloneUrlService.class);
 
     refService = mock(RefService.class);
 
     resource = new JenkinsResource(notifier, permissionValidationService,
-        i18nService, sshConfigurationService, sshScmProtocol, httpScmProtocol,
-        refService);
+        i18nService, sshConfigurationService, cloneUrlService, refService);
 
     repository = mock(Repository.class);
     Project project = mock(Project.class);
@@ -147,13 +143,13 @@ public class JenkinsResourceTest {
   @Test
   @SuppressWarnings("unchecked")
   public void testConfigResource() {
-    when(httpScmProtocol.getCloneUrl(repository, null)).thenReturn(HTTP_URL);
+    when(cloneUrlService.getHttpCloneUrl(repository)).thenReturn(HTTP_URL);
 
     SshConfiguration sshConfiguration = mock(SshConfiguration.class);
 
     when(sshConfigurationService.getConfiguration()).thenReturn(sshConfiguration);
     when(sshConfiguration.isEnabled()).thenReturn(true);
-    when(sshScmProtocol.getCloneUrl(repository, null)).thenReturn(SSH_URL);
+    when(cloneUrlService.getSshCloneUrl(repository)).thenReturn(SSH_URL);
 
     Response response = resource.config(repository);
     assertEquals(Status.OK.getStatusCode(), response.getStatus());
@@ -161,8 +157,8 @@ public class JenkinsResourceTest {
     assertEquals(data.get("ssh"), SSH_URL);
     assertEquals(data.get("http"), HTTP_URL);
 
-    verify(sshScmProtocol).getCloneUrl(repository, null);
-    verify(httpScmProtocol).getCloneUrl(repository, null);
+    verify(cloneUrlService).getSshCloneUrl(repository);
+    verify(cloneUrlService).getHttpCloneUrl(repository);
   }
 
   /**
@@ -171,13 +167,13 @@ public class JenkinsResourceTest {
    */
   @Test
   public void shouldNotProduceExceptionWhenSshDisabled() {
-    when(httpScmProtocol.getCloneUrl(repository, null)).thenReturn(HTTP_URL);
+    when(cloneUrlService.getHttpCloneUrl(repository)).thenReturn(HTTP_URL);
 
     SshConfiguration sshConfiguration = mock(SshConfiguration.class);
 
     when(sshConfigurationService.getConfiguration()).thenReturn(sshConfiguration);
     when(sshConfiguration.isEnabled()).thenReturn(false);
-    when(sshScmProtocol.getCloneUrl(repository, null)).thenThrow(
+    when(cloneUrlService.getSshCloneUrl(repository)).thenThrow(
             new IllegalStateException("Internal SSH server is disabled"));
 
     Response response = resource.config(repository);
@@ -186,8 +182,8 @@ public class JenkinsResourceTest {
     assertEquals(data.get("ssh"), EMPTY_SSH_URL);
     assertEquals(data.get("http"), HTTP_URL);
 
-    verify(sshScmProtocol, never()).getCloneUrl(repository, null);
-    verify(httpScmProtocol).getCloneUrl(repository, null);
+    verify(cloneUrlService, never()).getSshCloneUrl(repository);
+    verify(cloneUrlService).getHttpCloneUrl(repository);
   }
 
 }
@@ -0,0 +1,108 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.atlassian.bitbucket.repository.Ref;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+
+/**
+ * Test case for the {@link AffectedBranches} class.
+ */
+public class AffectedBranchesTest {
+
+  /**
+   * Validate that only non-deleted branches are extracted, with their types
+   */
+  @Test
+  public void shouldExtractNonDeletedBranches() {
+    AffectedBranches branches = AffectedBranches.of(Arrays.asList(
+        refChange("refs/heads/master", RefChangeType.UPDATE),
+        refChange("refs/tags/v1.0", RefChangeType.ADD),
+        refChange("refs/heads/old", RefChangeType.DELETE),
+        refChange("refs/heads/feature/refs/heads/x", RefChangeType.ADD)));
+
+    assertEquals(2, branches.size());
+    assertEquals("master", branches.getName(0));
+    assertEquals(RefChangeType.UPDATE, branches.getType(0));
+    assertEquals("feature/refs/heads/x", branches.getName(1));
+    assertEquals(RefChangeType.ADD, branches.getType(1));
+  }
+
+  /**
+   * Validate that the branches can be iterated several times
+   */
+  @Test
+  public void shouldIterateSeveralTimes() {
+    AffectedBranches branches = AffectedBranches.of(Arrays.asList(
+        refChange("refs/heads/master", RefChangeType.UPDATE),
+        refChange("refs/heads/develop", RefChangeType.ADD)));
+
+    assertEquals(Arrays.asList("master", "develop"), toList(branches));
+    assertEquals(Arrays.asList("master", "develop"), toList(branches));
+  }
+
+  /**
+   * Validate that no ref changes give no branches
+   */
+  @Test
+  public void shouldHandleNoRefChanges() {
+    assertEquals(0, AffectedBranches.of(null).size());
+    assertFalse(AffectedBranches.of(Collections.<RefChange>emptyList())
+        .iterator().hasNext());
+  }
+
+  /**
+   * Validate the single ref change path
+   */
+  @Test
+  public void shouldGetBranchOfSingleRefChange() {
+    assertEquals("master", AffectedBranches.getBranch(
+        refChange("refs/heads/master", RefChangeType.UPDATE)));
+    assertNull(AffectedBranches.getBranch(
+        refChange("refs/heads/master", RefChangeType.DELETE)));
+    assertNull(AffectedBranches.getBranch(
+        refChange("refs/tags/v1.0", RefChangeType.ADD)));
+  }
+
+  /**
+   * Validate that indexes past the branches are rejected
+   */
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void shouldRejectIndexPastBranches() {
+    AffectedBranches branches = AffectedBranches.of(Arrays.asList(
+        refChange("refs/heads/master", RefChangeType.UPDATE),
+        refChange("refs/tags/v1.0", RefChangeType.ADD)));
+    assertTrue(branches.size() == 1);
+    branches.getName(1);
+  }
+
+  private List<String> toList(Iterable<String> branches) {
+    List<String> list = new ArrayList<String>();
+    for (String branch : branches) {
+      list.add(branch);
+    }
+    return list;
+  }
+
+  private RefChange refChange(String refId, RefChangeType type) {
+    RefChange refChange = mock(RefChange.class);
+    Ref ref = mock(Ref.class);
+    when(refChange.getRef()).thenReturn(ref);
+    when(refChange.getType()).thenReturn(type);
+    when(ref.getId()).thenReturn(refId);
+    return refChange;
+  }
+}
@@ -0,0 +1,112 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.bitbucket.event.repository.RepositoryModifiedEvent;
+import com.atlassian.bitbucket.event.server.ApplicationConfigurationChangedEvent;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.http.HttpScmProtocol;
+import com.atlassian.bitbucket.scm.ssh.SshScmProtocol;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+
+/**
+ * Test case for the {@link ConcreteCloneUrlService} class.
+ */
+public class ConcreteCloneUrlServiceTest {
+
+  private static final String HTTP_URL = "http://bitbucket/scm/foo/bar.git";
+  private static final String SSH_URL = "ssh://git@bitbucket:7999/foo/bar.git";
+
+  private SshScmProtocol sshScmProtocol;
+  private HttpScmProtocol httpScmProtocol;
+  private Repository repository;
+  private ConcreteCloneUrlService cloneUrlService;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void setUp() throws Throwable {
+    sshScmProtocol = mock(SshScmProtocol.class);
+    httpScmProtocol = mock(HttpScmProtocol.class);
+    SecurityService securityService = mock(SecurityService.class);
+    EscalatedSecurityContext context = mock(EscalatedSecurityContext.class);
+    when(securityService.withPermission(eq(Permission.REPO_READ),
+        any(String.class))).thenReturn(context);
+    when(context.call(any(Operation.class))).thenAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return ((Operation) invocation.getArguments()[0]).perform();
+      }
+    });
+    cloneUrlService = new ConcreteCloneUrlService(sshScmProtocol,
+        httpScmProtocol, securityService);
+
+    repository = mock(Repository.class);
+    when(repository.getId()).thenReturn(1);
+    when(httpScmProtocol.getCloneUrl(repository, null)).thenReturn(HTTP_URL);
+    when(sshScmProtocol.getCloneUrl(repository, null)).thenReturn(SSH_URL);
+  }
+
+  /**
+   * Validate that clone URLs are only generated once per repository and type
+   */
+  @Test
+  public void shouldCacheCloneUrls() {
+    assertEquals(HTTP_URL, cloneUrlService.getHttpCloneUrl(repository));
+    assertEquals(HTTP_URL, cloneUrlService.getHttpCloneUrl(repository));
+    assertEquals(SSH_URL, cloneUrlService.getSshCloneUrl(repository));
+    assertEquals(SSH_URL, cloneUrlService.getSshCloneUrl(repository));
+
+    verify(httpScmProtocol, times(1)).getCloneUrl(repository, null);
+    verify(sshScmProtocol, times(1)).getCloneUrl(repository, null);
+  }
+
+  /**
+   * Validate that renaming or moving a repository drops its clone URLs
+   */
+  @Test
+  public void shouldInvalidateOnRepositoryModified() {
+    cloneUrlService.getHttpCloneUrl(repository);
+
+    RepositoryModifiedEvent event = mock(RepositoryModifiedEvent.class);
+    when(event.getRepository()).thenReturn(repository);
+    cloneUrlService.onRepositoryModified(event);
+    cloneUrlService.getHttpCloneUrl(repository);
+
+    verify(httpScmProtocol, times(2)).getCloneUrl(repository, null);
+  }
+
+  /**
+   * Validate that a change of the application configuration, such as the
+   * base URL, drops all clone URLs
+   */
+  @Test
+  public void shouldInvalidateOnConfigurationChange() {
+    cloneUrlService.getHttpCloneUrl(repository);
+    cloneUrlService.getSshCloneUrl(repository);
+
+    cloneUrlService.onApplicationConfigurationChanged(
+        mock(ApplicationConfigurationChangedEvent.class));
+    cloneUrlService.getHttpCloneUrl(repository);
+    cloneUrlService.getSshCloneUrl(repository);
+
+    verify(httpScmProtocol, times(2)).getCloneUrl(repository, null);
+    verify(sshScmProtocol, times(2)).getCloneUrl(repository, null);
+  }
+}
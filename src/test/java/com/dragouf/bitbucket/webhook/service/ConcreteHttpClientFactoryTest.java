@@ -1,6 +1,9 @@
 package com.dragouf.bitbucket.webhook.service;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.security.KeyManagementException;
@@ -8,7 +11,13 @@ import java.security.NoSuchAlgorithmException;
 
 import javax.net.ssl.SSLContext;
 
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -29,6 +38,14 @@ public class ConcreteHttpClientFactoryTest {
     factory = new InstrumentedConcreteHttpClientFactory();
   }
 
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    factory.destroy();
+  }
+
   /**
    * Validate the non-SSL path for configuration
    */
@@ -63,6 +80,73 @@ public class ConcreteHttpClientFactoryTest {
     assertTrue(factory.wasSchemeRegistryCreated());
   }
 
+  /**
+   * Validate that pooled clients are shared per Jenkins host
+   */
+  @Test
+  public void validatePooledClientIsReusedForSameHost() throws Exception {
+    HttpClient first = factory.getPooledHttpClient(
+        "http://jenkins.localhost/git/notifyCommit?GIT_URL=a", false);
+    HttpClient second = factory.getPooledHttpClient(
+        "http://jenkins.localhost:80/jenkins/git/notifyCommit?GIT_URL=b", false);
+
+    assertSame(first, second);
+    assertTrue(first.getConnectionManager()
+        instanceof PoolingClientConnectionManager);
+  }
+
+  /**
+   * Validate that different hosts get their own pool
+   */
+  @Test
+  public void validatePooledClientIsNotSharedAcrossHosts() throws Exception {
+    HttpClient first = factory.getPooledHttpClient(
+        "http://jenkins.localhost/git/notifyCommit", false);
+    HttpClient second = factory.getPooledHttpClient(
+        "http://other.localhost/git/notifyCommit", false);
+
+    assertNotSame(first, second);
+  }
+
+  /**
+   * Validate that the trust-all flag gets a pool of its own, and only matters
+   * for SSL connections
+   */
+  @Test
+  public void validatePooledClientIsSeparatedByTrustAllFlag()
+      throws Exception {
+    HttpClient trusting = factory.getPooledHttpClient(
+        "https://jenkins.localhost/git/notifyCommit", true);
+    HttpClient validating = factory.getPooledHttpClient(
+        "https://jenkins.localhost/git/notifyCommit", false);
+
+    assertNotSame(trusting, validating);
+    assertTrue(factory.wasSslContextCreated());
+    assertSame(factory.getPooledHttpClient(
+            "http://jenkins.localhost/git/notifyCommit", true),
+        factory.getPooledHttpClient(
+            "http://jenkins.localhost/git/notifyCommit", false));
+  }
+
+  /**
+   * Validate that clients are created with the configured timeouts
+   */
+  @Test
+  public void validateTimeoutsAreSet() throws Exception {
+    factory.destroy();
+    factory = new InstrumentedConcreteHttpClientFactory(1000, 2000, 3000L);
+
+    for (HttpClient client : new HttpClient[] {
+        factory.getHttpClient(false, false),
+        factory.getPooledHttpClient("http://jenkins.localhost/", false) }) {
+      HttpParams params = client.getParams();
+      assertEquals(1000, HttpConnectionParams.getConnectionTimeout(params));
+      assertEquals(2000, HttpConnectionParams.getSoTimeout(params));
+      assertEquals(3000L,
+          HttpClientParams.getConnectionManagerTimeout(params));
+    }
+  }
+
   /**
    * An instrumented extension of the ConcreteHttpClientFactory that delegates
    * all functionality to the parent, but checks that various methods are
@@ -75,6 +159,16 @@ public class ConcreteHttpClientFactoryTest {
     private boolean sslContextCreated = false;
     private boolean schemeRegistryCreated = false;
 
+    public InstrumentedConcreteHttpClientFactory() {
+      super();
+    }
+
+    public InstrumentedConcreteHttpClientFactory(int connectTimeout,
+        int socketTimeout, long leaseTimeout) {
+      super(20, 5, 30000L, 60000L, connectTimeout, socketTimeout,
+          leaseTimeout, 1);
+    }
+
     public boolean wasSchemeRegistryCreated() {
       return schemeRegistryCreated;
     }
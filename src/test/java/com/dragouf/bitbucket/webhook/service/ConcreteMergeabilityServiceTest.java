@@ -0,0 +1,143 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestMergeability;
+import com.atlassian.bitbucket.pull.PullRequestRef;
+import com.atlassian.bitbucket.pull.PullRequestService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+
+/**
+ * Test case for the {@link ConcreteMergeabilityService} class.
+ */
+public class ConcreteMergeabilityServiceTest {
+
+  private PullRequestService pullRequestService;
+  private ConcreteMergeabilityService mergeabilityService;
+  private PullRequest pullRequest;
+  private PullRequestRef fromRef;
+  private PullRequestMergeability mergeability;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() throws Throwable {
+    pullRequestService = mock(PullRequestService.class);
+    mergeabilityService = new ConcreteMergeabilityService(pullRequestService,
+        securityService());
+    pullRequest = mock(PullRequest.class);
+    fromRef = mock(PullRequestRef.class);
+    PullRequestRef toRef = mock(PullRequestRef.class);
+    Repository repo = mock(Repository.class);
+    mergeability = mock(PullRequestMergeability.class);
+
+    when(repo.getId()).thenReturn(1);
+    when(toRef.getRepository()).thenReturn(repo);
+    when(toRef.getLatestCommit()).thenReturn("to-hash");
+    when(fromRef.getLatestCommit()).thenReturn("from-hash");
+    when(pullRequest.getId()).thenReturn(2L);
+    when(pullRequest.getFromRef()).thenReturn(fromRef);
+    when(pullRequest.getToRef()).thenReturn(toRef);
+    when(pullRequestService.canMerge(1, 2L)).thenReturn(mergeability);
+  }
+
+  /**
+   * Validate that the same commits are only checked once
+   */
+  @Test
+  public void shouldCacheMergeabilityOfSameCommits() {
+    assertSame(mergeability, mergeabilityService.canMerge(pullRequest));
+    assertSame(mergeability, mergeabilityService.canMerge(pullRequest));
+
+    verify(pullRequestService, times(1)).canMerge(1, 2L);
+  }
+
+  /**
+   * Validate that new commits are checked again
+   */
+  @Test
+  public void shouldCheckAgainWhenCommitsChange() {
+    mergeabilityService.canMerge(pullRequest);
+    when(fromRef.getLatestCommit()).thenReturn("new-from-hash");
+    mergeabilityService.canMerge(pullRequest);
+
+    verify(pullRequestService, times(2)).canMerge(1, 2L);
+  }
+
+  /**
+   * Validate that concurrent checks of the same commits share one merge check
+   */
+  @Test
+  public void shouldShareInFlightCheck() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(pullRequestService.canMerge(1, 2L))
+        .thenAnswer(new Answer<PullRequestMergeability>() {
+          @Override
+          public PullRequestMergeability answer(InvocationOnMock invocation)
+              throws Throwable {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return mergeability;
+          }
+        });
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<PullRequestMergeability> first = executor.submit(
+          () -> mergeabilityService.canMerge(pullRequest));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      Future<PullRequestMergeability> second = executor.submit(
+          () -> mergeabilityService.canMerge(pullRequest));
+      release.countDown();
+
+      assertSame(mergeability, first.get(5, TimeUnit.SECONDS));
+      assertSame(mergeability, second.get(5, TimeUnit.SECONDS));
+      verify(pullRequestService, times(1)).canMerge(1, 2L);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private SecurityService securityService() throws Throwable {
+    SecurityService securityService = mock(SecurityService.class);
+    EscalatedSecurityContext securityContext =
+        mock(EscalatedSecurityContext.class);
+    when(securityService.withPermission(any(Permission.class), anyString()))
+        .thenReturn(securityContext);
+    when(securityContext.call(any(Operation.class)))
+        .thenAnswer(new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) throws Throwable {
+            return ((Operation<Object, Throwable>) invocation.getArguments()[0])
+                .perform();
+          }
+        });
+    return securityService;
+  }
+}
@@ -0,0 +1,105 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dragouf.bitbucket.webhook.NotificationResult.Outcome;
+
+/**
+ * Test case for the {@link ConcreteNotificationMetrics} class.
+ */
+public class ConcreteNotificationMetricsTest {
+
+  private ConcreteNotificationMetrics metrics;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() {
+    metrics = new ConcreteNotificationMetrics();
+  }
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    metrics.destroy();
+  }
+
+  /**
+   * Validate that outcomes and latencies are recorded per endpoint
+   */
+  @Test
+  public void shouldRecordOutcomesAndLatencies() {
+    metrics.recordOutcome(Outcome.SUCCESS);
+    metrics.recordOutcome(Outcome.SUCCESS);
+    metrics.recordOutcome(Outcome.TIMEOUT);
+    metrics.recordLatency("http://a", TimeUnit.MILLISECONDS.toNanos(10L));
+    metrics.recordLatency("http://a", TimeUnit.MILLISECONDS.toNanos(30L));
+    metrics.recordLatency("http://b", TimeUnit.MILLISECONDS.toNanos(5L));
+
+    assertEquals(2L, metrics.getSuccessCount());
+    assertEquals(0L, metrics.getFailureCount());
+    assertEquals(1L, metrics.getTimeoutCount());
+    assertEquals(Long.valueOf(2L),
+        metrics.getEndpointRequestCounts().get("http://a"));
+    assertEquals(20d, metrics.getEndpointMeanLatencies().get("http://a"),
+        0.001d);
+    assertEquals(Long.valueOf(30L),
+        metrics.getEndpointMaxLatencies().get("http://a"));
+    assertEquals(Long.valueOf(5L),
+        metrics.getEndpointP95Latencies().get("http://b"));
+  }
+
+  /**
+   * Validate that the executor gauges are read from the executor
+   */
+  @Test
+  public void shouldReportExecutorGauges() {
+    assertEquals(0, metrics.getQueueDepth());
+
+    NotificationExecutor executor = new NotificationExecutor("MetricsTest", 1,
+        10, NotificationExecutor.SaturationPolicy.CALLER_RUNS);
+    try {
+      metrics.setExecutor(executor);
+      assertEquals(0, metrics.getQueueDepth());
+      assertEquals(0, metrics.getActiveThreads());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Validate that the metrics are registered with JMX until destroyed
+   */
+  @Test
+  public void shouldRegisterWithJmx() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(NotificationMetrics.OBJECT_NAME);
+    metrics.recordSettingsLookup(TimeUnit.MILLISECONDS.toNanos(2L));
+
+    metrics.afterPropertiesSet();
+    assertTrue(server.isRegistered(name));
+    assertEquals(1L, server.getAttribute(name, "SettingsLookupCount"));
+
+    ConcreteNotificationMetrics reloaded = new ConcreteNotificationMetrics();
+    reloaded.afterPropertiesSet();
+    assertEquals(0L, server.getAttribute(name, "SettingsLookupCount"));
+
+    reloaded.destroy();
+    assertFalse(server.isRegistered(name));
+  }
+}
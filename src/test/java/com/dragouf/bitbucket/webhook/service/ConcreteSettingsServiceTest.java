@@ -1,12 +1,15 @@
 package com.dragouf.bitbucket.webhook.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.atlassian.bitbucket.event.hook.RepositoryHookSettingsChangedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
 import com.atlassian.bitbucket.user.EscalatedSecurityContext;
 import org.junit.Before;
 import org.junit.Test;
@@ -93,4 +96,100 @@ public class ConcreteSettingsServiceTest {
     verify(hookService, times(1)).getSettings(repository, Notifier.KEY);
     assertEquals(settings, returnValue);
   }
+
+  /**
+   * Validate that settings are only looked up once per repository
+   */
+  @Test
+  public void shouldCacheSettings() throws Throwable {
+    EscalatedSecurityContext context = settingsContext();
+
+    settingsService.getSettings(repository);
+    settingsService.getSettings(repository);
+
+    verify(context, times(1)).call(any(Operation.class));
+  }
+
+  /**
+   * Validate that settings are cached by repository id, not by instance
+   */
+  @Test
+  public void shouldCacheSettingsByRepositoryId() throws Throwable {
+    EscalatedSecurityContext context = settingsContext();
+    when(repository.getId()).thenReturn(1);
+    Repository sameRepository = mock(Repository.class);
+    when(sameRepository.getId()).thenReturn(1);
+    Repository otherRepository = mock(Repository.class);
+    when(otherRepository.getId()).thenReturn(2);
+
+    settingsService.getSettings(repository);
+    settingsService.getSettings(sameRepository);
+    verify(context, times(1)).call(any(Operation.class));
+
+    settingsService.getSettings(otherRepository);
+    verify(context, times(2)).call(any(Operation.class));
+  }
+
+  /**
+   * Validate that changing the hook settings drops the cached settings
+   */
+  @Test
+  public void shouldInvalidateOnSettingsChange() throws Throwable {
+    EscalatedSecurityContext context = settingsContext();
+    settingsService.getSettings(repository);
+
+    RepositoryHookSettingsChangedEvent event =
+        mock(RepositoryHookSettingsChangedEvent.class);
+    when(event.getRepository()).thenReturn(repository);
+    when(event.getRepositoryHookKey()).thenReturn(Notifier.KEY);
+    settingsService.onHookSettingsChanged(event);
+    settingsService.getSettings(repository);
+
+    verify(context, times(2)).call(any(Operation.class));
+  }
+
+  /**
+   * Validate that changes to other hooks keep the cached settings
+   */
+  @Test
+  public void shouldIgnoreOtherHooks() throws Throwable {
+    EscalatedSecurityContext context = settingsContext();
+    settingsService.getSettings(repository);
+
+    RepositoryHookSettingsChangedEvent event =
+        mock(RepositoryHookSettingsChangedEvent.class);
+    when(event.getRepository()).thenReturn(repository);
+    when(event.getRepositoryHookKey()).thenReturn("some.other:hook");
+    settingsService.onHookSettingsChanged(event);
+    settingsService.getSettings(repository);
+
+    verify(context, times(1)).call(any(Operation.class));
+  }
+
+  /**
+   * Validate that deleting the repository drops the cached settings
+   */
+  @Test
+  public void shouldInvalidateOnRepositoryDeleted() throws Throwable {
+    EscalatedSecurityContext context = settingsContext();
+    settingsService.getSettings(repository);
+
+    RepositoryDeletedEvent event = mock(RepositoryDeletedEvent.class);
+    when(event.getRepository()).thenReturn(repository);
+    settingsService.onRepositoryDeleted(event);
+    settingsService.getSettings(repository);
+
+    verify(context, times(2)).call(any(Operation.class));
+  }
+
+  @SuppressWarnings("unchecked")
+  private EscalatedSecurityContext settingsContext() throws Throwable {
+    EscalatedSecurityContext context = mock(EscalatedSecurityContext.class);
+    Settings settings = mock(Settings.class);
+    when(securityService.withPermission(
+        eq(Permission.REPO_ADMIN), eq("Retrieving settings")))
+        .thenReturn(context);
+    when(context.call(any(Operation.class))).thenReturn(settings);
+    return context;
+  }
 }
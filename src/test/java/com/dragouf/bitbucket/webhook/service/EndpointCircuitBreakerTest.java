@@ -0,0 +1,108 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dragouf.bitbucket.webhook.service.EndpointCircuitBreaker.State;
+import com.google.common.base.Ticker;
+
+/**
+ * Test case for the {@link EndpointCircuitBreaker} class.
+ */
+public class EndpointCircuitBreakerTest {
+
+  private static final String ENDPOINT = "http://jenkins:8080";
+
+  private long now;
+  private EndpointCircuitBreaker breaker;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() {
+    now = 0L;
+    breaker = new EndpointCircuitBreaker(3, 30, TimeUnit.SECONDS,
+        new Ticker() {
+          @Override
+          public long read() {
+            return now;
+          }
+        });
+  }
+
+  /**
+   * Validate that a circuit opens after consecutive failures only
+   */
+  @Test
+  public void shouldOpenAfterConsecutiveFailures() {
+    breaker.onFailure(ENDPOINT);
+    breaker.onFailure(ENDPOINT);
+    breaker.onSuccess(ENDPOINT);
+    breaker.onFailure(ENDPOINT);
+    breaker.onFailure(ENDPOINT);
+    assertTrue(breaker.tryAcquire(ENDPOINT));
+
+    breaker.onFailure(ENDPOINT);
+    assertEquals(State.OPEN, breaker.getState(ENDPOINT));
+    assertFalse(breaker.tryAcquire(ENDPOINT));
+    assertTrue(breaker.tryAcquire("http://other:8080"));
+  }
+
+  /**
+   * Validate that a single probe is let through once the circuit has been
+   * open long enough, and that it closes the circuit when it succeeds
+   */
+  @Test
+  public void shouldCloseWhenProbeSucceeds() {
+    open();
+    now += TimeUnit.SECONDS.toNanos(30);
+
+    assertTrue(breaker.tryAcquire(ENDPOINT));
+    assertEquals(State.HALF_OPEN, breaker.getState(ENDPOINT));
+    assertFalse(breaker.tryAcquire(ENDPOINT));
+
+    breaker.onSuccess(ENDPOINT);
+    assertEquals(State.CLOSED, breaker.getState(ENDPOINT));
+    assertTrue(breaker.tryAcquire(ENDPOINT));
+  }
+
+  /**
+   * Validate that a failed probe opens the circuit again
+   */
+  @Test
+  public void shouldReopenWhenProbeFails() {
+    open();
+    now += TimeUnit.SECONDS.toNanos(30);
+    assertTrue(breaker.tryAcquire(ENDPOINT));
+
+    breaker.onFailure(ENDPOINT);
+    assertEquals(State.OPEN, breaker.getState(ENDPOINT));
+    now += TimeUnit.SECONDS.toNanos(29);
+    assertFalse(breaker.tryAcquire(ENDPOINT));
+  }
+
+  /**
+   * Validate that URLs are grouped by scheme, host and port
+   */
+  @Test
+  public void shouldGetEndpointOfUrl() {
+    assertEquals("http://jenkins:8080", EndpointCircuitBreaker
+        .getEndpoint("http://Jenkins:8080/git/notifyCommit?url=foo"));
+    assertEquals("https://jenkins", EndpointCircuitBreaker
+        .getEndpoint("https://jenkins/git/notifyCommit"));
+  }
+
+  private void open() {
+    for (int i = 0; i < 3; i++) {
+      breaker.onFailure(ENDPOINT);
+    }
+    assertFalse(breaker.tryAcquire(ENDPOINT));
+  }
+}
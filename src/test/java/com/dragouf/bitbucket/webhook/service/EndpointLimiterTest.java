@@ -0,0 +1,111 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link EndpointLimiter} class.
+ */
+public class EndpointLimiterTest {
+
+  private static final String ENDPOINT = "http://jenkins:8080";
+
+  private EndpointLimiter limiter;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() {
+    limiter = new EndpointLimiter(2);
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Validate that an endpoint gets no more permits than the limit until one
+   * is released, and that other endpoints are not affected
+   */
+  @Test
+  public void shouldLimitNotificationsPerEndpoint() throws Exception {
+    EndpointLimiter.Permit first =
+        limiter.acquire(ENDPOINT, 10, TimeUnit.MILLISECONDS);
+    assertNotNull(first);
+    EndpointLimiter.Permit second =
+        limiter.acquire(ENDPOINT, 10, TimeUnit.MILLISECONDS);
+    assertNotNull(second);
+    assertNull(limiter.acquire(ENDPOINT, 10, TimeUnit.MILLISECONDS));
+    assertNotNull(limiter.acquire("http://other:8080", 10,
+        TimeUnit.MILLISECONDS));
+
+    first.release();
+    first.release();
+    assertEquals(1, limiter.getAvailable(ENDPOINT));
+    assertNotNull(limiter.acquire(ENDPOINT, 10, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Validate that at least one notification is allowed per endpoint
+   */
+  @Test
+  public void shouldAllowAtLeastOneNotification() throws Exception {
+    limiter = new EndpointLimiter(0);
+
+    assertEquals(1, limiter.getMaxConcurrent());
+    assertNotNull(limiter.acquire(ENDPOINT, 0, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Validate that an asynchronous waiter is handed the permit once it is
+   * released
+   */
+  @Test
+  public void shouldHandReleasedPermitToAsyncWaiter() throws Exception {
+    limiter = new EndpointLimiter(1);
+    EndpointLimiter.Permit first =
+        limiter.acquire(ENDPOINT, 0, TimeUnit.MILLISECONDS);
+    CompletableFuture<EndpointLimiter.Permit> waiter =
+        limiter.acquireAsync(ENDPOINT, 5, TimeUnit.SECONDS, scheduler);
+    assertFalse(waiter.isDone());
+
+    first.release();
+    assertNotNull(waiter.get(5, TimeUnit.SECONDS));
+    assertEquals(0, limiter.getAvailable(ENDPOINT));
+  }
+
+  /**
+   * Validate that an asynchronous waiter gives up once the timeout has
+   * elapsed, and that a later release is not lost
+   */
+  @Test
+  public void shouldGiveUpAsyncWaitAfterTimeout() throws Exception {
+    limiter = new EndpointLimiter(1);
+    EndpointLimiter.Permit first =
+        limiter.acquire(ENDPOINT, 0, TimeUnit.MILLISECONDS);
+    CompletableFuture<EndpointLimiter.Permit> waiter =
+        limiter.acquireAsync(ENDPOINT, 10, TimeUnit.MILLISECONDS, scheduler);
+
+    assertNull(waiter.get(5, TimeUnit.SECONDS));
+    first.release();
+    assertEquals(1, limiter.getAvailable(ENDPOINT));
+  }
+}
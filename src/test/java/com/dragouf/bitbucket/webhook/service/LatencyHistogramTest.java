@@ -0,0 +1,56 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test case for the {@link LatencyHistogram} class.
+ */
+public class LatencyHistogramTest {
+
+  /**
+   * Validate that latencies are counted in the bucket of their upper bound
+   */
+  @Test
+  public void shouldCountLatenciesPerBucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(3L));
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(250L));
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(251L));
+    histogram.record(TimeUnit.MINUTES.toNanos(2L));
+
+    Map<String, Long> buckets = histogram.getBuckets();
+    assertEquals(Long.valueOf(1L), buckets.get("le_5"));
+    assertEquals(Long.valueOf(1L), buckets.get("le_250"));
+    assertEquals(Long.valueOf(1L), buckets.get("le_500"));
+    assertEquals(Long.valueOf(1L), buckets.get("le_inf"));
+    assertEquals(4L, histogram.getCount());
+    assertEquals(120000L, histogram.getMaxMillis());
+  }
+
+  /**
+   * Validate that percentiles are estimated from the buckets
+   */
+  @Test
+  public void shouldEstimatePercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0L, histogram.getPercentileMillis(95d));
+    assertEquals(0d, histogram.getMeanMillis(), 0d);
+
+    for (int i = 0; i < 95; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(20L));
+    }
+    for (int i = 0; i < 5; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(700L));
+    }
+
+    assertEquals(25L, histogram.getPercentileMillis(50d));
+    assertEquals(25L, histogram.getPercentileMillis(95d));
+    assertEquals(700L, histogram.getPercentileMillis(99d));
+    assertEquals(54d, histogram.getMeanMillis(), 0.001d);
+  }
+}
@@ -0,0 +1,145 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dragouf.bitbucket.webhook.NotificationResult;
+import com.dragouf.bitbucket.webhook.service.NotificationExecutor.SaturationPolicy;
+
+/**
+ * Test case for the {@link NotificationDebouncer} class.
+ */
+public class NotificationDebouncerTest {
+
+  private NotificationExecutor executor;
+  private NotificationDebouncer debouncer;
+  private AtomicInteger calls;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() {
+    executor = new NotificationExecutor("test", 1, 10,
+        SaturationPolicy.CALLER_RUNS);
+    debouncer = new NotificationDebouncer(executor);
+    calls = new AtomicInteger();
+  }
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    debouncer.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  /**
+   * Validate that only the latest notification for a key is sent
+   */
+  @Test
+  public void shouldOnlySendLatestNotification() throws Exception {
+    Future<NotificationResult> first =
+        debouncer.submit("repo:master", notification("sha1"), 200L, 5000L);
+    Future<NotificationResult> second =
+        debouncer.submit("repo:master", notification("sha2"), 200L, 5000L);
+
+    assertSame(first, second);
+    assertEquals("sha2", second.get(5, TimeUnit.SECONDS).getMessage());
+    assertEquals(1, calls.get());
+    assertEquals(1, debouncer.getDebouncedCount());
+  }
+
+  /**
+   * Validate that different keys are not debounced together
+   */
+  @Test
+  public void shouldSendEachKey() throws Exception {
+    Future<NotificationResult> master =
+        debouncer.submit("repo:master", notification("sha1"), 50L, 5000L);
+    Future<NotificationResult> develop =
+        debouncer.submit("repo:develop", notification("sha2"), 50L, 5000L);
+
+    assertEquals("sha1", master.get(5, TimeUnit.SECONDS).getMessage());
+    assertEquals("sha2", develop.get(5, TimeUnit.SECONDS).getMessage());
+    assertEquals(2, calls.get());
+  }
+
+  /**
+   * Validate that a notification is sent once the maximum delay is reached,
+   * even if submissions keep coming
+   */
+  @Test
+  public void shouldSendWhenMaxDelayIsReached() throws Exception {
+    Future<NotificationResult> future =
+        debouncer.submit("repo:master", notification("sha1"), 10000L, 100L);
+
+    assertEquals("sha1", future.get(5, TimeUnit.SECONDS).getMessage());
+  }
+
+  /**
+   * Validate that a due notification is never sent on the timer thread, even
+   * if the executor is saturated and its policy is CALLER_RUNS
+   */
+  @Test
+  public void shouldNotSendOnTimerThreadWhenSaturated() throws Exception {
+    executor.shutdownNow();
+    executor = new NotificationExecutor("test", 1, 1,
+        SaturationPolicy.CALLER_RUNS);
+    debouncer = new NotificationDebouncer(executor);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicReference<String> worker = new AtomicReference<String>();
+    executor.submit("a", new Callable<NotificationResult>() {
+      @Override
+      public NotificationResult call() throws Exception {
+        worker.set(Thread.currentThread().getName());
+        started.countDown();
+        release.await();
+        return new NotificationResult(true, null, null);
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    executor.submit("b", notification("queued"));
+
+    CompletableFuture<NotificationResult> future = debouncer.submit(
+        "repo:master", new Callable<NotificationResult>() {
+          @Override
+          public NotificationResult call() {
+            return new NotificationResult(true, null,
+                Thread.currentThread().getName());
+          }
+        }, 10L, 5000L);
+
+    Thread.sleep(200L);
+    assertFalse(future.isDone());
+    release.countDown();
+    assertEquals(worker.get(),
+        future.get(5, TimeUnit.SECONDS).getMessage());
+  }
+
+  private Callable<NotificationResult> notification(final String sha1) {
+    return new Callable<NotificationResult>() {
+      @Override
+      public NotificationResult call() {
+        calls.incrementAndGet();
+        return new NotificationResult(true, null, sha1);
+      }
+    };
+  }
+}
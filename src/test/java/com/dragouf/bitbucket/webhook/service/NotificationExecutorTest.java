@@ -0,0 +1,285 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.dragouf.bitbucket.webhook.NotificationResult;
+import com.dragouf.bitbucket.webhook.service.NotificationExecutor.SaturationPolicy;
+
+/**
+ * Test case for the {@link NotificationExecutor} class.
+ */
+public class NotificationExecutorTest {
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final CountDownLatch started = new CountDownLatch(1);
+  private NotificationExecutor executor;
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    release.countDown();
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Validate that a saturated executor runs new notifications on the caller
+   * thread with the CALLER_RUNS policy
+   */
+  @Test
+  public void shouldRunOnCallerWhenSaturated() throws Exception {
+    saturate(SaturationPolicy.CALLER_RUNS);
+    final Thread caller = Thread.currentThread();
+
+    Future<NotificationResult> future = executor.submit("c",
+        new Callable<NotificationResult>() {
+          @Override
+          public NotificationResult call() {
+            return new NotificationResult(
+                Thread.currentThread() == caller, null, null);
+          }
+        });
+
+    assertTrue(future.isDone());
+    assertTrue(future.get().isSuccessful());
+    assertEquals(1, executor.getRejectedCount());
+  }
+
+  /**
+   * Validate that the oldest queued notification is dropped with the
+   * DROP_OLDEST policy
+   */
+  @Test
+  public void shouldDropOldestWhenSaturated() throws Exception {
+    Future<NotificationResult> queued =
+        saturate(SaturationPolicy.DROP_OLDEST);
+
+    Future<NotificationResult> newest = executor.submit("c", result());
+
+    assertTrue(queued.isCancelled());
+    assertFalse(newest.isCancelled());
+    assertEquals(1, executor.getQueueDepth());
+    assertEquals(1, executor.getRejectedCount());
+  }
+
+  /**
+   * Validate that a notification for an already queued key is folded into it
+   * with the COALESCE policy, and that the newest notification is the one sent
+   */
+  @Test
+  public void shouldCoalesceWhenSaturated() throws Exception {
+    Future<NotificationResult> queued = saturate(SaturationPolicy.COALESCE);
+
+    Future<NotificationResult> newest = executor.submit("b",
+        new Callable<NotificationResult>() {
+          @Override
+          public NotificationResult call() {
+            return new NotificationResult(true, "newest", null);
+          }
+        });
+    assertSame(queued, newest);
+    assertFalse(newest.isCancelled());
+    assertEquals(1, executor.getCoalescedCount());
+    assertEquals(1, executor.getQueueDepth());
+
+    Future<NotificationResult> other = executor.submit("c", result());
+    assertTrue(other.isCancelled());
+    assertEquals(2, executor.getRejectedCount());
+
+    release.countDown();
+    assertEquals("newest", newest.get(5, TimeUnit.SECONDS).getUrl());
+  }
+
+  /**
+   * Validate that other work is rejected rather than run on the caller thread
+   * with the CALLER_RUNS policy
+   */
+  @Test
+  public void shouldRejectWorkInsteadOfRunningOnCaller() throws Exception {
+    saturate(SaturationPolicy.CALLER_RUNS);
+    final CountDownLatch ran = new CountDownLatch(1);
+
+    assertRejected(ran);
+    assertEquals(1, ran.getCount());
+  }
+
+  /**
+   * Validate that other work is rejected rather than dropped when the queue
+   * is full with the COALESCE policy
+   */
+  @Test
+  public void shouldRejectWorkWhenCoalescing() throws Exception {
+    saturate(SaturationPolicy.COALESCE);
+    final CountDownLatch ran = new CountDownLatch(1);
+
+    assertRejected(ran);
+    release.countDown();
+    assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Validate that queued work is never dropped to make room, while a queued
+   * notification is, with the DROP_OLDEST policy
+   */
+  @Test
+  public void shouldNotDropQueuedWork() throws Exception {
+    Future<NotificationResult> queued =
+        saturate(SaturationPolicy.DROP_OLDEST);
+    final CountDownLatch ran = new CountDownLatch(1);
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        ran.countDown();
+      }
+    });
+    assertTrue(queued.isCancelled());
+
+    Future<NotificationResult> newest = executor.submit("c", result());
+    assertTrue(newest.isCancelled());
+    assertRejected(new CountDownLatch(1));
+
+    release.countDown();
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Validate that a non-blocking notification frees its worker thread and
+   * completes its future only once the response has arrived
+   */
+  @Test
+  public void shouldCompleteWhenAsyncNotificationCompletes() throws Exception {
+    executor = new NotificationExecutor("test", 1, 1,
+        SaturationPolicy.CALLER_RUNS);
+    final CompletableFuture<NotificationResult> response =
+        new CompletableFuture<NotificationResult>();
+
+    CompletableFuture<NotificationResult> future = executor.submitAsync("a",
+        new Callable<CompletableFuture<NotificationResult>>() {
+          @Override
+          public CompletableFuture<NotificationResult> call() {
+            return response;
+          }
+        });
+    // The worker thread is free for the next notification meanwhile
+    assertTrue(executor.submit("b", result()).get(5, TimeUnit.SECONDS)
+        .isSuccessful());
+    assertFalse(future.isDone());
+
+    response.complete(new NotificationResult(true, null, null));
+    assertTrue(future.get(5, TimeUnit.SECONDS).isSuccessful());
+  }
+
+  /**
+   * Validate that with a thread factory every notification gets a thread of
+   * its own, while the number in flight is still bounded
+   */
+  @Test
+  public void shouldStartThreadPerNotification() throws Exception {
+    final AtomicInteger threads = new AtomicInteger();
+    executor = new NotificationExecutor(1, 1, SaturationPolicy.COALESCE,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable task) {
+            threads.incrementAndGet();
+            return new Thread(task);
+          }
+        });
+    executor.submit("a", new Callable<NotificationResult>() {
+      @Override
+      public NotificationResult call() throws Exception {
+        started.countDown();
+        release.await();
+        return new NotificationResult(true, null, null);
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    Future<NotificationResult> queued = executor.submit("b", result());
+    assertEquals(1, executor.getActiveCount());
+    assertEquals(1, executor.getQueueDepth());
+    assertSame(queued, executor.submit("b", result()));
+    assertTrue(executor.submit("c", result()).isCancelled());
+
+    release.countDown();
+    assertTrue(queued.get(5, TimeUnit.SECONDS).isSuccessful());
+    assertEquals(2, threads.get());
+  }
+
+  /**
+   * Validate the policy parsing
+   */
+  @Test
+  public void shouldParsePolicies() {
+    assertEquals(SaturationPolicy.DROP_OLDEST, SaturationPolicy
+        .fromString("drop-oldest", SaturationPolicy.CALLER_RUNS));
+    assertEquals(SaturationPolicy.COALESCE, SaturationPolicy
+        .fromString("COALESCE", SaturationPolicy.CALLER_RUNS));
+    assertEquals(SaturationPolicy.CALLER_RUNS, SaturationPolicy
+        .fromString("nonsense", SaturationPolicy.CALLER_RUNS));
+    assertEquals(SaturationPolicy.CALLER_RUNS, SaturationPolicy
+        .fromString(null, SaturationPolicy.CALLER_RUNS));
+  }
+
+  /**
+   * Occupies the single worker thread with key "a" and fills the single queue
+   * slot with key "b".
+   */
+  private Future<NotificationResult> saturate(SaturationPolicy policy)
+      throws Exception {
+    executor = new NotificationExecutor("test", 1, 1, policy);
+    executor.submit("a", new Callable<NotificationResult>() {
+      @Override
+      public NotificationResult call() throws Exception {
+        started.countDown();
+        release.await();
+        return new NotificationResult(true, null, null);
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    Future<NotificationResult> queued = executor.submit("b", result());
+    assertEquals(1, executor.getQueueDepth());
+    return queued;
+  }
+
+  private void assertRejected(final CountDownLatch ran) {
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          ran.countDown();
+        }
+      });
+      fail("The work should have been rejected");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+  }
+
+  private Callable<NotificationResult> result() {
+    return new Callable<NotificationResult>() {
+      @Override
+      public NotificationResult call() {
+        return new NotificationResult(true, null, null);
+      }
+    };
+  }
+}
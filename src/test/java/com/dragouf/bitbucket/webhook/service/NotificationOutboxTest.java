@@ -0,0 +1,234 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Test case for the {@link NotificationOutbox} class.
+ */
+public class NotificationOutboxTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File journal;
+  private NotificationOutbox outbox;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() throws Exception {
+    journal = new File(folder.getRoot(), "outbox/outbox.journal");
+    outbox = open();
+  }
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    outbox.close();
+  }
+
+  /**
+   * Validate that pending notifications are replayed after a restart
+   */
+  @Test
+  public void shouldReplayPendingNotifications() throws Exception {
+    NotificationOutbox.Entry delivered =
+        outbox.enqueue(1, "refs/heads/master", "sha1", null);
+    outbox.enqueue(2, "refs/heads/develop", "sha2", "10");
+    outbox.acknowledge(delivered);
+    outbox.close();
+
+    outbox = open();
+    List<NotificationOutbox.Entry> entries = outbox.replay();
+
+    assertEquals(1, entries.size());
+    assertEquals(2, entries.get(0).getRepositoryId());
+    assertEquals("refs/heads/develop", entries.get(0).getRef());
+    assertEquals("sha2", entries.get(0).getSha1());
+    assertEquals("10", entries.get(0).getPrId());
+  }
+
+  /**
+   * Validate that the payload of a notification is replayed with it
+   */
+  @Test
+  public void shouldReplayPayload() throws Exception {
+    outbox.enqueue(1, "refs/heads/master", "sha1", null, "{\"user\":\"a\"}");
+    outbox.close();
+
+    outbox = open();
+    List<NotificationOutbox.Entry> entries = outbox.replay();
+
+    assertEquals(1, entries.size());
+    assertEquals("{\"user\":\"a\"}", entries.get(0).getPayload());
+  }
+
+  /**
+   * Validate that a newer notification for the same ref supersedes an older
+   * one
+   */
+  @Test
+  public void shouldSupersedeOlderNotificationForSameRef() throws Exception {
+    NotificationOutbox.Entry older =
+        outbox.enqueue(1, "refs/heads/master", "sha1", null);
+    NotificationOutbox.Entry newer =
+        outbox.enqueue(1, "refs/heads/master", "sha2", null);
+
+    assertTrue(outbox.isDone(older));
+    assertFalse(outbox.isDone(newer));
+
+    outbox.acknowledge(older);
+    assertEquals(1, outbox.getPendingCount());
+    outbox.close();
+
+    outbox = open();
+    List<NotificationOutbox.Entry> entries = outbox.replay();
+    assertEquals(1, entries.size());
+    assertEquals("sha2", entries.get(0).getSha1());
+  }
+
+  /**
+   * Validate that payloads for the same ref don't supersede each other, since
+   * each one describes its own ref changes
+   */
+  @Test
+  public void shouldNotSupersedePayloads() throws Exception {
+    NotificationOutbox.Entry older = outbox.enqueue(1, "refs/heads/master",
+        "sha1", null, "{\"fromHash\":\"sha0\"}");
+    NotificationOutbox.Entry newer = outbox.enqueue(1, "refs/heads/master",
+        "sha2", null, "{\"fromHash\":\"sha1\"}");
+
+    assertFalse(outbox.isDone(older));
+    assertFalse(outbox.isDone(newer));
+    outbox.acknowledge(newer);
+    outbox.close();
+
+    outbox = open();
+    List<NotificationOutbox.Entry> entries = outbox.replay();
+    assertEquals(1, entries.size());
+    assertEquals("sha1", entries.get(0).getSha1());
+  }
+
+  /**
+   * Validate that a push doesn't supersede a pending pull request
+   * notification for the same branch, so its id survives a restart
+   */
+  @Test
+  public void shouldNotSupersedePullRequestWithPush() throws Exception {
+    NotificationOutbox.Entry pullRequest =
+        outbox.enqueue(1, "refs/heads/feature", "sha1", "7");
+    NotificationOutbox.Entry push =
+        outbox.enqueue(1, "refs/heads/feature", "sha2", null);
+
+    assertFalse(outbox.isDone(pullRequest));
+    outbox.acknowledge(push);
+    outbox.close();
+
+    outbox = open();
+    List<NotificationOutbox.Entry> entries = outbox.replay();
+    assertEquals(1, entries.size());
+    assertEquals("7", entries.get(0).getPrId());
+    assertEquals("sha1", entries.get(0).getSha1());
+  }
+
+  /**
+   * Validate that the targets left to retry survive a restart
+   */
+  @Test
+  public void shouldReplayRetryTargets() throws Exception {
+    NotificationOutbox.Entry entry =
+        outbox.enqueue(1, "refs/heads/master", "sha1", null);
+    assertNull(entry.getTargets());
+    outbox.retryTargets(entry, Arrays.asList("https://release.jenkins"));
+    outbox.close();
+
+    outbox = open();
+    List<NotificationOutbox.Entry> entries = outbox.replay();
+    assertEquals(1, entries.size());
+    assertEquals(Arrays.asList("https://release.jenkins"),
+        entries.get(0).getTargets());
+  }
+
+  /**
+   * Validate that an outbox without journal keeps pending notifications in
+   * memory only
+   */
+  @Test
+  public void shouldKeepNotificationsInMemoryWithoutJournal() throws Exception {
+    NotificationOutbox memory = new NotificationOutbox(null, 3, 1000L, 1000L);
+    assertTrue(memory.replay().isEmpty());
+    NotificationOutbox.Entry older =
+        memory.enqueue(1, "refs/heads/master", "sha1", null);
+    NotificationOutbox.Entry newer =
+        memory.enqueue(1, "refs/heads/master", "sha2", null);
+
+    assertTrue(memory.isDone(older));
+    assertEquals(1, memory.getPendingCount());
+    memory.acknowledge(newer);
+    assertEquals(0, memory.getPendingCount());
+    memory.close();
+  }
+
+  /**
+   * Validate that a record torn by a crash doesn't prevent the replay
+   */
+  @Test
+  public void shouldSkipTornRecord() throws Exception {
+    outbox.enqueue(1, "refs/heads/master", "sha1", null);
+    outbox.close();
+    FileOutputStream out = new FileOutputStream(journal, true);
+    try {
+      out.write("ENQ {\"id\":\"abc\",\"repositoryId\":2,\"re"
+          .getBytes(Charsets.UTF_8));
+    } finally {
+      out.close();
+    }
+
+    outbox = open();
+    List<NotificationOutbox.Entry> entries = outbox.replay();
+
+    assertEquals(1, entries.size());
+    assertEquals("sha1", entries.get(0).getSha1());
+  }
+
+  /**
+   * Validate that retry delays back off exponentially up to the maximum and
+   * that retries stop once the attempts are used up
+   */
+  @Test
+  public void shouldBackOffUntilAttemptsAreUsedUp() {
+    for (int attempts = 1; attempts < 5; attempts++) {
+      long delay = outbox.getRetryDelay(attempts);
+      long backoff = Math.min(800L, 100L << (attempts - 1));
+      assertTrue(delay >= backoff / 2);
+      assertTrue(delay <= backoff);
+    }
+    assertEquals(-1L, outbox.getRetryDelay(5));
+  }
+
+  private NotificationOutbox open() throws IOException {
+    NotificationOutbox opened = new NotificationOutbox(journal, 5, 100L, 800L);
+    opened.replay();
+    return opened;
+  }
+}
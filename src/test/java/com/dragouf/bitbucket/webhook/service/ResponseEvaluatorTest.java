@@ -0,0 +1,132 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dragouf.bitbucket.webhook.NotificationResult;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+/**
+ * Test case for the {@link ResponseEvaluator} class.
+ */
+public class ResponseEvaluatorTest {
+
+  private static final String URL = "http://jenkins/git/notifyCommit";
+
+  private ResponseEvaluator evaluator;
+  private HttpGet request;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() {
+    evaluator = new ResponseEvaluator(64);
+    request = new HttpGet(URL);
+  }
+
+  /**
+   * Validate that a scheduled build is a success
+   */
+  @Test
+  public void shouldSucceedWhenBuildIsScheduled() throws Exception {
+    NotificationResult result = evaluator.evaluate(URL, request,
+        response(200, "Scheduled polling of foo"));
+
+    assertTrue(result.isSuccessful());
+    assertEquals("Jenkins response: Scheduled polling of foo",
+        result.getMessage());
+    assertFalse(request.isAborted());
+  }
+
+  /**
+   * Validate that a response without a scheduled build is a failure
+   */
+  @Test
+  public void shouldFailWhenNothingIsScheduled() throws Exception {
+    NotificationResult result = evaluator.evaluate(URL, request,
+        response(200, "No git jobs using repository"));
+
+    assertFalse(result.isSuccessful());
+    assertFalse(result.isRetryable());
+  }
+
+  /**
+   * Validate that any 2xx response is a success when no scheduled build is
+   * expected, e.g. for payloads
+   */
+  @Test
+  public void shouldSucceedWithoutScheduledWhenNotExpected() throws Exception {
+    NotificationResult result = evaluator.evaluate(URL, request,
+        response(201, "{\"jobs\":{}}"), false);
+
+    assertTrue(result.isSuccessful());
+  }
+
+  /**
+   * Validate that a server error is a retryable failure, whatever its body
+   */
+  @Test
+  public void shouldRetryServerError() throws Exception {
+    NotificationResult result = evaluator.evaluate(URL, request,
+        response(503, "Scheduled"));
+
+    assertFalse(result.isSuccessful());
+    assertTrue(result.isRetryable());
+  }
+
+  /**
+   * Validate that a response without a status line is a retryable failure,
+   * whatever its body
+   */
+  @Test
+  public void shouldRetryResponseWithoutStatus() throws Exception {
+    HttpResponse response = mock(HttpResponse.class);
+    when(response.getEntity())
+        .thenReturn(response(200, "Scheduled").getEntity());
+
+    NotificationResult result = evaluator.evaluate(URL, request, response);
+
+    assertFalse(result.isSuccessful());
+    assertTrue(result.isRetryable());
+  }
+
+  /**
+   * Validate that only a prefix of a long body is read and that the request
+   * is aborted rather than the rest of the body drained
+   */
+  @Test
+  public void shouldTruncateLongBody() throws Exception {
+    NotificationResult result = evaluator.evaluate(URL, request,
+        response(200, "Scheduled" + Strings.repeat("x", 1000)));
+
+    assertTrue(result.isSuccessful());
+    assertEquals("Jenkins response: Scheduled"
+        + Strings.repeat("x", 64 - "Scheduled".length()) + "...",
+        result.getMessage());
+    assertTrue(request.isAborted());
+  }
+
+  private static HttpResponse response(int status, String body) {
+    HttpResponse response =
+        new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+    BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setContent(new ByteArrayInputStream(body.getBytes(Charsets.UTF_8)));
+    response.setEntity(entity);
+    return response;
+  }
+}
@@ -0,0 +1,115 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link ThreadPerTaskExecutor} class.
+ */
+public class ThreadPerTaskExecutorTest {
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final AtomicReference<Thread> first = new AtomicReference<Thread>();
+  private ThreadPerTaskExecutor executor;
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    release.countDown();
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Validate that a queued task starts on a new thread once a running one
+   * completes
+   */
+  @Test
+  public void shouldStartQueuedTaskOnNewThread() throws Exception {
+    executor = new ThreadPerTaskExecutor(1, 1,
+        Executors.defaultThreadFactory());
+    executor.execute(blocking());
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    final AtomicReference<Thread> second = new AtomicReference<Thread>();
+    final CountDownLatch ran = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        second.set(Thread.currentThread());
+        ran.countDown();
+      }
+    });
+    assertEquals(1, executor.getActiveCount());
+    assertEquals(1, executor.getQueue().size());
+
+    release.countDown();
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+    assertNotSame(first.get(), second.get());
+  }
+
+  /**
+   * Validate that a task is rejected once the tasks in flight and the queue
+   * are both at their limit
+   */
+  @Test
+  public void shouldRejectWhenQueueFull() throws Exception {
+    executor = new ThreadPerTaskExecutor(1, 1,
+        Executors.defaultThreadFactory());
+    executor.execute(blocking());
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    Runnable queued = noop();
+    executor.execute(queued);
+
+    try {
+      executor.execute(noop());
+      fail("The task should have been rejected");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    List<Runnable> drained = executor.shutdownNow();
+    assertEquals(1, drained.size());
+    assertTrue(drained.contains(queued));
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+  }
+
+  private Runnable blocking() {
+    return new Runnable() {
+      @Override
+      public void run() {
+        first.set(Thread.currentThread());
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+  }
+
+  private static Runnable noop() {
+    return new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+  }
+}
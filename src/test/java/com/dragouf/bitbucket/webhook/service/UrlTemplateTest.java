@@ -0,0 +1,102 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URLEncoder;
+
+import org.junit.Test;
+
+/**
+ * Test case for the {@link UrlTemplate} class.
+ */
+public class UrlTemplateTest {
+
+  private static final String CLONE_URL = "http://bitbucket/scm/foo/bar.git";
+  private static final String ENCODED_CLONE_URL =
+      "http%3A%2F%2Fbitbucket%2Fscm%2Ffoo%2Fbar.git";
+
+  /**
+   * Validate the url of a branch notification
+   */
+  @Test
+  public void shouldExpandBranchNotification() {
+    UrlTemplate template = UrlTemplate.compile("http://jenkins/", CLONE_URL,
+        null, false, false, null);
+
+    assertEquals("http://jenkins?GIT_URL=" + ENCODED_CLONE_URL
+        + "&GIT_BRANCH=refs%2Fheads%2Fmaster&sha1=sha1&HIPCHAT_USER=null",
+        template.expand("refs/heads/master", "sha1", null, null));
+  }
+
+  /**
+   * Validate the url of a pull request notification
+   */
+  @Test
+  public void shouldExpandPullRequestNotification() {
+    UrlTemplate template = UrlTemplate.compile("http://jenkins", CLONE_URL,
+        "bob", true, true, null);
+
+    assertEquals("http://jenkins?GIT_URL=" + ENCODED_CLONE_URL
+        + "&PULLREQUEST_ID=12&HIPCHAT_USER=bob",
+        template.expand("refs/heads/master", "sha1", "12", null));
+  }
+
+  /**
+   * Validate that custom parameters are appended with their variables
+   * replaced by encoded values
+   */
+  @Test
+  public void shouldExpandCustomParameters() {
+    UrlTemplate template = UrlTemplate.compile("http://jenkins", CLONE_URL,
+        "bob", true, false,
+        "&token=abc&cause=${branch}@${ sha1 }&pr=${prId}");
+
+    assertEquals("http://jenkins?GIT_URL=" + ENCODED_CLONE_URL
+        + "&GIT_BRANCH=feature%2Fa+b&HIPCHAT_USER=bob"
+        + "&token=abc&cause=feature%2Fa+b@sha1&pr=",
+        template.expand("feature/a b", "sha1", null, null));
+  }
+
+  /**
+   * Validate that the user who caused the notification can be passed on
+   */
+  @Test
+  public void shouldExpandUser() {
+    UrlTemplate template = UrlTemplate.compile("http://jenkins", CLONE_URL,
+        null, true, false, "&cause=${user}");
+
+    assertEquals("http://jenkins?GIT_URL=" + ENCODED_CLONE_URL
+        + "&GIT_BRANCH=master&HIPCHAT_USER=null&cause=jane+doe%40example",
+        template.expand("master", "sha1", null, "jane doe@example"));
+  }
+
+  /**
+   * Validate that unknown and unclosed variables are rejected
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectUnknownVariable() {
+    UrlTemplate.validate("&ref=${ref}");
+  }
+
+  /**
+   * Validate that unclosed variables are rejected
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectUnclosedVariable() {
+    UrlTemplate.validate("&cause=${sha1");
+  }
+
+  /**
+   * Validate that values are encoded like URLEncoder does
+   */
+  @Test
+  public void shouldEncodeLikeUrlEncoder() throws Exception {
+    String[] values = { "refs/heads/master", "a b+c&d=e%f", "caf\u00e9",
+        "\u20ac\u4e2d", "\ud83d\ude00", "lone\ud83d", "~!*'()._-" };
+    for (String value : values) {
+      StringBuilder encoded = new StringBuilder();
+      UrlTemplate.appendEncoded(encoded, value);
+      assertEquals(URLEncoder.encode(value, "UTF-8"), encoded.toString());
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package com.dragouf.bitbucket.webhook.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.Test;
+
+/**
+ * Test case for the {@link VirtualThreads} class.
+ */
+public class VirtualThreadsTest {
+
+  /**
+   * Validate that virtual threads are created on runtimes that support them
+   * and that older runtimes get no factory
+   */
+  @Test
+  public void shouldCreateVirtualThreadsWhenSupported() throws Exception {
+    ThreadFactory factory = VirtualThreads.newThreadFactory("test");
+    if (!isJava21OrLater()) {
+      assertNull(factory);
+      return;
+    }
+
+    Thread thread = factory.newThread(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+    assertEquals("test:thread-1", thread.getName());
+    assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+  }
+
+  private static boolean isJava21OrLater() {
+    String version = System.getProperty("java.specification.version");
+    return !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+  }
+}
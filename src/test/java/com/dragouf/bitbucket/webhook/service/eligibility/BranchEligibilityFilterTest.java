@@ -55,43 +55,27 @@ public class BranchEligibilityFilterTest {
     branchEvaluator = mock(BranchEvaluator.class);
     event = mock(RepositoryPushEvent.class);
     repo = mock(Repository.class);
-    eventContext = mock(EventContext.class);
 
     when(change.getType()).thenReturn(changeTypeUpdate);
     when(iterChanges.next()).thenReturn(change);
     when(changes.iterator()).thenReturn(iterChanges);
     when(event.getRefChanges()).thenReturn(changes);
-    when(eventContext.getEventSource()).thenReturn(event);
-    when(eventContext.getRepository()).thenReturn(repo);
     when(settingsService.getSettings(repo)).thenReturn(settings);
     when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn("blacklist");
     when(settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES))
         .thenReturn(branches);
+    eventContext = new EventContext(event, repo, null);
 
     filter = new BranchEligibilityFilter(settingsService, branchEvaluator);
   }
 
-  /**
-   * Validate that the matcher works as expected
-   */
-  @Test
-  public void testHasMatchMethod() {
-    assertTrue(filter.hasMatch(array("master"), iterable("master")));
-    assertTrue(filter.hasMatch(array("mas*"), iterable("master")));
-    assertFalse(filter.hasMatch(array("master"), iterable("develop")));
-    assertTrue(filter.hasMatch(array("master", "deve*"), iterable("develop")));
-    assertFalse(filter.hasMatch(array("mas*", "dev*"), iterable("issue")));
-    assertTrue(filter.hasMatch(array("MASTER", "DEVE*"), iterable("develop")));
-    assertTrue(filter.hasMatch(array("master", "deve*"), iterable("DEVELOP")));
-  }
-
   /**
    * Validate that if another event type is provided, the filter doesn't process
    * it.
    */
   @Test
   public void testEnsureOnlyWorksWithRepositoryPushEvents() {
-    when(eventContext.getEventSource()).thenReturn("Something else");
+    eventContext = new EventContext("Something else", repo, null);
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
 
@@ -143,12 +127,27 @@ public class BranchEligibilityFilterTest {
     when(iterChanges.next()).thenReturn(change);
     when(changes.iterator()).thenReturn(iterChanges);
     when(event.getRefChanges()).thenReturn(changes);
-    when(eventContext.getEventSource()).thenReturn(event);
     assertFalse(filter.shouldDeliverNotification(eventContext));
   }
 
-  private String[] array(String... elements) {
-    return elements;
+  /**
+   * Ensure that a context scoped to a ref change is evaluated against that
+   * ref only, not the first ref or all the refs of the event.
+   */
+  @Test
+  public void testScopedContextOnlyConsidersItsRef() {
+    RefChange deleted = mock(RefChange.class);
+    when(deleted.getType()).thenReturn(changeTypeDelete);
+    assertFalse(filter.shouldDeliverNotification(
+        eventContext.forRefChange(deleted)));
+
+    RefChange other = mock(RefChange.class);
+    when(other.getType()).thenReturn(changeTypeUpdate);
+    when(branchEvaluator.getBranches(changes)).thenReturn(iterable("wildCard"));
+    when(branchEvaluator.getBranch(other)).thenReturn("asdf");
+    assertTrue(filter.shouldDeliverNotification(
+        eventContext.forRefChange(other)));
+    assertFalse(filter.shouldDeliverNotification(eventContext));
   }
 
   private List<String> iterable(String... elements) {
@@ -0,0 +1,86 @@
+package com.dragouf.bitbucket.webhook.service.eligibility;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Test case for the {@link BranchMatcher} class.
+ */
+public class BranchMatcherTest {
+
+  /**
+   * Validate exact names and trailing wildcard prefixes
+   */
+  @Test
+  public void shouldMatchNamesAndPrefixes() {
+    BranchMatcher matcher = BranchMatcher.compile("master  feature* RELEASE");
+
+    assertTrue(matcher.matches("master"));
+    assertTrue(matcher.matches("Release"));
+    assertTrue(matcher.matches("feature"));
+    assertTrue(matcher.matches("feature/foo/bar"));
+    assertFalse(matcher.matches("master2"));
+    assertFalse(matcher.matches("feat"));
+    assertFalse(matcher.matches("develop"));
+  }
+
+  /**
+   * Validate single and double star globs
+   */
+  @Test
+  public void shouldMatchGlobs() {
+    BranchMatcher matcher =
+        BranchMatcher.compile("release/*/hotfix bugfix/** v?.x");
+
+    assertTrue(matcher.matches("release/1.0/hotfix"));
+    assertFalse(matcher.matches("release/1.0/2/hotfix"));
+    assertTrue(matcher.matches("bugfix/a/b/c"));
+    assertTrue(matcher.matches("V1.x"));
+    assertFalse(matcher.matches("v10.x"));
+    assertFalse(matcher.matches("release/1.0"));
+  }
+
+  /**
+   * Validate regular expression patterns
+   */
+  @Test
+  public void shouldMatchRegexes() {
+    BranchMatcher matcher = BranchMatcher.compile("regex:release/\\d+\\.\\d+");
+
+    assertTrue(matcher.matches("release/1.10"));
+    assertFalse(matcher.matches("release/1.x"));
+    assertFalse(matcher.matches("pre-release/1.10"));
+  }
+
+  /**
+   * Validate that any matching branch is enough
+   */
+  @Test
+  public void shouldMatchAnyBranch() {
+    BranchMatcher matcher = BranchMatcher.compile("master");
+
+    assertTrue(matcher.matchesAny(Arrays.asList("develop", "master")));
+    assertFalse(matcher.matchesAny(Arrays.asList("develop", "issue")));
+    assertFalse(BranchMatcher.compile(null).matches("master"));
+    assertTrue(BranchMatcher.compile("master deve*")
+        .matchesAny(Arrays.asList("develop")));
+    assertFalse(BranchMatcher.compile("mas* dev*")
+        .matchesAny(Arrays.asList("issue")));
+    assertTrue(BranchMatcher.compile("MASTER DEVE*")
+        .matchesAny(Arrays.asList("develop")));
+    assertTrue(BranchMatcher.compile("master deve*")
+        .matchesAny(Arrays.asList("DEVELOP")));
+  }
+
+  /**
+   * Validate that an invalid regular expression is rejected
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectInvalidRegex() {
+    BranchMatcher.compile("regex:release/(");
+  }
+}
@@ -1,16 +1,30 @@
 package com.dragouf.bitbucket.webhook.service.eligibility;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.atlassian.bitbucket.event.pull.PullRequestEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestRescopedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
+import com.dragouf.bitbucket.webhook.service.ConcreteNotificationMetrics;
+import com.dragouf.bitbucket.webhook.service.NotificationMetrics;
+import com.dragouf.bitbucket.webhook.service.eligibility.EligibilityFilter.Cost;
+
 /**
  * Test case for the {@link ConcreteEligibilityFilterChain} class.
  *
@@ -55,4 +69,172 @@ public class ConcreteEligibilityFilterChainTest {
     when(filter.shouldDeliverNotification(event)).thenReturn(false);
     assertFalse(filterChain.shouldDeliverNotification(event));
   }
+
+  /**
+   * Validate that the asynchronous chain stops at the first filter that
+   * cancels delivery.
+   * @throws Exception
+   */
+  @Test
+  public void shouldStopAsyncChainWhenFilterSaysSo() throws Exception {
+    EligibilityFilter second = mock(EligibilityFilter.class);
+    filters.add(second);
+    filterChain = new ConcreteEligibilityFilterChain(filters);
+    Executor executor = mock(Executor.class);
+    when(filter.shouldDeliverNotificationAsync(event, executor))
+        .thenReturn(CompletableFuture.completedFuture(false));
+
+    assertFalse(filterChain.shouldDeliverNotificationAsync(event, executor)
+        .get());
+    verify(second, never()).shouldDeliverNotificationAsync(event, executor);
+  }
+
+  /**
+   * Validate that the asynchronous chain delivers once every filter agrees.
+   * @throws Exception
+   */
+  @Test
+  public void shouldDeliverAsyncWhenAllFiltersSaySo() throws Exception {
+    EligibilityFilter second = mock(EligibilityFilter.class);
+    filters.add(second);
+    filterChain = new ConcreteEligibilityFilterChain(filters);
+    Executor executor = mock(Executor.class);
+    CompletableFuture<Boolean> pending = new CompletableFuture<Boolean>();
+    when(filter.shouldDeliverNotificationAsync(event, executor))
+        .thenReturn(CompletableFuture.completedFuture(true));
+    when(second.shouldDeliverNotificationAsync(event, executor))
+        .thenReturn(pending);
+
+    CompletableFuture<Boolean> result =
+        filterChain.shouldDeliverNotificationAsync(event, executor);
+    assertFalse(result.isDone());
+    pending.complete(true);
+    assertTrue(result.get());
+  }
+
+  /**
+   * Validate that rejections are counted per filter class, synchronously and
+   * asynchronously.
+   * @throws Exception
+   */
+  @Test
+  public void shouldCountRejectionsPerFilter() throws Exception {
+    NotificationMetrics metrics = new ConcreteNotificationMetrics();
+    filterChain = new ConcreteEligibilityFilterChain(filters, metrics);
+    Executor executor = mock(Executor.class);
+    when(filter.shouldDeliverNotification(event)).thenReturn(false);
+    when(filter.shouldDeliverNotificationAsync(event, executor))
+        .thenReturn(CompletableFuture.completedFuture(false));
+
+    filterChain.shouldDeliverNotification(event);
+    filterChain.shouldDeliverNotificationAsync(event, executor).get();
+
+    assertEquals(Long.valueOf(2L), metrics.getFilterRejections()
+        .get(filter.getClass().getSimpleName()));
+  }
+
+  /**
+   * Validate that cheap filters are evaluated before expensive ones, keeping
+   * the provided order among filters of the same cost.
+   * @throws Exception
+   */
+  @Test
+  public void shouldEvaluateCheapFiltersFirst() throws Exception {
+    EligibilityFilter expensive = filter(Cost.EXPENSIVE, true);
+    EligibilityFilter cheap = filter(Cost.CHEAP, false);
+    EligibilityFilter otherCheap = filter(Cost.CHEAP, true);
+    filterChain = new ConcreteEligibilityFilterChain(
+        Arrays.asList(expensive, filter, cheap, otherCheap));
+
+    assertEquals(Arrays.asList(cheap, otherCheap, filter, expensive),
+        filterChain.getFilters());
+    assertFalse(filterChain.shouldDeliverNotification(event));
+    verify(expensive, never()).shouldDeliverNotification(event);
+  }
+
+  /**
+   * Validate that the time each filter takes is recorded.
+   * @throws Exception
+   */
+  @Test
+  public void shouldRecordFilterLatency() throws Exception {
+    NotificationMetrics metrics = new ConcreteNotificationMetrics();
+    filterChain = new ConcreteEligibilityFilterChain(filters, metrics);
+    when(filter.shouldDeliverNotification(event)).thenReturn(true);
+
+    filterChain.shouldDeliverNotification(event);
+    filterChain.shouldDeliverNotification(event);
+
+    assertEquals(2L, metrics.getFilterLatencies()
+        .get(filter.getClass().getSimpleName()).getCount());
+  }
+
+  /**
+   * Validate that adaptive ordering moves the filter that rejects the most
+   * events first, but never ahead of cheaper filters.
+   * @throws Exception
+   */
+  @Test
+  public void shouldReorderFiltersOfSameCostAdaptively() throws Exception {
+    EligibilityFilter cheap = filter(Cost.CHEAP, true);
+    EligibilityFilter permissive = filter(Cost.MODERATE, true);
+    EligibilityFilter strict = filter(Cost.MODERATE, false);
+    filterChain = new ConcreteEligibilityFilterChain(
+        Arrays.asList(permissive, strict, cheap), null, true);
+
+    for (int i = 0; i < 1000; i++) {
+      filterChain.shouldDeliverNotification(event);
+    }
+
+    assertEquals(Arrays.asList(cheap, strict, permissive),
+        filterChain.getFilters());
+  }
+
+  /**
+   * Validate that filters are only run for the events they apply to.
+   * @throws Exception
+   */
+  @Test
+  public void shouldSkipFiltersForOtherEventTypes() throws Exception {
+    EligibilityFilter pullRequests = filter(Cost.CHEAP, false);
+    doReturn(PullRequestEvent.class).when(pullRequests).getEventType();
+    filterChain = new ConcreteEligibilityFilterChain(
+        Arrays.asList(pullRequests, filter));
+    Object source = mock(RepositoryRefsChangedEvent.class);
+    when(event.getEventSource()).thenReturn(source);
+    when(filter.shouldDeliverNotification(event)).thenReturn(true);
+
+    assertTrue(filterChain.shouldDeliverNotification(event));
+    verify(pullRequests, never()).shouldDeliverNotification(event);
+    verify(filter).shouldDeliverNotification(event);
+  }
+
+  /**
+   * Validate that filters apply to subtypes of their event type, and that the
+   * filters of an event class are only looked up once.
+   * @throws Exception
+   */
+  @Test
+  public void shouldRunFiltersForEventSubtypes() throws Exception {
+    EligibilityFilter pullRequests = filter(Cost.CHEAP, false);
+    doReturn(PullRequestEvent.class).when(pullRequests).getEventType();
+    filterChain = new ConcreteEligibilityFilterChain(
+        Arrays.asList(pullRequests, filter));
+    Object source = mock(PullRequestRescopedEvent.class);
+    when(event.getEventSource()).thenReturn(source);
+
+    assertFalse(filterChain.shouldDeliverNotification(event));
+    verify(pullRequests).shouldDeliverNotification(event);
+    assertEquals(Arrays.asList(pullRequests, filter),
+        filterChain.getFilters(source.getClass()));
+    assertTrue(filterChain.getFilters(source.getClass())
+        == filterChain.getFilters(source.getClass()));
+  }
+
+  private EligibilityFilter filter(Cost cost, boolean deliver) {
+    EligibilityFilter mocked = mock(EligibilityFilter.class);
+    when(mocked.getCost()).thenReturn(cost);
+    when(mocked.shouldDeliverNotification(event)).thenReturn(deliver);
+    return mocked;
+  }
 }
@@ -2,16 +2,29 @@ package com.dragouf.bitbucket.webhook.service.eligibility;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.dragouf.bitbucket.webhook.Notifier;
 import com.dragouf.bitbucket.webhook.service.SettingsService;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.atlassian.bitbucket.setting.Settings;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.user.UserService;
+import com.atlassian.bitbucket.util.Operation;
 
 /**
  * Test case for the {@link IgnoreCommittersEligibilityFilter} class
@@ -38,10 +51,7 @@ public class IgnoreCommittersEligibilityFilterTest {
     settings = mock(Settings.class);
     when(settingsService.getSettings(repo)).thenReturn(settings);
 
-    eventContext = mock(EventContext.class);
-    when(eventContext.getEventSource()).thenReturn(null);
-    when(eventContext.getRepository()).thenReturn(repo);
-    when(eventContext.getUsername()).thenReturn(username);
+    eventContext = new EventContext(null, repo, username);
   }
 
   /**
@@ -88,4 +98,86 @@ public class IgnoreCommittersEligibilityFilterTest {
     assertFalse(filter.shouldDeliverNotification(eventContext));
   }
 
+  /**
+   * Validate that the ignored committers are matched case-insensitively
+   * @throws Exception
+   */
+  @Test
+  public void shouldCancelWhenMatchesIgnoringCase() throws Exception {
+    when(settings.getString(Notifier.IGNORE_COMMITTERS))
+        .thenReturn("anotherUser PINKY");
+    assertFalse(filter.shouldDeliverNotification(eventContext));
+  }
+
+  /**
+   * Validate that settings already resolved in the context are reused
+   * @throws Exception
+   */
+  @Test
+  public void shouldUseSettingsFromContext() throws Exception {
+    when(settings.getString(Notifier.IGNORE_COMMITTERS)).thenReturn(username);
+    eventContext = new EventContext(null, repo, username, settings);
+
+    assertFalse(filter.shouldDeliverNotification(eventContext));
+    verify(settingsService, never()).getSettings(repo);
+  }
+
+  /**
+   * Validate that members of an ignored group are ignored, and that the
+   * membership is only looked up once
+   * @throws Throwable
+   */
+  @Test
+  public void shouldCancelWhenUserIsInIgnoredGroup() throws Throwable {
+    UserService userService = groupFilter();
+    when(userService.isUserInGroup(username, "bots")).thenReturn(true);
+    when(settings.getString(Notifier.IGNORE_COMMITTERS))
+        .thenReturn("someone group:bots");
+
+    assertFalse(filter.shouldDeliverNotification(eventContext));
+    assertFalse(filter.shouldDeliverNotification(
+        new EventContext(null, repo, username)));
+    verify(userService, times(1)).isUserInGroup(username, "bots");
+  }
+
+  /**
+   * Validate that users outside the ignored groups are allowed
+   * @throws Throwable
+   */
+  @Test
+  public void shouldAllowWhenUserIsNotInIgnoredGroup() throws Throwable {
+    UserService userService = groupFilter();
+    when(userService.isUserInGroup(username, "bots")).thenReturn(false);
+    when(settings.getString(Notifier.IGNORE_COMMITTERS))
+        .thenReturn("group:bots");
+
+    assertTrue(filter.shouldDeliverNotification(eventContext));
+  }
+
+  @SuppressWarnings("unchecked")
+  private UserService groupFilter() throws Throwable {
+    UserService userService = mock(UserService.class);
+    SecurityService securityService = mock(SecurityService.class);
+    EscalatedSecurityContext securityContext =
+        mock(EscalatedSecurityContext.class);
+    ApplicationPropertiesService propertiesService =
+        mock(ApplicationPropertiesService.class);
+    when(propertiesService.getPluginProperty(
+        IgnoreCommittersEligibilityFilter.GROUP_CACHE_TTL, 300L))
+        .thenReturn(300L);
+    when(securityService.withPermission(any(Permission.class), anyString()))
+        .thenReturn(securityContext);
+    when(securityContext.call(any(Operation.class)))
+        .thenAnswer(new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) throws Throwable {
+            return ((Operation<Object, Throwable>) invocation.getArguments()[0])
+                .perform();
+          }
+        });
+    filter = new IgnoreCommittersEligibilityFilter(settingsService,
+        userService, securityService, propertiesService);
+    return userService;
+  }
+
 }
@@ -2,19 +2,41 @@ package com.dragouf.bitbucket.webhook.service.eligibility;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.atlassian.bitbucket.event.pull.PullRequestRescopedEvent;
+import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.pull.PullRequest;
 import com.atlassian.bitbucket.pull.PullRequestMergeability;
 import com.atlassian.bitbucket.pull.PullRequestRef;
 import com.atlassian.bitbucket.pull.PullRequestService;
 import com.atlassian.bitbucket.pull.PullRequestState;
 import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import com.dragouf.bitbucket.webhook.service.ConcreteMergeabilityService;
 
 /**
  * Test case for the {@link IsMergeableEligibilityFilter} class
@@ -36,22 +58,26 @@ public class IsMergeableEligibilityFilterTest {
    * Setup tasks
    */
   @Before
-  public void setUp() throws Exception {
+  public void setUp() throws Throwable {
     pullRequestService = mock(PullRequestService.class);
     repo = mock(Repository.class);
     pullRequest = mock(PullRequest.class);
-    eventContext = mock(EventContext.class);
     event = mock(PullRequestRescopedEvent.class);
 
     when(repo.getId()).thenReturn(repoId);
 
-    filter = new IsMergeableEligibilityFilter(pullRequestService);
+    filter = new IsMergeableEligibilityFilter(
+        new ConcreteMergeabilityService(pullRequestService,
+            securityService()));
 
+    PullRequestRef fromRef = mock(PullRequestRef.class);
+    PullRequestRef toRef = mock(PullRequestRef.class);
+    when(toRef.getRepository()).thenReturn(repo);
+    when(pullRequest.getFromRef()).thenReturn(fromRef);
+    when(pullRequest.getToRef()).thenReturn(toRef);
     when(event.getPullRequest()).thenReturn(pullRequest);
     when(pullRequest.getState()).thenReturn(PullRequestState.OPEN);
-    when(eventContext.getEventSource()).thenReturn(event);
-    when(eventContext.getRepository()).thenReturn(repo);
-    when(eventContext.getUsername()).thenReturn(username);
+    eventContext = new EventContext(event, repo, username);
   }
 
   /**
@@ -61,7 +87,7 @@ public class IsMergeableEligibilityFilterTest {
   @Test
   public void shouldIgnoreIfEventSourceNotPullRequestEvent() {
     String event = "Hi there";
-    when(eventContext.getEventSource()).thenReturn(event);
+    eventContext = new EventContext(event, repo, username);
 
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
@@ -118,4 +144,87 @@ public class IsMergeableEligibilityFilterTest {
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
 
+  /**
+   * Validate that the mergeability is only computed once per event
+   */
+  @Test
+  public void shouldOnlyCheckMergeabilityOncePerEvent() {
+    Long prId = 2L;
+    PullRequestMergeability mergability = mock(PullRequestMergeability.class);
+
+    when(pullRequest.getId()).thenReturn(prId);
+    when(pullRequestService.canMerge(repoId, prId)).thenReturn(mergability);
+
+    assertTrue(filter.shouldDeliverNotification(eventContext));
+    assertTrue(filter.shouldDeliverNotification(eventContext));
+    verify(pullRequestService, times(1)).canMerge(repoId, prId);
+  }
+
+  /**
+   * Validate that the merge check of the asynchronous variant runs on the
+   * provided executor
+   */
+  @Test
+  public void shouldCheckMergeabilityOnExecutor() throws Exception {
+    Long prId = 2L;
+    PullRequestMergeability mergability = mock(PullRequestMergeability.class);
+    when(pullRequest.getId()).thenReturn(prId);
+    when(pullRequestService.canMerge(repoId, prId)).thenReturn(mergability);
+    when(mergability.isConflicted()).thenReturn(true);
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    CompletableFuture<Boolean> result = filter.shouldDeliverNotificationAsync(
+        eventContext, new Executor() {
+          @Override
+          public void execute(Runnable task) {
+            tasks.add(task);
+          }
+        });
+
+    assertFalse(result.isDone());
+    verify(pullRequestService, never()).canMerge(repoId, prId);
+    tasks.get(0).run();
+    assertFalse(result.get());
+  }
+
+  /**
+   * Validate that the asynchronous variant fails rather than running the merge
+   * check on the calling thread when the executor rejects it
+   */
+  @Test
+  public void shouldFailWhenExecutorRejectsMergeCheck() throws Exception {
+    CompletableFuture<Boolean> result = filter.shouldDeliverNotificationAsync(
+        eventContext, new Executor() {
+          @Override
+          public void execute(Runnable task) {
+            throw new RejectedExecutionException("Notification queue full");
+          }
+        });
+
+    verify(pullRequestService, never()).canMerge(anyInt(), anyLong());
+    try {
+      result.get();
+      fail("The merge check should have been rejected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private SecurityService securityService() throws Throwable {
+    SecurityService securityService = mock(SecurityService.class);
+    EscalatedSecurityContext securityContext =
+        mock(EscalatedSecurityContext.class);
+    when(securityService.withPermission(any(Permission.class), anyString()))
+        .thenReturn(securityContext);
+    when(securityContext.call(any(Operation.class)))
+        .thenAnswer(new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) throws Throwable {
+            return ((Operation<Object, Throwable>) invocation.getArguments()[0])
+                .perform();
+          }
+        });
+    return securityService;
+  }
 }